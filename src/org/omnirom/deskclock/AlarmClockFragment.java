@@ -137,10 +137,20 @@ public class AlarmClockFragment extends DeskClockFragment implements
     private Transition mAddRemoveTransition;
     private Transition mRepeatTransition;
 
-    private List<Uri> mAlarms;
-    private List<Uri> mRingtones;
+    private RingtoneCatalog mRingtoneCatalog;
     private Runnable mRunAfter;
 
+    // Updates the ringtone icons once the catalog is loaded
+    private final RingtoneCatalog.OnChangedListener mRingtoneCatalogListener =
+            new RingtoneCatalog.OnChangedListener() {
+        @Override
+        public void onRingtoneCatalogChanged() {
+            if (mAdapter != null) {
+                mAdapter.notifyDataSetChanged();
+            }
+        }
+    };
+
     public AlarmClockFragment() {
         // Basic provider required by Fragment.java
     }
@@ -157,8 +167,7 @@ public class AlarmClockFragment extends DeskClockFragment implements
         // Inflate the layout for this fragment
         final View v = inflater.inflate(R.layout.alarm_clock, container, false);
 
-        cacheAlarmTones();
-        cacheRingtones();
+        mRingtoneCatalog = RingtoneCatalog.getInstance(getActivity());
 
         if (savedState != null) {
             mExpandedId = savedState.getLong(KEY_EXPANDED_ID);
@@ -224,6 +233,7 @@ public class AlarmClockFragment extends DeskClockFragment implements
 
         setFabAppearance();
         setLeftRightButtonAppearance();
+        mRingtoneCatalog.addListener(mRingtoneCatalogListener);
 
         if (mAdapter != null) {
             mAdapter.updateDayOrder();
@@ -307,6 +317,7 @@ public class AlarmClockFragment extends DeskClockFragment implements
     @Override
     public void onPause() {
         super.onPause();
+        mRingtoneCatalog.removeListener(mRingtoneCatalogListener);
         // When the user places the app in the background by pressing "home",
         // dismiss the toast bar. However, since there is no way to determine if
         // home was pressed, just dismiss any existing toast bar when restarting
@@ -810,9 +821,9 @@ public class AlarmClockFragment extends DeskClockFragment implements
                             unknownAlarm = true;
                         }
                     }
-                    if (mAlarms.contains(alarm.alert) || unknownAlarm) {
+                    if (mRingtoneCatalog.isAlarm(alarm.alert) || unknownAlarm) {
                         ringtoneImageId = R.drawable.ic_alarm;
-                    } else if (mRingtones.contains(alarm.alert)) {
+                    } else if (mRingtoneCatalog.isRingtone(alarm.alert)) {
                         ringtoneImageId = R.drawable.ic_bell;
                     } else {
                         ringtoneImageId = Utils.resolveLocalUriImage(alarm.alert.toString());
@@ -933,9 +944,9 @@ public class AlarmClockFragment extends DeskClockFragment implements
                             unknownAlarm = true;
                         }
                     }
-                    if (mAlarms.contains(alarm.preAlarmAlert) || unknownAlarm) {
+                    if (mRingtoneCatalog.isAlarm(alarm.preAlarmAlert) || unknownAlarm) {
                         ringtoneImageId = R.drawable.ic_alarm;
-                    } else if (mRingtones.contains(alarm.preAlarmAlert)) {
+                    } else if (mRingtoneCatalog.isRingtone(alarm.preAlarmAlert)) {
                         ringtoneImageId = R.drawable.ic_bell;
                     } else {
                         ringtoneImageId = Utils.resolveLocalUriImage(alarm.preAlarmAlert.toString());
@@ -1343,57 +1354,6 @@ public class AlarmClockFragment extends DeskClockFragment implements
         }
     }
 
-    private void cacheAlarmTones() {
-        mAlarms = new ArrayList<Uri>();
-
-        Cursor alarmsCursor = null;
-        try {
-            RingtoneManager ringtoneMgr = new RingtoneManager(getActivity()
-                    .getApplicationContext());
-            ringtoneMgr.setType(RingtoneManager.TYPE_ALARM);
-
-            alarmsCursor = ringtoneMgr.getCursor();
-            int alarmsCount = alarmsCursor.getCount();
-            if (alarmsCount == 0 && !alarmsCursor.moveToFirst()) {
-                return;
-            }
-            while (!alarmsCursor.isAfterLast() && alarmsCursor.moveToNext()) {
-                int currentPosition = alarmsCursor.getPosition();
-                mAlarms.add(ringtoneMgr.getRingtoneUri(currentPosition));
-            }
-        } finally {
-            if (alarmsCursor != null) {
-                alarmsCursor.close();
-            }
-        }
-    }
-
-    private void cacheRingtones() {
-        mRingtones = new ArrayList<Uri>();
-
-        Cursor alarmsCursor = null;
-        try {
-            RingtoneManager ringtoneMgr = new RingtoneManager(getActivity()
-                    .getApplicationContext());
-            ringtoneMgr.setType(RingtoneManager.TYPE_RINGTONE);
-
-            alarmsCursor = ringtoneMgr.getCursor();
-            int alarmsCount = alarmsCursor.getCount();
-            if (alarmsCount == 0 && !alarmsCursor.moveToFirst()) {
-                return;
-            }
-
-            while (!alarmsCursor.isAfterLast() && alarmsCursor.moveToNext()) {
-                int currentPosition = alarmsCursor.getPosition();
-                mRingtones.add(ringtoneMgr.getRingtoneUri(currentPosition));
-            }
-        } finally {
-            if (alarmsCursor != null) {
-                alarmsCursor.close();
-            }
-        }
-    }
-
     private String getRingToneTitle(Uri uri) {
         Ringtone ringTone = RingtoneManager.getRingtone(getActivity(), uri);
         if (ringTone != null) {
@@ -1403,13 +1363,11 @@ public class AlarmClockFragment extends DeskClockFragment implements
     }
 
     private Uri getDefaultAlarmUri() {
-        if (mAlarms == null || mAlarms.size() == 0) {
-            cacheAlarmTones();
-        }
         Uri defaultAlarm = Utils.getDefaultAlarmUri(getActivity());
-        if (defaultAlarm == null || !mAlarms.contains(defaultAlarm)) {
+        if (defaultAlarm == null
+                || (mRingtoneCatalog.isLoaded() && !mRingtoneCatalog.isAlarm(defaultAlarm))) {
             // choose the first one from the list
-            defaultAlarm = mAlarms.get(0);
+            defaultAlarm = mRingtoneCatalog.getFirstAlarm();
         }
         return defaultAlarm;
     }
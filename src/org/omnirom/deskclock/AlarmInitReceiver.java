@@ -24,7 +24,9 @@ import android.os.PowerManager.WakeLock;
 import android.preference.PreferenceManager;
 
 import org.omnirom.deskclock.alarms.AlarmStateManager;
+import org.omnirom.deskclock.alarms.RandomMusicPool;
 
+import org.omnirom.deskclock.stopwatch.StopwatchStore;
 import org.omnirom.deskclock.timer.TimerObj;
 
 public class AlarmInitReceiver extends BroadcastReceiver {
@@ -34,7 +36,7 @@ public class AlarmInitReceiver extends BroadcastReceiver {
 
     /**
      * Sets alarm on ACTION_BOOT_COMPLETED.  Resets alarm on
-     * TIME_SET, TIMEZONE_CHANGED
+     * TIME_SET, TIMEZONE_CHANGED and MY_PACKAGE_REPLACED
      */
     @Override
     public void onReceive(final Context context, Intent intent) {
@@ -56,8 +58,9 @@ public class AlarmInitReceiver extends BroadcastReceiver {
                     SharedPreferences prefs =
                             PreferenceManager.getDefaultSharedPreferences(context);
                     LogUtils.v("AlarmInitReceiver - Reset timers and clear stopwatch data");
-                    TimerObj.resetTimersInSharedPrefs(prefs);
-                    Utils.clearSwSharedPref(prefs);
+                    TimerObj.resetTimersInDatabase(context);
+                    Utils.clearSwSharedPref(context, prefs);
+                    StopwatchStore.getInstance(context).removeAll();
 
                     if (!prefs.getBoolean(PREF_VOLUME_DEF_DONE, false)) {
                         // Fix the default
@@ -71,6 +74,11 @@ public class AlarmInitReceiver extends BroadcastReceiver {
                 // Update all the alarm instances on time change event
                 AlarmStateManager.fixAlarmInstances(context);
 
+                if (action.equals(Intent.ACTION_BOOT_COMPLETED)
+                        || action.equals(Intent.ACTION_MY_PACKAGE_REPLACED)) {
+                    RandomMusicPool.refreshAsync(context);
+                }
+
                 result.finish();
                 LogUtils.v("AlarmInitReceiver finished");
                 wl.release();
@@ -24,6 +24,7 @@ import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
 import org.omnirom.deskclock.alarms.AlarmConstants;
+import org.omnirom.deskclock.alarms.AlarmKlaxon;
 import org.omnirom.deskclock.alarms.AlarmService;
 import org.omnirom.deskclock.alarms.AlarmStateManager;
 import org.omnirom.deskclock.provider.AlarmInstance;
@@ -41,7 +42,7 @@ public class AlarmPluginFactory {
                 intent.setData(instance.getUri(instance.mId));
 
                 final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-                String speed = prefs.getString(SettingsActivity.KEY_VOLUME_INCREASE_SPEED, "5");
+                String speed = String.valueOf(AlarmKlaxon.getVolumeIncreaseSpeed(context));
                 intent.putExtra(AlarmConstants.DATA_ALARM_VOLUME_INCREASE_SPEED, speed);
                 String stream = prefs.getString(SettingsActivity.KEY_AUDIO_STREAM, "1");
                 intent.putExtra(AlarmConstants.DATA_ALARM_AUDIO_STREAM, stream);
@@ -32,7 +32,6 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.media.AudioManager;
 import android.media.Ringtone;
 import android.media.RingtoneManager;
@@ -90,8 +89,14 @@ public class AlarmRingtoneDialog extends DialogFragment implements
     private TextView mRingtoneLabel;
     private Spinner mMediaTypeSelect;
     private int mCurrentMediaType;
-    private List<Uri> mAlarms;
-    private List<Uri> mRingtones;
+    private RingtoneCatalog mRingtoneCatalog;
+    private final RingtoneCatalog.OnChangedListener mRingtoneCatalogListener =
+            new RingtoneCatalog.OnChangedListener() {
+        @Override
+        public void onRingtoneCatalogChanged() {
+            updateRingtoneName();
+        }
+    };
     private Uri mRingtone;
     private int mVolume = -1;
     private boolean mIncreasingVolumeValue;
@@ -194,6 +199,7 @@ public class AlarmRingtoneDialog extends DialogFragment implements
     @Override
     public void onStart() {
         super.onStart();
+        mRingtoneCatalog.addListener(mRingtoneCatalogListener);
 
         AlertDialog d = (AlertDialog) getDialog();
         if (d != null) {
@@ -211,6 +217,12 @@ public class AlarmRingtoneDialog extends DialogFragment implements
         }
     }
 
+    @Override
+    public void onStop() {
+        super.onStop();
+        mRingtoneCatalog.removeListener(mRingtoneCatalogListener);
+    }
+
     @Override
     public void onPause() {
         super.onPause();
@@ -369,8 +381,7 @@ public class AlarmRingtoneDialog extends DialogFragment implements
             mPreAlarmTimeSelect.setSelection(getPreAlarmTimePosition());
         }
 
-        cacheAlarmTones();
-        cacheRingtones();
+        mRingtoneCatalog = RingtoneCatalog.getInstance(getActivity());
         initView();
         return view;
     }
@@ -472,57 +483,6 @@ public class AlarmRingtoneDialog extends DialogFragment implements
         return getResources().getString(R.string.fallback_ringtone);
     }
 
-    private void cacheAlarmTones() {
-        mAlarms = new ArrayList<Uri>();
-
-        Cursor alarmsCursor = null;
-        try {
-            RingtoneManager ringtoneMgr = new RingtoneManager(getActivity()
-                    .getApplicationContext());
-            ringtoneMgr.setType(RingtoneManager.TYPE_ALARM);
-
-            alarmsCursor = ringtoneMgr.getCursor();
-            int alarmsCount = alarmsCursor.getCount();
-            if (alarmsCount == 0 && !alarmsCursor.moveToFirst()) {
-                return;
-            }
-            while (!alarmsCursor.isAfterLast() && alarmsCursor.moveToNext()) {
-                int currentPosition = alarmsCursor.getPosition();
-                mAlarms.add(ringtoneMgr.getRingtoneUri(currentPosition));
-            }
-        } finally {
-            if (alarmsCursor != null) {
-                alarmsCursor.close();
-            }
-        }
-    }
-
-    private void cacheRingtones() {
-        mRingtones = new ArrayList<Uri>();
-
-        Cursor alarmsCursor = null;
-        try {
-            RingtoneManager ringtoneMgr = new RingtoneManager(getActivity()
-                    .getApplicationContext());
-            ringtoneMgr.setType(RingtoneManager.TYPE_RINGTONE);
-
-            alarmsCursor = ringtoneMgr.getCursor();
-            int alarmsCount = alarmsCursor.getCount();
-            if (alarmsCount == 0 && !alarmsCursor.moveToFirst()) {
-                return;
-            }
-
-            while (!alarmsCursor.isAfterLast() && alarmsCursor.moveToNext()) {
-                int currentPosition = alarmsCursor.getPosition();
-                mRingtones.add(ringtoneMgr.getRingtoneUri(currentPosition));
-            }
-        } finally {
-            if (alarmsCursor != null) {
-                alarmsCursor.close();
-            }
-        }
-    }
-
     private void setRingtoneName() {
         Uri ringtoneUri = mRingtone;
         boolean spotifyAlarm = false;
@@ -539,9 +499,9 @@ public class AlarmRingtoneDialog extends DialogFragment implements
                 } else if (Utils.isLocalMediaAlarm(mAlarm, mPreAlarm)) {
                     localMediaAlarm = true;
                 } else {
-                    if (mAlarms.contains(ringtoneUri)) {
+                    if (mRingtoneCatalog.isAlarm(ringtoneUri)) {
                         mCurrentMediaType = ALARM_TYPE_BROWSE;
-                    } else if (mRingtones.contains(ringtoneUri)) {
+                    } else if (mRingtoneCatalog.isRingtone(ringtoneUri)) {
                         mCurrentMediaType = ALARM_TYPE_BROWSE;
                     }
                 }
@@ -586,9 +546,9 @@ public class AlarmRingtoneDialog extends DialogFragment implements
                         unknownAlarm = true;
                     }
                 }
-                if (mAlarms.contains(ringtoneUri) || unknownAlarm) {
+                if (mRingtoneCatalog.isAlarm(ringtoneUri) || unknownAlarm) {
                     mRingtoneImageId = R.drawable.ic_alarm;
-                } else if (mRingtones.contains(ringtoneUri)) {
+                } else if (mRingtoneCatalog.isRingtone(ringtoneUri)) {
                     mRingtoneImageId = R.drawable.ic_bell;
                 } else {
                     mRingtoneImageId = Utils.resolveLocalUriImage(ringtoneUri.toString());
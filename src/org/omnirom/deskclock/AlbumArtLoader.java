@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.provider.MediaStore;
+import android.util.LruCache;
+import android.util.Size;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Loads album art thumbnails of the browse list rows.
+ *
+ * Thumbnails are kept in a memory LRU sized by bytes and in a disk cache of downscaled
+ * JPEGs, so art is only decoded from the media store once. Misses are loaded on the bulk
+ * background lane. A request is bound to its view and cancelled when the view is
+ * recycled for another row, so scrolling does not queue up work for rows that are gone.
+ * Must be used from the main thread.
+ */
+final class AlbumArtLoader {
+    private static final String DISK_CACHE_DIR = "album_art";
+    private static final long DISK_CACHE_SIZE = 8 * 1024 * 1024;
+    private static final int JPEG_QUALITY = 85;
+
+    private static AlbumArtLoader sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final int mSize;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    // Keys without art, only kept in memory so new art shows up after a restart
+    private final Set<String> mMissing = new HashSet<String>();
+    private final File mDiskCacheDir;
+    // Bytes used on disk, -1 until first counted. Only accessed on the bulk lane.
+    private long mDiskCacheUsed = -1;
+
+    /**
+     * A pending load bound to a view.
+     */
+    private final class Request implements Runnable {
+        final String mKey;
+        final ImageView mView;
+        final CancellationSignal mSignal = new CancellationSignal();
+
+        Request(String key, ImageView view) {
+            mKey = key;
+            mView = view;
+        }
+
+        @Override
+        public void run() {
+            if (mSignal.isCanceled()) {
+                return;
+            }
+            final Bitmap bitmap;
+            try {
+                bitmap = loadBitmap(mKey, mSignal);
+            } catch (OperationCanceledException e) {
+                return;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onLoaded(Request.this, bitmap);
+                }
+            });
+        }
+    }
+
+    private AlbumArtLoader(Context context) {
+        mContext = context.getApplicationContext();
+        mSize = mContext.getResources().getDimensionPixelSize(R.dimen.browse_item_icon_size);
+        // An eighth of the heap is enough for several screens of thumbnails
+        final int cacheSize = (int) Math.min(Runtime.getRuntime().maxMemory() / 8,
+                Integer.MAX_VALUE);
+        mMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+        mDiskCacheDir = new File(mContext.getCacheDir(), DISK_CACHE_DIR);
+    }
+
+    static synchronized AlbumArtLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AlbumArtLoader(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Show the art of an album, artist or track in a view. The icon is shown until the
+     * art is loaded or if there is none. Cancels the previous request of the view.
+     *
+     * @param uri media store URI of the album, artist or track
+     * @param iconId fallback icon
+     */
+    void load(ImageView view, String uri, int iconId) {
+        cancel(view);
+        final Bitmap bitmap = mMemoryCache.get(uri);
+        if (bitmap != null) {
+            showBitmap(view, bitmap);
+            return;
+        }
+        showIcon(view, iconId);
+        if (mMissing.contains(uri)) {
+            return;
+        }
+        final Request request = new Request(uri, view);
+        view.setTag(R.id.album_art_request, request);
+        AsyncHandler.post(AsyncHandler.LANE_BULK, request);
+    }
+
+    /**
+     * Cancel the pending request of a view.
+     */
+    void cancel(ImageView view) {
+        final Request request = (Request) view.getTag(R.id.album_art_request);
+        if (request != null) {
+            request.mSignal.cancel();
+            view.setTag(R.id.album_art_request, null);
+        }
+    }
+
+    private void onLoaded(Request request, Bitmap bitmap) {
+        if (bitmap != null) {
+            mMemoryCache.put(request.mKey, bitmap);
+        } else {
+            mMissing.add(request.mKey);
+        }
+        if (request.mView.getTag(R.id.album_art_request) != request) {
+            // View was recycled meanwhile
+            return;
+        }
+        request.mView.setTag(R.id.album_art_request, null);
+        if (bitmap != null) {
+            showBitmap(request.mView, bitmap);
+        }
+    }
+
+    private static void showBitmap(ImageView view, Bitmap bitmap) {
+        view.setScaleType(ImageView.ScaleType.CENTER_CROP);
+        view.setImageBitmap(bitmap);
+    }
+
+    private static void showIcon(ImageView view, int iconId) {
+        view.setScaleType(ImageView.ScaleType.CENTER);
+        view.setImageResource(iconId);
+    }
+
+    /**
+     * Load a thumbnail from the disk cache or decode it from the media store. Runs on
+     * the bulk lane.
+     *
+     * @return the thumbnail or null if there is no art
+     */
+    private Bitmap loadBitmap(String key, CancellationSignal signal) {
+        final File file = new File(mDiskCacheDir, hashKey(key));
+        if (file.exists()) {
+            final Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+            if (bitmap != null) {
+                file.setLastModified(System.currentTimeMillis());
+                return bitmap;
+            }
+        }
+        signal.throwIfCanceled();
+
+        final long albumId = resolveAlbumId(key);
+        if (albumId < 0) {
+            return null;
+        }
+        signal.throwIfCanceled();
+        final Bitmap bitmap = decodeAlbumArt(albumId, signal);
+        if (bitmap != null) {
+            writeDiskCache(file, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return album of an album, artist or track URI, or -1 if there is none
+     */
+    private long resolveAlbumId(String key) {
+        final Uri uri = Uri.parse(key);
+        final long id;
+        try {
+            id = Long.parseLong(uri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (Utils.isLocalAlbumUri(key)) {
+            return id;
+        }
+        Uri queryUri;
+        String column;
+        if (Utils.isLocalArtistUri(key)) {
+            queryUri = MediaStore.Audio.Artists.Albums.getContentUri("external", id);
+            column = MediaStore.Audio.Albums._ID;
+        } else if (Utils.isLocalTrackUri(key)) {
+            queryUri = ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, id);
+            column = MediaStore.Audio.Media.ALBUM_ID;
+        } else {
+            return -1;
+        }
+        Cursor c = null;
+        try {
+            c = mContext.getContentResolver().query(queryUri, new String[] { column },
+                    null, null, null);
+            if (c != null && c.moveToFirst()) {
+                return c.getLong(0);
+            }
+        } catch (Exception e) {
+            LogUtils.e("Failed to resolve album of " + key, e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return -1;
+    }
+
+    private Bitmap decodeAlbumArt(long albumId, CancellationSignal signal) {
+        final Uri albumUri = ContentUris.withAppendedId(
+                MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI, albumId);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            try {
+                return scale(mContext.getContentResolver().loadThumbnail(albumUri,
+                        new Size(mSize, mSize), signal));
+            } catch (IOException e) {
+                // No art
+                return null;
+            }
+        }
+
+        String path = null;
+        Cursor c = null;
+        try {
+            c = mContext.getContentResolver().query(albumUri,
+                    new String[] { MediaStore.Audio.Albums.ALBUM_ART }, null, null, null);
+            if (c != null && c.moveToFirst()) {
+                path = c.getString(0);
+            }
+        } catch (Exception e) {
+            LogUtils.e("Failed to query album art of " + albumId, e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        if (path == null) {
+            return null;
+        }
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= mSize
+                && options.outHeight / (options.inSampleSize * 2) >= mSize) {
+            options.inSampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        return scale(BitmapFactory.decodeFile(path, options));
+    }
+
+    /**
+     * Scale down so the smaller side matches the thumbnail size.
+     */
+    private Bitmap scale(Bitmap bitmap) {
+        if (bitmap == null) {
+            return null;
+        }
+        final int side = Math.min(bitmap.getWidth(), bitmap.getHeight());
+        if (side <= mSize) {
+            return bitmap;
+        }
+        final float ratio = mSize / (float) side;
+        final Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                Math.round(bitmap.getWidth() * ratio), Math.round(bitmap.getHeight() * ratio),
+                true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+
+    private void writeDiskCache(File file, Bitmap bitmap) {
+        if (!mDiskCacheDir.exists() && !mDiskCacheDir.mkdirs()) {
+            return;
+        }
+        if (mDiskCacheUsed < 0) {
+            mDiskCacheUsed = 0;
+            for (File f : listDiskCache()) {
+                mDiskCacheUsed += f.length();
+            }
+        }
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } catch (IOException e) {
+            LogUtils.e("Failed to write album art cache", e);
+            file.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        mDiskCacheUsed += file.length();
+        if (mDiskCacheUsed > DISK_CACHE_SIZE) {
+            trimDiskCache();
+        }
+    }
+
+    /**
+     * Delete the least recently used files until the cache is below three quarters of
+     * its size.
+     */
+    private void trimDiskCache() {
+        final File[] files = listDiskCache();
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.compare(lhs.lastModified(), rhs.lastModified());
+            }
+        });
+        for (File f : files) {
+            if (mDiskCacheUsed <= DISK_CACHE_SIZE * 3 / 4) {
+                break;
+            }
+            final long length = f.length();
+            if (f.delete()) {
+                mDiskCacheUsed -= length;
+            }
+        }
+    }
+
+    private File[] listDiskCache() {
+        final File[] files = mDiskCacheDir.listFiles();
+        return files != null ? files : new File[0];
+    }
+
+    private static String hashKey(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes());
+            final StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return String.valueOf(key.hashCode());
+        }
+    }
+}
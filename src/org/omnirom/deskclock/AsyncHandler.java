@@ -18,22 +18,129 @@ package org.omnirom.deskclock;
 
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.concurrent.Executor;
 
 /**
- * Helper class for managing the background thread used to perform io operations
+ * Helper class for managing the background threads used to perform io operations
  * and handle async broadcasts.
+ *
+ * Work is split in lanes that each have their own thread, so slow bulk io like media
+ * queries can never delay time critical alarm and timer state changes.
  */
 public final class AsyncHandler {
-    private static final HandlerThread sHandlerThread = new HandlerThread("AsyncHandler");
-    private static final Handler sHandler;
+    /**
+     * Time critical work like alarm and timer state changes.
+     */
+    public static final int LANE_HIGH = 0;
+
+    /**
+     * Bulk io like media store queries.
+     */
+    public static final int LANE_BULK = 1;
+
+    private static final Lane[] sLanes = {
+            new Lane("AsyncHandler", Process.THREAD_PRIORITY_FOREGROUND),
+            new Lane("AsyncHandlerBulk", Process.THREAD_PRIORITY_BACKGROUND),
+    };
+
+    /**
+     * A single thread executing posted work in order, with queue metrics.
+     */
+    private static final class Lane implements Executor {
+        private final String mName;
+        private final Handler mHandler;
+
+        // Metrics, guarded by this
+        private int mQueued;
+        private int mMaxQueued;
+        private long mCompleted;
+        private long mTotalWait;
+        private long mMaxWait;
+
+        Lane(String name, int priority) {
+            mName = name;
+            HandlerThread thread = new HandlerThread(name, priority);
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+        }
+
+        @Override
+        public void execute(final Runnable r) {
+            executeDelayed(r, 0);
+        }
+
+        void executeDelayed(final Runnable r, long delayMillis) {
+            // Wait time is measured from the time the work is due
+            final long enqueueTime = SystemClock.uptimeMillis() + delayMillis;
+            synchronized (this) {
+                mQueued++;
+                if (mQueued > mMaxQueued) {
+                    mMaxQueued = mQueued;
+                }
+            }
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    long wait = SystemClock.uptimeMillis() - enqueueTime;
+                    synchronized (Lane.this) {
+                        mQueued--;
+                        mCompleted++;
+                        mTotalWait += wait;
+                        if (wait > mMaxWait) {
+                            mMaxWait = wait;
+                        }
+                    }
+                    r.run();
+                }
+            }, delayMillis);
+        }
 
-    static {
-        sHandlerThread.start();
-        sHandler = new Handler(sHandlerThread.getLooper());
+        synchronized void dump(PrintWriter pw) {
+            pw.println("  " + mName + ": queued=" + mQueued + " maxQueued=" + mMaxQueued
+                    + " completed=" + mCompleted
+                    + " avgWait=" + (mCompleted == 0 ? 0 : mTotalWait / mCompleted) + "ms"
+                    + " maxWait=" + mMaxWait + "ms");
+        }
     }
 
+    /**
+     * Post time critical work.
+     */
     public static void post(Runnable r) {
-        sHandler.post(r);
+        post(LANE_HIGH, r);
+    }
+
+    public static void post(int lane, Runnable r) {
+        sLanes[lane].execute(r);
+    }
+
+    /**
+     * Post work that runs once the delay elapsed. Queue depth includes work that is not
+     * due yet.
+     */
+    public static void postDelayed(int lane, Runnable r, long delayMillis) {
+        sLanes[lane].executeDelayed(r, delayMillis);
+    }
+
+    /**
+     * Executor of a lane, e.g. for {@link android.os.AsyncTask#executeOnExecutor}.
+     */
+    public static Executor getExecutor(int lane) {
+        return sLanes[lane];
+    }
+
+    /**
+     * Print queue depth and wait time metrics of all lanes.
+     */
+    public static void dump(PrintWriter pw) {
+        pw.println("Background lanes:");
+        for (Lane lane : sLanes) {
+            lane.dump(pw);
+        }
     }
 
     private AsyncHandler() {}
@@ -4,17 +4,14 @@ import android.Manifest;
 import android.app.Activity;
 import android.app.DialogFragment;
 import android.app.Fragment;
-import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
+import android.os.CancellationSignal;
 import android.provider.MediaStore;
 import android.support.v13.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
@@ -23,6 +20,7 @@ import android.view.LayoutInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.ImageView;
@@ -36,7 +34,6 @@ import org.omnirom.deskclock.provider.Alarm;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 public class BrowseActivity extends Activity implements SearchView.OnQueryTextListener,
@@ -51,9 +48,10 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
     public static final int QUERY_TYPE_FOLDER = 6;
     public static final int QUERY_TYPE_UNKNOWN = -1;
 
-    private static final String PREF_RECENT_URI = "local_recent_uri";
-    private static final int RECENT_SIZE = 10;
     private static final int PERMISSIONS_REQUEST_READ_EXTERNAL_STORAGE = 0;
+    private static final int QUERY_PAGE_SIZE = 100;
+    // Wait for typing to pause before searching
+    private static final long QUERY_DEBOUNCE_DELAY = 250;
 
     private ListView mQueryList;
     private List<QueryItem> mQueryResultList = new ArrayList<QueryItem>();
@@ -67,7 +65,6 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
     private ProgressBar mProgress;
     private View mFooterView;
     private TextView mQueryTypeText;
-    private List<QueryItem> mQueryResultListCopy = new ArrayList<QueryItem>();
     private boolean mLightTheme = true;
     private ImageView mAlarmHeader;
     private ImageView mRingtoneHeader;
@@ -84,10 +81,28 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
     private View mTrackHeaderBar;
     private View mFolderHeaderBar;
     private boolean mPreAlarm;
-    private List<QueryItem> mAlarms;
-    private List<QueryItem> mRingtones;
+    private RingtoneCatalog mRingtoneCatalog;
+    private final RingtoneCatalog.OnChangedListener mRingtoneCatalogListener =
+            new RingtoneCatalog.OnChangedListener() {
+        @Override
+        public void onRingtoneCatalogChanged() {
+            if (mQueryType == QUERY_TYPE_ALARM || mQueryType == QUERY_TYPE_RINGTONE) {
+                doQuery(mCurrentQueryText, 0);
+            }
+            if (mSelectedUri != null) {
+                resolveUri(mSelectedUri, mCurrentUri);
+            }
+        }
+    };
+    private AlbumArtLoader mAlbumArtLoader;
     private TextView mChooseFolder;
     private boolean mHasStoragePerms;
+    private boolean mQueryHasMore;
+    // Last media index entry shown, the next page continues after it
+    private MediaSearchIndex.Entry mLastSearchEntry;
+    private final QueryPipeline<List<QueryItem>> mSearchPipeline =
+            new QueryPipeline<List<QueryItem>>(
+                    AsyncHandler.getExecutor(AsyncHandler.LANE_BULK), QUERY_DEBOUNCE_DELAY);
 
     private class QueryItem {
         String mName;
@@ -95,6 +110,8 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
         String mSubText;
         int mQueryType;
         int mIconId;
+        // Media index position of the item, null for other queries
+        MediaSearchIndex.Entry mIndexEntry;
     }
 
     @Override
@@ -268,7 +285,7 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
                 QueryItem queryItem = mAdapter.getItem(position);
                 if (queryItem.mQueryType != QUERY_TYPE_UNKNOWN) {
                     mSelectedUri = queryItem.mUri;
-                    addToRecents(mSelectedUri);
+                    addToRecents(queryItem);
                     Intent intent = new Intent();
                     intent.putExtra(AlarmConstants.DATA_ALARM_EXTRA_URI, mSelectedUri);
                     intent.putExtra(AlarmConstants.DATA_ALARM_EXTRA_NAME, queryItem.mName);
@@ -279,6 +296,22 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
             }
         });
 
+        mQueryList.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                // Load the next page when the end of the list becomes visible
+                if (mQueryHasMore && !mSearchPipeline.isRunning() && totalItemCount != 0
+                        && firstVisibleItem + visibleItemCount >= totalItemCount) {
+                    doQuery(mCurrentQueryText, mQueryResultList.size());
+                }
+            }
+        });
+
         mQueryList.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
             @Override
             public boolean onItemLongClick(AdapterView<?> parent, View view,
@@ -289,8 +322,9 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
             }
         });
 
-        cacheAlarmTones();
-        cacheRingtones();
+        mRingtoneCatalog = RingtoneCatalog.getInstance(this);
+        mRingtoneCatalog.addListener(mRingtoneCatalogListener);
+        mAlbumArtLoader = AlbumArtLoader.getInstance(this);
 
         View queryArea = findViewById(R.id.query_area);
         queryArea.setVisibility(View.VISIBLE);
@@ -305,6 +339,14 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
         closeFolderPicker();
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mRingtoneCatalog.removeListener(mRingtoneCatalogListener);
+        mSearchPipeline.cancel();
+        LogUtils.v("BrowseActivity search " + mSearchPipeline);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -342,8 +384,15 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
                 } else {
                     subTitle.setVisibility(View.GONE);
                 }
-                int iconId = queryItem.mIconId;
-                icon.setImageResource(iconId);
+                if (queryItem.mQueryType == QUERY_TYPE_ALBUM
+                        || queryItem.mQueryType == QUERY_TYPE_ARTIST
+                        || queryItem.mQueryType == QUERY_TYPE_TRACK) {
+                    mAlbumArtLoader.load(icon, queryItem.mUri, queryItem.mIconId);
+                } else {
+                    mAlbumArtLoader.cancel(icon);
+                    icon.setScaleType(ImageView.ScaleType.CENTER);
+                    icon.setImageResource(queryItem.mIconId);
+                }
 
                 playIcon.setVisibility(queryItem.mQueryType != QUERY_TYPE_UNKNOWN ? View.VISIBLE : View.GONE);
                 playIcon.setOnClickListener(new View.OnClickListener() {
@@ -358,6 +407,7 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
     }
 
     private void clearList() {
+        mQueryHasMore = false;
         mQueryResultList.clear();
         mAdapter.notifyDataSetChanged();
         stopProgress();
@@ -371,14 +421,16 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
         mProgress.setVisibility(View.GONE);
     }
 
-    private static Uri getUriFromCursor(Cursor cursor) {
-        return ContentUris.withAppendedId(Uri.parse(cursor.getString(RingtoneManager.URI_COLUMN_INDEX)), cursor
-                .getLong(RingtoneManager.ID_COLUMN_INDEX));
-    }
-
     private void searchAlarms(String query, final int startIndex) {
         startProgress();
-        mQueryResultList.addAll(mAlarms);
+        for (RingtoneCatalog.Entry entry : mRingtoneCatalog.getAlarms()) {
+            QueryItem queryItem = new QueryItem();
+            queryItem.mName = entry.mTitle;
+            queryItem.mUri = entry.mUri.toString();
+            queryItem.mQueryType = QUERY_TYPE_ALARM;
+            queryItem.mIconId = R.drawable.ic_alarm;
+            mQueryResultList.add(queryItem);
+        }
         mAdapter.notifyDataSetChanged();
         mQueryList.setSelection(0);
         stopProgress();
@@ -386,198 +438,99 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
 
     private void searchRingtones(String query, final int startIndex) {
         startProgress();
-        mQueryResultList.addAll(mRingtones);
+        for (RingtoneCatalog.Entry entry : mRingtoneCatalog.getRingtones()) {
+            QueryItem queryItem = new QueryItem();
+            queryItem.mName = entry.mTitle;
+            queryItem.mUri = entry.mUri.toString();
+            queryItem.mQueryType = QUERY_TYPE_RINGTONE;
+            queryItem.mIconId = R.drawable.ic_bell;
+            mQueryResultList.add(queryItem);
+        }
         mAdapter.notifyDataSetChanged();
         mQueryList.setSelection(0);
         stopProgress();
     }
 
-    private void searchAlbums(final String query, final int startIndex) {
-        if (!mHasStoragePerms) {
-            return;
-        }
-        startProgress();
-        final List<QueryItem> queryResultList = new ArrayList<QueryItem>();
-        final int startQueryType = mQueryType;
+    private void searchAlbums(final String query, final int startIndex, boolean debounce) {
+        searchMedia(query, startIndex, MediaSearchIndex.KIND_ALBUM, debounce);
+    }
 
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(final Void... params) {
-                String[] projection = {
-                        MediaStore.Audio.Albums._ID,
-                        MediaStore.Audio.Albums.ALBUM,
-                        MediaStore.Audio.Albums.ARTIST
-                };
-
-                String selection = null;
-                if (!TextUtils.isEmpty(query)) {
-                    selection = MediaStore.Audio.Albums.ALBUM + " LIKE '%" + query + "%' ";
-                }
-                Cursor c = getContentResolver().query(
-                        MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
-                        projection,
-                        selection,
-                        null,
-                        MediaStore.Audio.Albums.ALBUM);
-
-                while (c.moveToNext()) {
-                    Uri album = Uri.withAppendedPath(
-                            MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
-                            String.valueOf(c.getLong(0)));
-                    String title = c.getString(1);
-                    String artist = c.getString(2);
-                    if (!TextUtils.isEmpty(title)) {
-                        QueryItem item = new QueryItem();
-                        item.mName = title;
-                        item.mUri = album.toString();
-                        item.mSubText = artist;
-                        item.mQueryType = QUERY_TYPE_ALBUM;
-                        item.mIconId = R.drawable.ic_album;
-                        queryResultList.add(item);
-                    }
-                }
-                c.close();
-                return null;
-            }
+    private void searchArtists(final String query, final int startIndex, boolean debounce) {
+        searchMedia(query, startIndex, MediaSearchIndex.KIND_ARTIST, debounce);
+    }
 
-            @Override
-            protected void onPostExecute(final Void result) {
-                if (mQueryType == startQueryType) {
-                    mQueryResultList.clear();
-                    mQueryResultList.addAll(queryResultList);
-                    mAdapter.notifyDataSetChanged();
-                    mQueryList.setSelection(0);
-                }
-                stopProgress();
-            }
-        }.execute();
+    private void searchTracks(final String query, final int startIndex, boolean debounce) {
+        searchMedia(query, startIndex, MediaSearchIndex.KIND_TRACK, debounce);
     }
 
-    private void searchArtists(final String query, final int startIndex) {
+    /**
+     * Load a page of albums, artists or tracks from the media index. The first page
+     * replaces the list, later pages are appended. Supersedes any running search.
+     */
+    private void searchMedia(final String query, final int startIndex, final int kind,
+                             boolean debounce) {
         if (!mHasStoragePerms) {
             return;
         }
         startProgress();
-        final List<QueryItem> queryResultList = new ArrayList<QueryItem>();
-        final int startQueryType = mQueryType;
-
-        new AsyncTask<Void, Void, Void>() {
+        final MediaSearchIndex index = MediaSearchIndex.getInstance(this);
+        final MediaSearchIndex.Entry after = startIndex == 0 ? null : mLastSearchEntry;
+        mSearchPipeline.submit(new QueryPipeline.Query<List<QueryItem>>() {
             @Override
-            protected Void doInBackground(final Void... params) {
-                String[] projection = {
-                        MediaStore.Audio.Artists._ID,
-                        MediaStore.Audio.Artists.ARTIST
-                };
-                String selection = null;
-                if (!TextUtils.isEmpty(query)) {
-                    selection = MediaStore.Audio.Artists.ARTIST + " LIKE '%" + query + "%' ";
-                }
-                Cursor c = getContentResolver().query(
-                        MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI,
-                        projection,
-                        selection,
-                        null,
-                        MediaStore.Audio.Artists.ARTIST);
-
-                while (c.moveToNext()) {
-                    Uri artist = Uri.withAppendedPath(
-                            MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI,
-                            String.valueOf(c.getLong(0)));
-                    String artistName = c.getString(1);
-                    if (!TextUtils.isEmpty(artistName) &&
-                            !artistName.equals(MediaStore.UNKNOWN_STRING)) {
-                        QueryItem item = new QueryItem();
-                        item.mName = artistName;
-                        item.mUri = artist.toString();
-                        item.mQueryType = QUERY_TYPE_ARTIST;
-                        item.mIconId = R.drawable.ic_artist;
-                        queryResultList.add(item);
+            public List<QueryItem> run(CancellationSignal signal) {
+                final List<QueryItem> queryResultList = new ArrayList<QueryItem>();
+                List<MediaSearchIndex.Entry> entries = index.search(kind, query, after,
+                        QUERY_PAGE_SIZE, signal);
+                for (MediaSearchIndex.Entry entry : entries) {
+                    QueryItem item = new QueryItem();
+                    item.mIndexEntry = entry;
+                    item.mName = entry.mName;
+                    item.mSubText = entry.mSubText;
+                    switch (kind) {
+                        case MediaSearchIndex.KIND_ALBUM:
+                            item.mUri = Uri.withAppendedPath(
+                                    MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
+                                    String.valueOf(entry.mMediaId)).toString();
+                            item.mQueryType = QUERY_TYPE_ALBUM;
+                            item.mIconId = R.drawable.ic_album;
+                            break;
+                        case MediaSearchIndex.KIND_ARTIST:
+                            item.mUri = Uri.withAppendedPath(
+                                    MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI,
+                                    String.valueOf(entry.mMediaId)).toString();
+                            item.mQueryType = QUERY_TYPE_ARTIST;
+                            item.mIconId = R.drawable.ic_artist;
+                            break;
+                        default:
+                            item.mUri = Uri.withAppendedPath(
+                                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                                    String.valueOf(entry.mMediaId)).toString();
+                            item.mQueryType = QUERY_TYPE_TRACK;
+                            item.mIconId = R.drawable.ic_track;
+                            break;
                     }
+                    queryResultList.add(item);
                 }
-                c.close();
-                return null;
+                return queryResultList;
             }
-
+        }, new QueryPipeline.Callback<List<QueryItem>>() {
             @Override
-            protected void onPostExecute(final Void result) {
-                if (mQueryType == startQueryType) {
+            public void onResult(List<QueryItem> queryResultList) {
+                if (startIndex == 0) {
                     mQueryResultList.clear();
-                    mQueryResultList.addAll(queryResultList);
-                    mAdapter.notifyDataSetChanged();
-                    mQueryList.setSelection(0);
-                }
-                stopProgress();
-            }
-        }.execute();
-    }
-
-    private void searchTracks(final String query, final int startIndex) {
-        if (!mHasStoragePerms) {
-            return;
-        }
-        startProgress();
-        final List<QueryItem> queryResultList = new ArrayList<QueryItem>();
-        final int startQueryType = mQueryType;
-
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(final Void... params) {
-                String selection = MediaStore.Audio.Media.IS_MUSIC + " != 0";
-
-                String[] projection = {
-                        MediaStore.Audio.Media._ID,
-                        MediaStore.Audio.Media.TITLE,
-                        MediaStore.Audio.Media.ARTIST,
-                        MediaStore.Audio.Media.ALBUM
-                };
-
-                if (!TextUtils.isEmpty(query)) {
-                    selection = selection + " AND " + MediaStore.Audio.Media.TITLE + " LIKE '%" + query + "%' ";
                 }
-                Cursor c = getContentResolver().query(
-                        MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                        projection,
-                        selection,
-                        null,
-                        MediaStore.Audio.Media.TITLE);
-
-                while (c.moveToNext()) {
-                    Uri track = Uri.withAppendedPath(
-                            MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                            String.valueOf(c.getLong(0)));
-                    String trackTitle = c.getString(1);
-                    String artistName = c.getString(2);
-                    String albumName = c.getString(3);
-
-                    if (!TextUtils.isEmpty(trackTitle)) {
-                        QueryItem item = new QueryItem();
-                        item.mName = trackTitle;
-                        if (!artistName.equals(MediaStore.UNKNOWN_STRING)) {
-                            item.mSubText = artistName + " - " + albumName;
-                        } else {
-                            item.mSubText = albumName;
-                        }
-                        item.mUri = track.toString();
-                        item.mQueryType = QUERY_TYPE_TRACK;
-                        item.mIconId = R.drawable.ic_track;
-                        queryResultList.add(item);
-                    }
+                mQueryResultList.addAll(queryResultList);
+                if (!queryResultList.isEmpty()) {
+                    mLastSearchEntry = queryResultList.get(queryResultList.size() - 1).mIndexEntry;
                 }
-                c.close();
-                return null;
-            }
-
-            @Override
-            protected void onPostExecute(final Void result) {
-                if (mQueryType == startQueryType) {
-                    mQueryResultList.clear();
-                    mQueryResultList.addAll(queryResultList);
-                    mAdapter.notifyDataSetChanged();
+                mQueryHasMore = queryResultList.size() == QUERY_PAGE_SIZE;
+                mAdapter.notifyDataSetChanged();
+                if (startIndex == 0) {
                     mQueryList.setSelection(0);
                 }
                 stopProgress();
             }
-        }.execute();
+        }, debounce);
     }
 
     private boolean resolveAlbum(String album, QueryItem item) {
@@ -616,35 +569,42 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
         return false;
     }
 
-    private void resolveRecents() {
-        startProgress();
-        final int startQueryType = mQueryType;
+    /**
+     * Resolve the metadata of the recents again if the media store changed since it
+     * was cached, dropping entries that do not exist anymore.
+     */
+    private void resolveRecents(final List<RecentsStore.Entry> entries) {
+        final RecentsStore recents = RecentsStore.getInstance(this);
 
-        new AsyncTask<Void, Void, Void>() {
+        new AsyncTask<Void, Void, List<QueryItem>>() {
             @Override
-            protected Void doInBackground(final Void... params) {
-                List<QueryItem> safeIter = new ArrayList<QueryItem>();
-                safeIter.addAll(mQueryResultListCopy);
-
-                for (QueryItem item : safeIter) {
-                    if (!resolveUri(item.mUri, item)) {
-                        mQueryResultListCopy.remove(item);
+            protected List<QueryItem> doInBackground(final Void... params) {
+                if (!recents.needsResolve()) {
+                    return null;
+                }
+                List<QueryItem> resolvedItems = new ArrayList<QueryItem>();
+                List<RecentsStore.Entry> resolvedEntries = new ArrayList<RecentsStore.Entry>();
+                for (RecentsStore.Entry entry : entries) {
+                    QueryItem item = new QueryItem();
+                    if (resolveUri(entry.mUri, item)) {
+                        resolvedItems.add(item);
+                        resolvedEntries.add(new RecentsStore.Entry(item.mUri, item.mName,
+                                item.mSubText, item.mQueryType, entry.mLastUsed));
                     }
                 }
-                return null;
+                recents.replace(resolvedEntries);
+                return resolvedItems;
             }
 
             @Override
-            protected void onPostExecute(final Void result) {
-                if (mQueryType == startQueryType) {
+            protected void onPostExecute(final List<QueryItem> resolvedItems) {
+                if (resolvedItems != null && mQueryType == QUERY_TYPE_RECENT) {
                     mQueryResultList.clear();
-                    mQueryResultList.addAll(mQueryResultListCopy);
-                    saveRecents(mQueryResultList);
+                    mQueryResultList.addAll(resolvedItems);
                     mAdapter.notifyDataSetChanged();
                 }
-                stopProgress();
             }
-        }.execute();
+        }.executeOnExecutor(AsyncHandler.getExecutor(AsyncHandler.LANE_BULK));
     }
 
     private boolean resolveArtist(String artist, QueryItem item) {
@@ -734,8 +694,8 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
     @Override
     public boolean onQueryTextChange(String newText) {
         mCurrentQueryText = newText;
-        clearList();
-        doQuery(newText, 0);
+        // Keep the current results until the debounced search replaces them
+        doQuery(newText, 0, true);
         return true;
     }
 
@@ -745,6 +705,14 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
     }
 
     private void doQuery(String query, int startIndex) {
+        doQuery(query, startIndex, false);
+    }
+
+    private void doQuery(String query, int startIndex, boolean debounce) {
+        if (startIndex == 0) {
+            // A new query supersedes any running search
+            mSearchPipeline.cancel();
+        }
         switch (mQueryType) {
             case QUERY_TYPE_ALARM:
                 clearList();
@@ -755,16 +723,22 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
                 searchRingtones(query, startIndex);
                 break;
             case QUERY_TYPE_ALBUM:
-                clearList();
-                searchAlbums(query, startIndex);
+                if (startIndex == 0 && !debounce) {
+                    clearList();
+                }
+                searchAlbums(query, startIndex, debounce);
                 break;
             case QUERY_TYPE_ARTIST:
-                clearList();
-                searchArtists(query, startIndex);
+                if (startIndex == 0 && !debounce) {
+                    clearList();
+                }
+                searchArtists(query, startIndex, debounce);
                 break;
             case QUERY_TYPE_TRACK:
-                clearList();
-                searchTracks(query, startIndex);
+                if (startIndex == 0 && !debounce) {
+                    clearList();
+                }
+                searchTracks(query, startIndex, debounce);
                 break;
             case QUERY_TYPE_FOLDER:
                 clearList();
@@ -784,7 +758,7 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
 
         boolean unknownTone = true;
         int iconId = -1;
-        String alarmTitle = isAlarm(uri);
+        String alarmTitle = mRingtoneCatalog.getAlarmTitle(uri);
         if (alarmTitle != null) {
             iconId = R.drawable.ic_alarm;
             icon.setImageResource(iconId);
@@ -794,7 +768,7 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
             unknownTone = false;
         }
         if (unknownTone) {
-            String ringtoneTitle = isRingtone(uri);
+            String ringtoneTitle = mRingtoneCatalog.getRingtoneTitle(uri);
             if (ringtoneTitle != null) {
                 iconId = R.drawable.ic_bell;
                 icon.setImageResource(iconId);
@@ -873,7 +847,7 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
         queryItem.mUri = uri;
 
         boolean unknownTone = true;
-        String alarmTitle = isAlarm(uri);
+        String alarmTitle = mRingtoneCatalog.getAlarmTitle(uri);
         if (alarmTitle != null) {
             queryItem.mName = alarmTitle;
             queryItem.mIconId = R.drawable.ic_alarm;
@@ -881,7 +855,7 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
             unknownTone = false;
         }
         if (unknownTone) {
-            String ringtoneTitle = isRingtone(uri);
+            String ringtoneTitle = mRingtoneCatalog.getRingtoneTitle(uri);
             if (ringtoneTitle != null) {
                 queryItem.mName = ringtoneTitle;
                 queryItem.mIconId = R.drawable.ic_bell;
@@ -935,56 +909,43 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
         }
     }
 
-    private void addToRecents(String uri) {
-        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
-        String saved = sharedPref.getString(PREF_RECENT_URI, null);
-        List<String> recentList = new ArrayList<String>();
-
-        if (saved != null) {
-            String[] savedParts = saved.split("\\|\\|");
-            recentList.addAll(Arrays.asList(savedParts));
-            int idx = recentList.indexOf(uri);
-            if (idx != -1) {
-                // always order in front if selected again
-                recentList.remove(idx);
-            }
-        }
-        recentList.add(0, uri);
-        if (recentList.size() > RECENT_SIZE) {
-            recentList = recentList.subList(0, RECENT_SIZE);
-        }
-        String recentListString = TextUtils.join("||", recentList);
-        sharedPref.edit().putString(PREF_RECENT_URI, recentListString).commit();
+    private void addToRecents(QueryItem queryItem) {
+        RecentsStore.getInstance(this).add(new RecentsStore.Entry(queryItem.mUri,
+                queryItem.mName, queryItem.mSubText, queryItem.mQueryType,
+                System.currentTimeMillis()));
     }
 
-    private void saveRecents(List<QueryItem> recentList) {
-        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
-        String saved = sharedPref.getString(PREF_RECENT_URI, null);
-
-        List<String> recentStringList = new ArrayList<String>();
-        for (QueryItem item : recentList) {
-            recentStringList.add(item.mUri);
-        }
-        String recentListString = TextUtils.join("||", recentStringList);
-        if (!saved.equals(recentListString)) {
-            sharedPref.edit().putString(PREF_RECENT_URI, recentListString).commit();
+    private void loadRecents() {
+        List<RecentsStore.Entry> entries = RecentsStore.getInstance(this).getEntries();
+        for (RecentsStore.Entry entry : entries) {
+            QueryItem queryItem = new QueryItem();
+            queryItem.mUri = entry.mUri;
+            queryItem.mName = entry.mName;
+            queryItem.mSubText = entry.mSubText;
+            queryItem.mQueryType = entry.mType;
+            queryItem.mIconId = getIconId(entry.mType);
+            mQueryResultList.add(queryItem);
         }
+        mAdapter.notifyDataSetChanged();
+        resolveRecents(entries);
     }
 
-    private void loadRecents() {
-        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
-        String saved = sharedPref.getString(PREF_RECENT_URI, null);
-        if (saved != null) {
-            startProgress();
-            String[] savedParts = saved.split("\\|\\|");
-            mQueryResultListCopy.clear();
-            for (String uri : savedParts) {
-                QueryItem queryItem = new QueryItem();
-                queryItem.mQueryType = QUERY_TYPE_UNKNOWN;
-                queryItem.mUri = uri;
-                mQueryResultListCopy.add(queryItem);
-            }
-            resolveRecents();
+    private static int getIconId(int queryType) {
+        switch (queryType) {
+            case QUERY_TYPE_ALARM:
+                return R.drawable.ic_alarm;
+            case QUERY_TYPE_RINGTONE:
+                return R.drawable.ic_bell;
+            case QUERY_TYPE_ARTIST:
+                return R.drawable.ic_artist;
+            case QUERY_TYPE_ALBUM:
+                return R.drawable.ic_album;
+            case QUERY_TYPE_TRACK:
+                return R.drawable.ic_track;
+            case QUERY_TYPE_FOLDER:
+                return R.drawable.ic_folder;
+            default:
+                return 0;
         }
     }
 
@@ -1105,82 +1066,6 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
         }
     }
 
-    private void cacheAlarmTones() {
-        mAlarms = new ArrayList<QueryItem>();
-
-        Cursor alarmsCursor = null;
-        try {
-            RingtoneManager ringtoneMgr = new RingtoneManager(this
-                    .getApplicationContext());
-            ringtoneMgr.setType(RingtoneManager.TYPE_ALARM);
-
-            alarmsCursor = ringtoneMgr.getCursor();
-            int alarmsCount = alarmsCursor.getCount();
-            if (alarmsCount == 0 && !alarmsCursor.moveToFirst()) {
-                return;
-            }
-
-            while (!alarmsCursor.isAfterLast() && alarmsCursor.moveToNext()) {
-                QueryItem queryItem = new QueryItem();
-                queryItem.mName = alarmsCursor.getString(RingtoneManager.TITLE_COLUMN_INDEX);
-                queryItem.mUri = getUriFromCursor(alarmsCursor).toString();
-                queryItem.mIconId = R.drawable.ic_alarm;
-                mAlarms.add(queryItem);
-            }
-        } finally {
-            if (alarmsCursor != null) {
-                alarmsCursor.close();
-            }
-        }
-    }
-
-    private void cacheRingtones() {
-        mRingtones = new ArrayList<QueryItem>();
-
-        Cursor alarmsCursor = null;
-        try {
-            RingtoneManager ringtoneMgr = new RingtoneManager(this
-                    .getApplicationContext());
-            ringtoneMgr.setType(RingtoneManager.TYPE_RINGTONE);
-
-            alarmsCursor = ringtoneMgr.getCursor();
-            int alarmsCount = alarmsCursor.getCount();
-            if (alarmsCount == 0 && !alarmsCursor.moveToFirst()) {
-                return;
-            }
-
-            while (!alarmsCursor.isAfterLast() && alarmsCursor.moveToNext()) {
-                QueryItem queryItem = new QueryItem();
-                queryItem.mName = alarmsCursor.getString(RingtoneManager.TITLE_COLUMN_INDEX);
-                queryItem.mUri = getUriFromCursor(alarmsCursor).toString();
-                queryItem.mIconId = R.drawable.ic_bell;
-                mRingtones.add(queryItem);
-            }
-        } finally {
-            if (alarmsCursor != null) {
-                alarmsCursor.close();
-            }
-        }
-    }
-
-    private String isAlarm(String uri) {
-        for (QueryItem i : mAlarms) {
-            if (i.mUri.equals(uri)) {
-                return i.mName;
-            }
-        }
-        return null;
-    }
-
-    private String isRingtone(String uri) {
-        for (QueryItem i : mRingtones) {
-            if (i.mUri.equals(uri)) {
-                return i.mName;
-            }
-        }
-        return null;
-    }
-
     private void launchFolderPicker() {
         closeFolderPicker();
 
@@ -1236,6 +1121,15 @@ public class BrowseActivity extends Activity implements SearchView.OnQueryTextLi
     }
 
     private void doInit() {
+        if (mHasStoragePerms) {
+            // Queued before the first query on the same lane, so it sees an up to date index
+            AsyncHandler.post(AsyncHandler.LANE_BULK, new Runnable() {
+                @Override
+                public void run() {
+                    MediaSearchIndex.getInstance(BrowseActivity.this).update();
+                }
+            });
+        }
         doQuery(mCurrentQueryText, 0);
         if (mSelectedUri != null) {
             resolveUri(mSelectedUri, mCurrentUri);
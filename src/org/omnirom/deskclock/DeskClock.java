@@ -65,7 +65,8 @@ import java.util.TimeZone;
  * DeskClock clock view for desk docks.
  */
 public class DeskClock extends Activity implements LabelDialogFragment.TimerLabelDialogHandler,
-        LabelDialogFragment.AlarmLabelDialogHandler {
+        LabelDialogFragment.AlarmLabelDialogHandler,
+        LabelDialogFragment.StopwatchLabelDialogHandler {
     private static final boolean DEBUG = false;
     private static final String LOG_TAG = "DeskClock";
     private static final String KEY_SELECTED_TAB = "selected_tab";
@@ -208,6 +209,9 @@ public class DeskClock extends Activity implements LabelDialogFragment.TimerLabe
         intentFilter.addAction(COLOR_THEME_UPDATE_INTENT);
         registerReceiver(mColorThemeReceiver, intentFilter);
 
+        // Start loading the ringtones in the background before the alarm list needs them
+        RingtoneCatalog.getInstance(this);
+
         boolean light = Utils.isLightTheme(this);
         if (light) {
             setTheme(R.style.SettingsTheme);
@@ -304,12 +308,17 @@ public class DeskClock extends Activity implements LabelDialogFragment.TimerLabe
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.menu_item_add_stopwatch).setVisible(isStopwatchTab());
         return true;
     }
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
+            case R.id.menu_item_add_stopwatch:
+                LabelDialogFragment.newStopwatchInstance("", null).show(getFragmentManager(),
+                        "label_dialog");
+                return true;
             case R.id.menu_item_spotify:
                 if (Utils.isSpotifyPluginInstalled(this)) {
                     Intent spotifyIntent = Utils.getSpotifySettingsIntent(this);
@@ -434,6 +443,7 @@ public class DeskClock extends Activity implements LabelDialogFragment.TimerLabe
             DeskClockFragment f = (DeskClockFragment) getItem(position);
             f.setFabAppearance();
             f.setLeftRightButtonAppearance();
+            invalidateOptionsMenu();
 
             notifyPageChanged(position);
         }
@@ -544,6 +554,18 @@ public class DeskClock extends Activity implements LabelDialogFragment.TimerLabe
         }
     }
 
+    /**
+     * Called by the LabelDialogFormat class after the name of a new stopwatch was entered. *
+     */
+    @Override
+    public void onDialogLabelSet(String label, String tag) {
+        Intent intent = new Intent(getApplicationContext(), StopwatchService.class);
+        intent.setAction(Stopwatches.ADD_STOPWATCH);
+        intent.putExtra(Stopwatches.EXTRA_STOPWATCH_NAME, label);
+        intent.putExtra(Stopwatches.MESSAGE_TIME, Utils.getTimeNow());
+        startService(intent);
+    }
+
     /**
      * Called by the LabelDialogFormat class after the dialog is finished. *
      */
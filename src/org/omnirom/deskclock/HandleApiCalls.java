@@ -19,12 +19,8 @@ package org.omnirom.deskclock;
 import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.database.Cursor;
-import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.text.TextUtils;
 
 import org.omnirom.deskclock.alarms.AlarmStateManager;
@@ -33,6 +29,7 @@ import org.omnirom.deskclock.provider.AlarmInstance;
 import org.omnirom.deskclock.provider.DaysOfWeek;
 import org.omnirom.deskclock.timer.TimerFullScreenFragment;
 import org.omnirom.deskclock.timer.TimerObj;
+import org.omnirom.deskclock.timer.TimerSequence;
 import org.omnirom.deskclock.timer.Timers;
 
 import java.util.ArrayList;
@@ -57,11 +54,28 @@ public class HandleApiCalls extends Activity {
     public static final long TIMER_MIN_LENGTH = 1000;
     public static final long TIMER_MAX_LENGTH = 24 * 60 * 60 * 1000;
 
-    private List<Uri> mAlarms;
+    /**
+     * Set timer extra: lengths in seconds of the segments of a round, e.g. work and rest.
+     * Creates a sequence timer, EXTRA_LENGTH is not needed then.
+     */
+    public static final String EXTRA_TIMER_SEGMENT_LENGTHS =
+            "org.omnirom.deskclock.extra.TIMER_SEGMENT_LENGTHS";
+    /**
+     * Set timer extra: optional names of the segments, in the order of their lengths.
+     */
+    public static final String EXTRA_TIMER_SEGMENT_NAMES =
+            "org.omnirom.deskclock.extra.TIMER_SEGMENT_NAMES";
+    /**
+     * Set timer extra: number of rounds of a sequence timer, one if missing.
+     */
+    public static final String EXTRA_TIMER_REPEAT_COUNT =
+            "org.omnirom.deskclock.extra.TIMER_REPEAT_COUNT";
+
+    private RingtoneCatalog mRingtoneCatalog;
 
     @Override
     protected void onCreate(Bundle icicle) {
-        cacheAlarmTones();
+        mRingtoneCatalog = RingtoneCatalog.getInstance(this);
         try {
             super.onCreate(icicle);
             Intent intent = getIntent();
@@ -147,7 +161,7 @@ public class HandleApiCalls extends Activity {
         if (alert == null) {
             alarm.alert = Utils.getDefaultAlarmUri(this);
             if (alarm.alert == null) {
-                alarm.alert = mAlarms.get(0);
+                alarm.alert = mRingtoneCatalog.getFirstAlarm();
             }
         } else if (VALUE_RINGTONE_SILENT.equals(alert) || alert.isEmpty()) {
             alarm.alert = Alarm.NO_RINGTONE_URI;
@@ -174,10 +188,39 @@ public class HandleApiCalls extends Activity {
         LogUtils.i("HandleApiCalls show stopwatch");
     }
 
+    /**
+     * @return the sequence of a set timer intent, or null if it does not ask for one or
+     * the segments are invalid
+     */
+    static TimerSequence getTimerSequence(Intent intent) {
+        final int[] lengths = intent.getIntArrayExtra(EXTRA_TIMER_SEGMENT_LENGTHS);
+        if (lengths == null) {
+            return null;
+        }
+        final String[] names = intent.getStringArrayExtra(EXTRA_TIMER_SEGMENT_NAMES);
+        final List<TimerSequence.Segment> segments =
+                new ArrayList<TimerSequence.Segment>(lengths.length);
+        for (int i = 0; i < lengths.length; i++) {
+            final String name = names != null && i < names.length ? names[i] : null;
+            segments.add(new TimerSequence.Segment(name, 1000l * lengths[i]));
+        }
+        try {
+            return new TimerSequence(segments, intent.getIntExtra(EXTRA_TIMER_REPEAT_COUNT, 1));
+        } catch (IllegalArgumentException e) {
+            LogUtils.i("Invalid timer sequence requested: " + e.getMessage());
+            return null;
+        }
+    }
+
     private void handleSetTimer(Intent intent) {
-        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        final boolean sequenceRequested = intent.hasExtra(EXTRA_TIMER_SEGMENT_LENGTHS);
+        final TimerSequence sequence = getTimerSequence(intent);
+        if (sequenceRequested && sequence == null) {
+            return;
+        }
+
         // If no length is supplied , show the timer setup view
-        if (!intent.hasExtra(EXTRA_LENGTH)) {
+        if (sequence == null && !intent.hasExtra(EXTRA_LENGTH)) {
             startActivity(new Intent(this, DeskClock.class)
                   .putExtra(DeskClock.SELECT_TAB_INTENT_EXTRA, DeskClock.TIMER_TAB_INDEX)
                   .putExtra(TimerFullScreenFragment.GOTO_SETUP_VIEW, true));
@@ -185,7 +228,8 @@ public class HandleApiCalls extends Activity {
             return;
         }
 
-        final long length = 1000l * intent.getIntExtra(EXTRA_LENGTH, 0);
+        final long length = sequence != null ? sequence.getTotalLength()
+                : 1000l * intent.getIntExtra(EXTRA_LENGTH, 0);
         if (length < TIMER_MIN_LENGTH || length > TIMER_MAX_LENGTH) {
             LogUtils.i("Invalid timer length requested: " + length);
             return;
@@ -195,10 +239,13 @@ public class HandleApiCalls extends Activity {
         TimerObj timer = null;
         // Find an existing matching time
         final ArrayList<TimerObj> timers = new ArrayList<TimerObj>();
-        TimerObj.getTimersFromSharedPrefs(prefs, timers);
+        TimerObj.getTimers(this, timers);
+        final String sequenceString = sequence != null ? sequence.toPersistentString() : null;
         for (TimerObj t : timers) {
             if (t.mSetupLength == length && (TextUtils.equals(label, t.mLabel))
-                    && t.mState == TimerObj.STATE_RESTART) {
+                    && t.mState == TimerObj.STATE_RESTART
+                    && TextUtils.equals(sequenceString,
+                            t.mSequence != null ? t.mSequence.toPersistentString() : null)) {
                 timer = t;
                 break;
             }
@@ -207,14 +254,15 @@ public class HandleApiCalls extends Activity {
         boolean skipUi = intent.getBooleanExtra(EXTRA_SKIP_UI, false);
         if (timer == null) {
             // Use a new timer
-            timer = new TimerObj(length, label, this /* context */);
+            timer = sequence != null ? new TimerObj(sequence, label, this /* context */)
+                    : new TimerObj(length, label, this /* context */);
             // Timers set without presenting UI to the user will be deleted after use
             timer.mDeleteAfterUse = skipUi;
         }
 
         timer.mState = TimerObj.STATE_RUNNING;
         timer.mStartTime = Utils.getTimeNow();
-        timer.writeToSharedPref(prefs);
+        timer.writeToDatabase(this);
 
         // Tell TimerReceiver that the timer was started
         sendBroadcast(new Intent().setAction(Timers.START_TIMER)
@@ -303,7 +351,7 @@ public class HandleApiCalls extends Activity {
                 // ringtone.
                 Uri ringToneUri = Utils.getDefaultAlarmUri(this);
                 if (ringToneUri == null) {
-                    ringToneUri = mAlarms.get(0);
+                    ringToneUri = mRingtoneCatalog.getFirstAlarm();
                 }
                 ringTone = ringToneUri.toString();
             } else if (VALUE_RINGTONE_SILENT.equals(ringTone) || ringTone.isEmpty()) {
@@ -312,28 +360,4 @@ public class HandleApiCalls extends Activity {
             args.add(ringTone);
         }
     }
-
-    private void cacheAlarmTones() {
-        mAlarms = new ArrayList<Uri>();
-
-        Cursor alarmsCursor = null;
-        try {
-            RingtoneManager ringtoneMgr = new RingtoneManager(this);
-            ringtoneMgr.setType(RingtoneManager.TYPE_ALARM);
-
-            alarmsCursor = ringtoneMgr.getCursor();
-            int alarmsCount = alarmsCursor.getCount();
-            if (alarmsCount == 0 && !alarmsCursor.moveToFirst()) {
-                return;
-            }
-            while (!alarmsCursor.isAfterLast() && alarmsCursor.moveToNext()) {
-                int currentPosition = alarmsCursor.getPosition();
-                mAlarms.add(ringtoneMgr.getRingtoneUri(currentPosition));
-            }
-        } finally {
-            if (alarmsCursor != null) {
-                alarmsCursor.close();
-            }
-        }
-    }
 }
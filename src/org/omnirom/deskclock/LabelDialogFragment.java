@@ -46,11 +46,13 @@ public class LabelDialogFragment extends DialogFragment implements
     private static final String KEY_LABEL = "label";
     private static final String KEY_ALARM = "alarm";
     private static final String KEY_TIMER = "timer";
+    private static final String KEY_STOPWATCH = "stopwatch";
     private static final String KEY_TAG = "tag";
 
     private EditText mLabelBox;
     private Alarm mAlarm;
     private TimerObj mTimer;
+    private boolean mStopwatch;
     private String mTag;
     private String mLabel;
 
@@ -74,12 +76,26 @@ public class LabelDialogFragment extends DialogFragment implements
         return frag;
     }
 
+    /**
+     * Ask for the name of a new named stopwatch.
+     */
+    public static LabelDialogFragment newStopwatchInstance(String label, String tag) {
+        final LabelDialogFragment frag = new LabelDialogFragment();
+        Bundle args = new Bundle();
+        args.putString(KEY_LABEL, label);
+        args.putBoolean(KEY_STOPWATCH, true);
+        args.putString(KEY_TAG, tag);
+        frag.setArguments(args);
+        return frag;
+    }
+
     @Override
     public Dialog onCreateDialog(Bundle savedInstanceState) {
         Bundle bundle = getArguments();
         mLabel = bundle.getString(KEY_LABEL);
         mAlarm = bundle.getParcelable(KEY_ALARM);
         mTimer = bundle.getParcelable(KEY_TIMER);
+        mStopwatch = bundle.getBoolean(KEY_STOPWATCH);
         mTag = bundle.getString(KEY_TAG);
 
         AlertDialog.Builder builder = new AlertDialog.Builder(getActivity())
@@ -148,6 +164,8 @@ public class LabelDialogFragment extends DialogFragment implements
             set(alarm, tag, label);
         } else if (timer != null) {
             set(timer, tag, label);
+        } else if (mStopwatch) {
+            set(tag, label);
         } else {
             LogUtils.e("No alarm or timer available.");
         }
@@ -177,6 +195,17 @@ public class LabelDialogFragment extends DialogFragment implements
         dismiss();
     }
 
+    private void set(String tag, String label) {
+        final Activity activity = getActivity();
+        if (activity instanceof StopwatchLabelDialogHandler) {
+            ((StopwatchLabelDialogHandler) activity).onDialogLabelSet(label, tag);
+        } else {
+            LogUtils.e("Error! Activities that use LabelDialogFragment must implement "
+                    + "StopwatchLabelDialogHandler");
+        }
+        dismiss();
+    }
+
     interface AlarmLabelDialogHandler {
         void onDialogLabelSet(Alarm alarm, String label, String tag);
     }
@@ -184,4 +213,8 @@ public class LabelDialogFragment extends DialogFragment implements
     interface TimerLabelDialogHandler {
         void onDialogLabelSet(TimerObj timer, String label, String tag);
     }
+
+    interface StopwatchLabelDialogHandler {
+        void onDialogLabelSet(String label, String tag);
+    }
 }
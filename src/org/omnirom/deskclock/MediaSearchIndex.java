@@ -0,0 +1,497 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+import android.provider.MediaStore;
+import android.text.TextUtils;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * App side full text index of the music in the media store, used by the browse search.
+ *
+ * Tracks, albums and artists are stored as rows of an items table indexed by kind and a
+ * precomputed collation key, and their words in an FTS4 table joined by rowid. Queries
+ * are split in words that are all matched as prefixes, results whose name starts with
+ * the query are ranked first. Pages continue after the last entry of the previous page
+ * instead of skipping an offset, so later pages do not sort the skipped rows again.
+ *
+ * The index is rebuilt when a cheap signature of the media store changes. It is checked
+ * when the browse screen opens and on the bulk lane after every media store change.
+ */
+public final class MediaSearchIndex {
+    public static final int KIND_TRACK = 0;
+    public static final int KIND_ALBUM = 1;
+    public static final int KIND_ARTIST = 2;
+
+    private static final String DATABASE_NAME = "media_index.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String ITEMS_TABLE_NAME = "media_items";
+    private static final String FTS_TABLE_NAME = "media_fts";
+    private static final String META_TABLE_NAME = "media_meta";
+
+    private static final String COLUMN_NAME = "name";
+    private static final String COLUMN_ARTIST = "artist";
+    private static final String COLUMN_ALBUM = "album";
+    private static final String COLUMN_KIND = "kind";
+    private static final String COLUMN_MEDIA_ID = "media_id";
+    private static final String COLUMN_SUBTEXT = "subtext";
+    private static final String COLUMN_SORT_KEY = "sort_key";
+    private static final String COLUMN_SIGNATURE = "signature";
+
+    // Wait for media scans to settle before checking the index
+    private static final long UPDATE_DELAY = 5 * 1000;
+
+    private static MediaSearchIndex sInstance;
+
+    private final Context mContext;
+    private final DatabaseHelper mHelper;
+    private boolean mUpdateScheduled;
+
+    private final ContentObserver mMediaObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            scheduleUpdate();
+        }
+    };
+
+    /**
+     * A search result. Also the position to continue the search after.
+     */
+    public static final class Entry {
+        public final long mMediaId;
+        public final String mName;
+        public final String mSubText;
+        final long mRowId;
+        final String mSortKey;
+        final boolean mStartsWithQuery;
+
+        Entry(long mediaId, String name, String subText, long rowId, String sortKey,
+                boolean startsWithQuery) {
+            mMediaId = mediaId;
+            mName = name;
+            mSubText = subText;
+            mRowId = rowId;
+            mSortKey = sortKey;
+            mStartsWithQuery = startsWithQuery;
+        }
+    }
+
+    private static final class DatabaseHelper extends SQLiteOpenHelper {
+        DatabaseHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + ITEMS_TABLE_NAME + " (" +
+                    "_id INTEGER PRIMARY KEY, " +
+                    COLUMN_KIND + " INTEGER NOT NULL, " +
+                    COLUMN_MEDIA_ID + " INTEGER NOT NULL, " +
+                    COLUMN_NAME + " TEXT NOT NULL, " +
+                    COLUMN_SUBTEXT + " TEXT, " +
+                    COLUMN_SORT_KEY + " TEXT NOT NULL);");
+            db.execSQL("CREATE INDEX " + ITEMS_TABLE_NAME + "_sort_index ON " +
+                    ITEMS_TABLE_NAME + " (" + COLUMN_KIND + ", " + COLUMN_SORT_KEY + ", _id);");
+            // Rows share the docid with their item
+            db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4(" +
+                    COLUMN_NAME + ", " +
+                    COLUMN_ARTIST + ", " +
+                    COLUMN_ALBUM + ", " +
+                    "prefix=\"1,2,3\", " +
+                    "tokenize=unicode61);");
+            db.execSQL("CREATE TABLE " + META_TABLE_NAME + " (" +
+                    COLUMN_SIGNATURE + " TEXT);");
+            LogUtils.i("Media index created");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // Only a cache of the media store, rebuild it
+            db.execSQL("DROP TABLE IF EXISTS " + ITEMS_TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + FTS_TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + META_TABLE_NAME);
+            onCreate(db);
+        }
+    }
+
+    private MediaSearchIndex(Context context) {
+        mContext = context.getApplicationContext();
+        mHelper = new DatabaseHelper(mContext);
+        final ContentResolver resolver = mContext.getContentResolver();
+        resolver.registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true,
+                mMediaObserver);
+        resolver.registerContentObserver(MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI, true,
+                mMediaObserver);
+        resolver.registerContentObserver(MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI, true,
+                mMediaObserver);
+    }
+
+    public static synchronized MediaSearchIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MediaSearchIndex(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Rebuild the index if the media store changed since it was built. Must not be called
+     * on the main thread.
+     */
+    public synchronized void update() {
+        final String signature = querySignature();
+        if (signature == null) {
+            return;
+        }
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        Cursor c = db.query(META_TABLE_NAME, new String[] {COLUMN_SIGNATURE},
+                null, null, null, null, null);
+        try {
+            if (c.moveToFirst() && signature.equals(c.getString(0))) {
+                return;
+            }
+        } finally {
+            c.close();
+        }
+        rebuild(db, signature);
+    }
+
+    /**
+     * Check the index on the bulk lane once the media store stopped changing.
+     */
+    private synchronized void scheduleUpdate() {
+        if (mUpdateScheduled) {
+            return;
+        }
+        mUpdateScheduled = true;
+        AsyncHandler.postDelayed(AsyncHandler.LANE_BULK, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MediaSearchIndex.this) {
+                    mUpdateScheduled = false;
+                }
+                update();
+            }
+        }, UPDATE_DELAY);
+    }
+
+    /**
+     * Search the index, ordered by name with names starting with the query first. Must
+     * not be called on the main thread.
+     *
+     * @param kind one of the kind constants
+     * @param query words to match as prefixes, empty for all entries
+     * @param after last entry of the previous page of the same search, null for the first
+     * @param limit maximum number of results
+     * @param signal cancels the search, it then throws
+     *               {@link android.os.OperationCanceledException}
+     */
+    public List<Entry> search(int kind, String query, Entry after, int limit,
+            CancellationSignal signal) {
+        final SQLiteDatabase db = mHelper.getReadableDatabase();
+        final String match = createMatchExpression(kind, query);
+        final String prefix = match != null ? escapeLike(query.trim()) + "%" : null;
+        final String startsWith = match != null
+                ? "(i." + COLUMN_NAME + " LIKE ? ESCAPE '\\')" : "0";
+        final List<String> args = new ArrayList<String>();
+
+        final StringBuilder sql = new StringBuilder("SELECT i._id, i." + COLUMN_MEDIA_ID +
+                ", i." + COLUMN_NAME + ", i." + COLUMN_SUBTEXT + ", i." + COLUMN_SORT_KEY +
+                ", " + startsWith);
+        if (match == null) {
+            sql.append(" FROM " + ITEMS_TABLE_NAME + " i WHERE ");
+        } else {
+            args.add(prefix);
+            sql.append(" FROM " + FTS_TABLE_NAME + " JOIN " + ITEMS_TABLE_NAME + " i" +
+                    " ON i._id = " + FTS_TABLE_NAME + ".docid" +
+                    " WHERE " + FTS_TABLE_NAME + " MATCH ? AND ");
+            args.add(match);
+        }
+        sql.append("i." + COLUMN_KIND + " = " + kind);
+
+        if (after != null) {
+            // Continue after the last entry in the order below
+            final String afterKey = "(i." + COLUMN_SORT_KEY + " > ? OR (i." + COLUMN_SORT_KEY +
+                    " = ? AND i._id > " + after.mRowId + "))";
+            if (match == null) {
+                sql.append(" AND " + afterKey);
+            } else {
+                sql.append(" AND (NOT " + startsWith + (after.mStartsWithQuery ? " OR " : " AND ")
+                        + afterKey + ")");
+                args.add(prefix);
+            }
+            args.add(after.mSortKey);
+            args.add(after.mSortKey);
+        }
+
+        sql.append(" ORDER BY ");
+        if (match != null) {
+            sql.append(startsWith + " DESC, ");
+            args.add(prefix);
+        }
+        sql.append("i." + COLUMN_SORT_KEY + ", i._id LIMIT " + limit);
+
+        final List<Entry> entries = new ArrayList<Entry>();
+        final Cursor c = db.rawQuery(sql.toString(), args.toArray(new String[args.size()]),
+                signal);
+        try {
+            while (c.moveToNext()) {
+                entries.add(new Entry(c.getLong(1), c.getString(2), c.getString(3),
+                        c.getLong(0), c.getString(4), c.getInt(5) != 0));
+            }
+        } finally {
+            c.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Build a MATCH expression of prefix queries for all words of the query, restricted
+     * to the columns searched for a kind. Returns null if there are no words.
+     */
+    private static String createMatchExpression(int kind, String query) {
+        if (TextUtils.isEmpty(query)) {
+            return null;
+        }
+        final String column = kind == KIND_TRACK ? null : COLUMN_NAME;
+        final StringBuilder match = new StringBuilder();
+        for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (match.length() != 0) {
+                match.append(' ');
+            }
+            if (column != null) {
+                match.append(column).append(':');
+            }
+            match.append(word).append('*');
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
+    private static String escapeLike(String text) {
+        return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    /**
+     * Cheap fingerprint of the music in the media store, changes on any insert, delete or
+     * modification of a track.
+     */
+    private String querySignature() {
+        final ContentResolver resolver = mContext.getContentResolver();
+        Cursor c = null;
+        try {
+            c = resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                    new String[] {
+                            "count(*)",
+                            "max(" + MediaStore.Audio.Media._ID + ")",
+                            "max(" + MediaStore.Audio.Media.DATE_MODIFIED + ")"
+                    },
+                    MediaStore.Audio.Media.IS_MUSIC + " != 0", null, null);
+        } catch (SecurityException e) {
+            LogUtils.e("No permission to index media", e);
+        }
+        if (c == null) {
+            return null;
+        }
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            // The sort keys depend on the locale
+            return MediaStore.getVersion(mContext) + ":" + c.getLong(0) + ":" + c.getLong(1)
+                    + ":" + c.getLong(2) + ":" + Locale.getDefault();
+        } finally {
+            c.close();
+        }
+    }
+
+    private void rebuild(SQLiteDatabase db, String signature) {
+        final long start = System.currentTimeMillis();
+        final ContentResolver resolver = mContext.getContentResolver();
+        final Collator collator = Collator.getInstance();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            db.delete(ITEMS_TABLE_NAME, null, null);
+            db.delete(FTS_TABLE_NAME, null, null);
+            final Inserter insert = new Inserter(db, collator);
+
+            Cursor c = resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                    new String[] {
+                            MediaStore.Audio.Media._ID,
+                            MediaStore.Audio.Media.TITLE,
+                            MediaStore.Audio.Media.ARTIST,
+                            MediaStore.Audio.Media.ALBUM
+                    },
+                    MediaStore.Audio.Media.IS_MUSIC + " != 0", null, null);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        String title = c.getString(1);
+                        if (TextUtils.isEmpty(title)) {
+                            continue;
+                        }
+                        String artist = c.getString(2);
+                        String album = c.getString(3);
+                        String subText = MediaStore.UNKNOWN_STRING.equals(artist)
+                                ? album : artist + " - " + album;
+                        insert.insert(title, artist, album, KIND_TRACK, c.getLong(0), subText);
+                        count++;
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+
+            c = resolver.query(MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
+                    new String[] {
+                            MediaStore.Audio.Albums._ID,
+                            MediaStore.Audio.Albums.ALBUM,
+                            MediaStore.Audio.Albums.ARTIST
+                    },
+                    null, null, null);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        String album = c.getString(1);
+                        if (TextUtils.isEmpty(album)) {
+                            continue;
+                        }
+                        String artist = c.getString(2);
+                        insert.insert(album, artist, null, KIND_ALBUM, c.getLong(0), artist);
+                        count++;
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+
+            c = resolver.query(MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI,
+                    new String[] {
+                            MediaStore.Audio.Artists._ID,
+                            MediaStore.Audio.Artists.ARTIST
+                    },
+                    null, null, null);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        String artist = c.getString(1);
+                        if (TextUtils.isEmpty(artist) || artist.equals(MediaStore.UNKNOWN_STRING)) {
+                            continue;
+                        }
+                        insert.insert(artist, null, null, KIND_ARTIST, c.getLong(0), null);
+                        count++;
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            insert.close();
+
+            db.delete(META_TABLE_NAME, null, null);
+            ContentValues values = new ContentValues(1);
+            values.put(COLUMN_SIGNATURE, signature);
+            db.insert(META_TABLE_NAME, null, values);
+            db.setTransactionSuccessful();
+        } catch (SecurityException e) {
+            LogUtils.e("No permission to index media", e);
+        } finally {
+            db.endTransaction();
+        }
+        LogUtils.i("Media index rebuilt with " + count + " entries in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Inserts an item and its words with the same rowid.
+     */
+    private static final class Inserter {
+        private final SQLiteStatement mItem;
+        private final SQLiteStatement mWords;
+        private final Collator mCollator;
+
+        Inserter(SQLiteDatabase db, Collator collator) {
+            mItem = db.compileStatement("INSERT INTO " + ITEMS_TABLE_NAME +
+                    " (" + COLUMN_KIND + ", " + COLUMN_MEDIA_ID + ", " + COLUMN_NAME + ", " +
+                    COLUMN_SUBTEXT + ", " + COLUMN_SORT_KEY + ") VALUES (?, ?, ?, ?, ?)");
+            mWords = db.compileStatement("INSERT INTO " + FTS_TABLE_NAME +
+                    " (docid, " + COLUMN_NAME + ", " + COLUMN_ARTIST + ", " + COLUMN_ALBUM + ")" +
+                    " VALUES (?, ?, ?, ?)");
+            mCollator = collator;
+        }
+
+        void insert(String name, String artist, String album, int kind, long mediaId,
+                String subText) {
+            mItem.clearBindings();
+            mItem.bindLong(1, kind);
+            mItem.bindLong(2, mediaId);
+            mItem.bindString(3, name);
+            bindStringOrNull(mItem, 4, subText);
+            mItem.bindString(5, sortKey(name));
+            final long rowId = mItem.executeInsert();
+
+            mWords.clearBindings();
+            mWords.bindLong(1, rowId);
+            mWords.bindString(2, name);
+            bindStringOrNull(mWords, 3, artist);
+            bindStringOrNull(mWords, 4, album);
+            mWords.executeInsert();
+        }
+
+        /**
+         * Collation key of the locale as hex, so SQLite's binary text order is the
+         * localized order.
+         */
+        private String sortKey(String name) {
+            final byte[] key = mCollator.getCollationKey(name).toByteArray();
+            final StringBuilder hex = new StringBuilder(key.length * 2);
+            for (byte b : key) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        }
+
+        void close() {
+            mItem.close();
+            mWords.close();
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+}
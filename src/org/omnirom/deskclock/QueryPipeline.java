@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs background queries for a UI where each new query supersedes the previous one.
+ *
+ * Queries can be debounced, so fast typing only starts the last one. Submitting a query
+ * cancels the running one through its {@link CancellationSignal}, and results are only
+ * published if no newer query was submitted meanwhile. Must be used from the main thread.
+ */
+final class QueryPipeline<T> {
+    /**
+     * Work of a query, runs on the executor.
+     */
+    interface Query<T> {
+        T run(CancellationSignal signal);
+    }
+
+    /**
+     * Receives the result of the newest query on the main thread.
+     */
+    interface Callback<T> {
+        void onResult(T result);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Executor mExecutor;
+    private final long mDebounceDelay;
+
+    // Tag of the newest query, results of older ones are dropped
+    private int mGeneration;
+    private Runnable mPendingStart;
+    private CancellationSignal mRunningSignal;
+
+    // Metrics
+    private int mStarted;
+    private int mDebounced;
+    private int mCancelled;
+    private int mCompleted;
+
+    /**
+     * @param executor runs the queries
+     * @param debounceDelay delay in ms of debounced queries
+     */
+    QueryPipeline(Executor executor, long debounceDelay) {
+        mExecutor = executor;
+        mDebounceDelay = debounceDelay;
+    }
+
+    /**
+     * Submit a query superseding all previous ones.
+     *
+     * @param debounce true to start the query only if no other one is submitted within
+     *                 the debounce delay
+     */
+    void submit(final Query<T> query, final Callback<T> callback, boolean debounce) {
+        cancel();
+        final int generation = mGeneration;
+        mPendingStart = new Runnable() {
+            @Override
+            public void run() {
+                mPendingStart = null;
+                start(generation, query, callback);
+            }
+        };
+        if (debounce) {
+            mHandler.postDelayed(mPendingStart, mDebounceDelay);
+        } else {
+            mPendingStart.run();
+        }
+    }
+
+    /**
+     * Cancel pending and running queries, their results are never published.
+     */
+    void cancel() {
+        mGeneration++;
+        if (mPendingStart != null) {
+            mHandler.removeCallbacks(mPendingStart);
+            mPendingStart = null;
+            mDebounced++;
+        }
+        if (mRunningSignal != null) {
+            mRunningSignal.cancel();
+            mRunningSignal = null;
+            mCancelled++;
+        }
+    }
+
+    boolean isRunning() {
+        return mPendingStart != null || mRunningSignal != null;
+    }
+
+    @Override
+    public String toString() {
+        return "QueryPipeline{started=" + mStarted + ", debounced=" + mDebounced
+                + ", cancelled=" + mCancelled + ", completed=" + mCompleted + "}";
+    }
+
+    private void start(final int generation, final Query<T> query, final Callback<T> callback) {
+        final CancellationSignal signal = new CancellationSignal();
+        mRunningSignal = signal;
+        mStarted++;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (signal.isCanceled()) {
+                    return;
+                }
+                final T result;
+                try {
+                    result = query.run(signal);
+                } catch (OperationCanceledException e) {
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration || signal.isCanceled()) {
+                            return;
+                        }
+                        mRunningSignal = null;
+                        mCompleted++;
+                        callback.onResult(result);
+                    }
+                });
+            }
+        });
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.provider.MediaStore;
+import android.util.AtomicFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Most recently used sounds of the browse screen, with their display metadata.
+ *
+ * The entries are kept in memory in access order, so promoting an entry is a single
+ * map operation, and written to a small file in the background after every change.
+ * The metadata is stored with the entries so the recents can be shown without
+ * querying the media store. It is only resolved again after the media store changed.
+ */
+final class RecentsStore {
+    /**
+     * A recently used sound.
+     */
+    static final class Entry {
+        final String mUri;
+        final String mName;
+        final String mSubText;
+        // One of the BrowseActivity query types
+        final int mType;
+        final long mLastUsed;
+
+        Entry(String uri, String name, String subText, int type, long lastUsed) {
+            mUri = uri;
+            mName = name;
+            mSubText = subText;
+            mType = type;
+            mLastUsed = lastUsed;
+        }
+    }
+
+    private static final String RECENTS_FILE = "browse_recents.dat";
+    private static final int RECENTS_FILE_VERSION = 1;
+    // Old "||" separated list in the default preferences
+    private static final String PREF_RECENT_URI = "local_recent_uri";
+    private static final int RECENT_SIZE = 10;
+
+    private static RecentsStore sInstance;
+
+    private final Context mContext;
+    // Least recently used first
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(RECENT_SIZE + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > RECENT_SIZE;
+                }
+            };
+    // Media store version the metadata was resolved with
+    private String mMediaVersion = "";
+
+    private RecentsStore(Context context) {
+        mContext = context.getApplicationContext();
+        if (!load()) {
+            importPreference();
+        }
+    }
+
+    static synchronized RecentsStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new RecentsStore(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the entries, most recently used first
+     */
+    synchronized List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<Entry>(mEntries.values());
+        Collections.reverse(entries);
+        return entries;
+    }
+
+    /**
+     * Add an entry or move it to the front, dropping the least recently used one.
+     */
+    synchronized void add(Entry entry) {
+        mEntries.put(entry.mUri, entry);
+        saveAsync();
+    }
+
+    /**
+     * Replace all entries with freshly resolved ones and remember the media store
+     * version they were resolved with. Must not be called on the main thread.
+     *
+     * @param entries entries most recently used first
+     */
+    synchronized void replace(List<Entry> entries) {
+        mEntries.clear();
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Entry entry = entries.get(i);
+            mEntries.put(entry.mUri, entry);
+        }
+        mMediaVersion = getMediaVersion();
+        saveAsync();
+    }
+
+    /**
+     * @return true if the media store changed since the metadata was resolved or some
+     * entries were never resolved. Must not be called on the main thread.
+     */
+    synchronized boolean needsResolve() {
+        for (Entry entry : mEntries.values()) {
+            if (entry.mType == BrowseActivity.QUERY_TYPE_UNKNOWN) {
+                return true;
+            }
+        }
+        return !mMediaVersion.equals(getMediaVersion());
+    }
+
+    private String getMediaVersion() {
+        try {
+            String version = MediaStore.getVersion(mContext);
+            return version != null ? version : "";
+        } catch (Exception e) {
+            // No external storage or permissions
+            return "";
+        }
+    }
+
+    private boolean load() {
+        AtomicFile file = getFile();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(file.openRead()));
+            if (in.readInt() != RECENTS_FILE_VERSION) {
+                return false;
+            }
+            mMediaVersion = in.readUTF();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String uri = in.readUTF();
+                String name = in.readUTF();
+                String subText = in.readBoolean() ? in.readUTF() : null;
+                int type = in.readInt();
+                long lastUsed = in.readLong();
+                mEntries.put(uri, new Entry(uri, name, subText, type, lastUsed));
+            }
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            LogUtils.e("Failed to read recents", e);
+            mEntries.clear();
+            return false;
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Take over the recents of older versions. They have no metadata yet, so they are
+     * marked to be resolved.
+     */
+    private void importPreference() {
+        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String saved = sharedPref.getString(PREF_RECENT_URI, null);
+        if (saved == null) {
+            return;
+        }
+        String[] savedParts = saved.split("\\|\\|");
+        for (int i = savedParts.length - 1; i >= 0; i--) {
+            String uri = savedParts[i];
+            mEntries.put(uri, new Entry(uri, "", null, BrowseActivity.QUERY_TYPE_UNKNOWN, 0));
+        }
+        sharedPref.edit().remove(PREF_RECENT_URI).apply();
+        saveAsync();
+    }
+
+    private void saveAsync() {
+        final List<Entry> entries = new ArrayList<Entry>(mEntries.values());
+        final String mediaVersion = mMediaVersion;
+        AsyncHandler.post(AsyncHandler.LANE_BULK, new Runnable() {
+            @Override
+            public void run() {
+                write(entries, mediaVersion);
+            }
+        });
+    }
+
+    /**
+     * Replace the file atomically. Runs on a single lane, so writes keep their order.
+     */
+    private void write(List<Entry> entries, String mediaVersion) {
+        AtomicFile file = getFile();
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(RECENTS_FILE_VERSION);
+            out.writeUTF(mediaVersion);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.mUri);
+                out.writeUTF(entry.mName != null ? entry.mName : "");
+                out.writeBoolean(entry.mSubText != null);
+                if (entry.mSubText != null) {
+                    out.writeUTF(entry.mSubText);
+                }
+                out.writeInt(entry.mType);
+                out.writeLong(entry.mLastUsed);
+            }
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            LogUtils.e("Failed to write recents", e);
+            file.failWrite(stream);
+        }
+    }
+
+    private AtomicFile getFile() {
+        return new AtomicFile(new File(mContext.getFilesDir(), RECENTS_FILE));
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.provider.Settings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Process wide catalog of the system alarm tones and ringtones.
+ *
+ * The ringtone manager is only walked once, on the bulk background lane, and again after
+ * the media store changed. Each walk builds an immutable snapshot that is published as a
+ * whole, so accessors never block and keep serving the previous snapshot while a new one
+ * is built. Lookups by URI are hash map lookups. Until the first walk finished the catalog
+ * is empty, UI code registers a {@link OnChangedListener} to refresh once it is loaded.
+ * Work posted to the bulk lane after {@link #getInstance} always sees a loaded catalog.
+ */
+public final class RingtoneCatalog {
+    /**
+     * A system sound.
+     */
+    public static final class Entry {
+        public final Uri mUri;
+        public final String mTitle;
+
+        Entry(Uri uri, String title) {
+            mUri = uri;
+            mTitle = title;
+        }
+    }
+
+    /**
+     * The sounds of one walk of the ringtone manager, never modified once published.
+     */
+    private static final class Snapshot {
+        final List<Entry> mAlarms;
+        final List<Entry> mRingtones;
+        final HashMap<String, Entry> mAlarmsByUri;
+        final HashMap<String, Entry> mRingtonesByUri;
+
+        Snapshot(List<Entry> alarms, HashMap<String, Entry> alarmsByUri,
+                List<Entry> ringtones, HashMap<String, Entry> ringtonesByUri) {
+            mAlarms = Collections.unmodifiableList(alarms);
+            mAlarmsByUri = alarmsByUri;
+            mRingtones = Collections.unmodifiableList(ringtones);
+            mRingtonesByUri = ringtonesByUri;
+        }
+    }
+
+    /**
+     * Called on the main thread after a new snapshot was published.
+     */
+    public interface OnChangedListener {
+        void onRingtoneCatalogChanged();
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(new ArrayList<Entry>(),
+            new HashMap<String, Entry>(), new ArrayList<Entry>(), new HashMap<String, Entry>());
+
+    private static RingtoneCatalog sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Only accessed on the main thread
+    private final List<OnChangedListener> mListeners = new ArrayList<OnChangedListener>();
+    // Null until the first walk finished
+    private volatile Snapshot mSnapshot;
+    // Guarded by this
+    private boolean mLoadScheduled;
+
+    private final Runnable mNotifyListeners = new Runnable() {
+        @Override
+        public void run() {
+            for (OnChangedListener listener : new ArrayList<OnChangedListener>(mListeners)) {
+                listener.onRingtoneCatalogChanged();
+            }
+        }
+    };
+
+    private final Runnable mLoad = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (RingtoneCatalog.this) {
+                mLoadScheduled = false;
+            }
+            load();
+        }
+    };
+
+    private RingtoneCatalog(Context context) {
+        mContext = context.getApplicationContext();
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidate();
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(
+                MediaStore.Audio.Media.INTERNAL_CONTENT_URI, true, observer);
+        mContext.getContentResolver().registerContentObserver(
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, observer);
+        scheduleLoad();
+    }
+
+    /**
+     * Returns the catalog, the first call starts loading it in the background.
+     */
+    public static synchronized RingtoneCatalog getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new RingtoneCatalog(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Must be called on the main thread.
+     */
+    public void addListener(OnChangedListener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Must be called on the main thread.
+     */
+    public void removeListener(OnChangedListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return false until the ringtone manager was walked for the first time
+     */
+    public boolean isLoaded() {
+        return mSnapshot != null;
+    }
+
+    /**
+     * @return the alarm tones in ringtone manager order
+     */
+    public List<Entry> getAlarms() {
+        return getSnapshot().mAlarms;
+    }
+
+    /**
+     * @return the ringtones in ringtone manager order
+     */
+    public List<Entry> getRingtones() {
+        return getSnapshot().mRingtones;
+    }
+
+    /**
+     * @return the first alarm tone, the system default alarm sound while not loaded yet
+     * or null if there is none
+     */
+    public Uri getFirstAlarm() {
+        final Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            return Settings.System.DEFAULT_ALARM_ALERT_URI;
+        }
+        return snapshot.mAlarms.size() != 0 ? snapshot.mAlarms.get(0).mUri : null;
+    }
+
+    public boolean isAlarm(Uri uri) {
+        return uri != null && getAlarmTitle(uri.toString()) != null;
+    }
+
+    public boolean isRingtone(Uri uri) {
+        return uri != null && getRingtoneTitle(uri.toString()) != null;
+    }
+
+    /**
+     * @return the title of an alarm tone or null if the URI is not one
+     */
+    public String getAlarmTitle(String uri) {
+        final Entry entry = getSnapshot().mAlarmsByUri.get(uri);
+        return entry != null ? entry.mTitle : null;
+    }
+
+    /**
+     * @return the title of a ringtone or null if the URI is not one
+     */
+    public String getRingtoneTitle(String uri) {
+        final Entry entry = getSnapshot().mRingtonesByUri.get(uri);
+        return entry != null ? entry.mTitle : null;
+    }
+
+    private void invalidate() {
+        if (mSnapshot != null) {
+            LogUtils.v("Ringtone catalog invalidated");
+            scheduleLoad();
+        }
+    }
+
+    private synchronized void scheduleLoad() {
+        if (!mLoadScheduled) {
+            mLoadScheduled = true;
+            AsyncHandler.post(AsyncHandler.LANE_BULK, mLoad);
+        }
+    }
+
+    private Snapshot getSnapshot() {
+        final Snapshot snapshot = mSnapshot;
+        return snapshot != null ? snapshot : EMPTY;
+    }
+
+    // Only runs on the bulk lane, which serializes the walks
+    private void load() {
+        final HashMap<String, Entry> alarmsByUri = new HashMap<String, Entry>();
+        final HashMap<String, Entry> ringtonesByUri = new HashMap<String, Entry>();
+        final List<Entry> alarms = query(RingtoneManager.TYPE_ALARM, alarmsByUri);
+        final List<Entry> ringtones = query(RingtoneManager.TYPE_RINGTONE, ringtonesByUri);
+        mSnapshot = new Snapshot(alarms, alarmsByUri, ringtones, ringtonesByUri);
+        LogUtils.v("Ringtone catalog loaded " + alarms.size() + " alarms "
+                + ringtones.size() + " ringtones");
+        mHandler.post(mNotifyListeners);
+    }
+
+    private List<Entry> query(int type, HashMap<String, Entry> byUri) {
+        final List<Entry> entries = new ArrayList<Entry>();
+        Cursor cursor = null;
+        try {
+            RingtoneManager ringtoneMgr = new RingtoneManager(mContext);
+            ringtoneMgr.setType(type);
+
+            cursor = ringtoneMgr.getCursor();
+            while (cursor.moveToNext()) {
+                final Uri uri = ringtoneMgr.getRingtoneUri(cursor.getPosition());
+                final Entry entry = new Entry(uri,
+                        cursor.getString(RingtoneManager.TITLE_COLUMN_INDEX));
+                entries.add(entry);
+                byUri.put(uri.toString(), entry);
+            }
+        } catch (Exception e) {
+            LogUtils.e("Failed to query ringtones", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return entries;
+    }
+}
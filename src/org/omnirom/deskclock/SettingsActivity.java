@@ -16,10 +16,13 @@
 
 package org.omnirom.deskclock;
 
+import android.app.AlertDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.content.SharedPreferences;
+import android.graphics.Typeface;
 import android.hardware.Sensor;
 import android.hardware.SensorManager;
 import android.media.Ringtone;
@@ -39,7 +42,9 @@ import android.preference.RingtonePreference;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.view.MenuItem;
+import android.widget.TextView;
 
+import org.omnirom.deskclock.alarms.AlarmLatencyStats;
 import org.omnirom.deskclock.worldclock.Cities;
 
 import java.util.Arrays;
@@ -79,8 +84,10 @@ public class SettingsActivity extends PreferenceActivity
             "shake_action_setting";
     public static final String KEY_KEEP_SCREEN_ON =
             "keep_screen_on";
-    public static final String KEY_VOLUME_INCREASE_SPEED =
-            "volume_increase_speed";
+    public static final String KEY_VOLUME_FADE_CURVE =
+            "volume_fade_curve";
+    public static final String KEY_VOLUME_FADE_DURATION =
+            "volume_fade_duration";
     public static final String KEY_PRE_ALARM_DISMISS_ALL =
             "pre_alarm_dismiss_all";
     public static final String KEY_FULLSCREEN_ALARM =
@@ -110,6 +117,8 @@ public class SettingsActivity extends PreferenceActivity
     public static final String KEY_MAKE_SCREEN_DARK = "make_screen_dark";
     public static final String KEY_SHOW_BACKGROUND_IMAGE = "show_background_image";
     public static final String KEY_VIBRATE_NOTIFICATION = "vibrate_notification";
+    private static final String KEY_ALARM_LATENCY = "alarm_latency";
+    private static final String KEY_DEBUG_CATEGORY = "debug_category";
 
     // default action for alarm action
     public static final String DEFAULT_ALARM_ACTION = "0";
@@ -164,6 +173,10 @@ public class SettingsActivity extends PreferenceActivity
             PreferenceCategory alarmActionsCategory = (PreferenceCategory) findPreference(KEY_ALARM_ACTION_CATEGORY);
             alarmActionsCategory.removePreference(p);
         }
+
+        if (!LogUtils.DEBUG) {
+            getPreferenceScreen().removePreference(findPreference(KEY_DEBUG_CATEGORY));
+        }
     }
 
     @Override
@@ -224,7 +237,11 @@ public class SettingsActivity extends PreferenceActivity
             final ListPreference listPref = (ListPreference) pref;
             final int idx = listPref.findIndexOfValue((String) newValue);
             listPref.setSummary(listPref.getEntries()[idx]);
-        } else if (KEY_VOLUME_INCREASE_SPEED.equals(pref.getKey())) {
+        } else if (KEY_VOLUME_FADE_CURVE.equals(pref.getKey())) {
+            final ListPreference listPref = (ListPreference) pref;
+            final int idx = listPref.findIndexOfValue((String) newValue);
+            listPref.setSummary(listPref.getEntries()[idx]);
+        } else if (KEY_VOLUME_FADE_DURATION.equals(pref.getKey())) {
             final ListPreference listPref = (ListPreference) pref;
             final int idx = listPref.findIndexOfValue((String) newValue);
             listPref.setSummary(listPref.getEntries()[idx]);
@@ -260,10 +277,50 @@ public class SettingsActivity extends PreferenceActivity
         if (KEY_TIMER_ALARM_CUSTOM.equals(pref.getKey())){
             setTimerAlarmSummary();
             return true;
+        } else if (KEY_ALARM_LATENCY.equals(pref.getKey())) {
+            showAlarmLatency();
+            return true;
         }
         return false;
     }
 
+    private void showAlarmLatency() {
+        final TextView stats = new TextView(this);
+        stats.setTypeface(Typeface.MONOSPACE);
+        final int padding = getResources().getDimensionPixelSize(R.dimen.screensaver_margin);
+        stats.setPadding(padding, padding, padding, padding);
+        // Reading the stats waits for the alarm path, never do it on the UI thread
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                return AlarmLatencyStats.dumpToString(SettingsActivity.this);
+            }
+
+            @Override
+            protected void onPostExecute(String result) {
+                stats.setText(result);
+            }
+        }.executeOnExecutor(AsyncHandler.getExecutor(AsyncHandler.LANE_BULK));
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.alarm_latency_title)
+                .setView(stats)
+                .setPositiveButton(android.R.string.ok, null)
+                .setNeutralButton(R.string.alarm_latency_reset,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                final Context context = getApplicationContext();
+                                AsyncHandler.post(AsyncHandler.LANE_BULK, new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        AlarmLatencyStats.reset(context);
+                                    }
+                                });
+                            }
+                        })
+                .show();
+    }
+
     @Override
     protected boolean isValidFragment(String fragmentName) {
         // Exported activity but no headers we support.
@@ -338,7 +395,11 @@ public class SettingsActivity extends PreferenceActivity
         listPref.setSummary(listPref.getEntry());
         listPref.setOnPreferenceChangeListener(this);
 
-        listPref = (ListPreference) findPreference(KEY_VOLUME_INCREASE_SPEED);
+        listPref = (ListPreference) findPreference(KEY_VOLUME_FADE_CURVE);
+        listPref.setSummary(listPref.getEntry());
+        listPref.setOnPreferenceChangeListener(this);
+
+        listPref = (ListPreference) findPreference(KEY_VOLUME_FADE_DURATION);
         listPref.setSummary(listPref.getEntry());
         listPref.setOnPreferenceChangeListener(this);
 
@@ -67,12 +67,15 @@ import android.widget.TextView;
 import org.omnirom.deskclock.alarms.AlarmConstants;
 import org.omnirom.deskclock.provider.Alarm;
 import org.omnirom.deskclock.provider.AlarmInstance;
+import org.omnirom.deskclock.stopwatch.LapLog;
 import org.omnirom.deskclock.stopwatch.Stopwatches;
 import org.omnirom.deskclock.timer.Timers;
 import org.omnirom.deskclock.worldclock.CityObj;
 import org.omnirom.deskclock.worldclock.db.DbCities;
 import org.omnirom.deskclock.worldclock.db.DbCity;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.text.Collator;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -237,18 +240,13 @@ public class Utils {
     /**
      * Clears the persistent data of stopwatch (start time, state, laps, etc...).
      */
-    public static void clearSwSharedPref(SharedPreferences prefs) {
+    public static void clearSwSharedPref(Context context, SharedPreferences prefs) {
         SharedPreferences.Editor editor = prefs.edit();
         editor.remove(Stopwatches.PREF_START_TIME);
         editor.remove(Stopwatches.PREF_ACCUM_TIME);
         editor.remove(Stopwatches.PREF_STATE);
-        int lapNum = prefs.getInt(Stopwatches.PREF_LAP_NUM, Stopwatches.STOPWATCH_RESET);
-        for (int i = 0; i < lapNum; i++) {
-            String key = Stopwatches.PREF_LAP_TIME + Integer.toString(i);
-            editor.remove(key);
-        }
-        editor.remove(Stopwatches.PREF_LAP_NUM);
         editor.apply();
+        LapLog.getInstance(context).clear();
     }
 
     /**
@@ -1200,6 +1198,19 @@ public class Utils {
         }
         return new ComponentName(packageName, packageName + "." + activity);
     }
+
+    /**
+     * Close a stream ignoring errors, for finally blocks. Does nothing for null.
+     */
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
 }
 
 
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock.alarms;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.omnirom.deskclock.AsyncHandler;
+import org.omnirom.deskclock.LogUtils;
+import org.omnirom.deskclock.Utils;
+import org.omnirom.deskclock.provider.AlarmInstance;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Prepares the audio of the next alarm ahead of time, so {@link AlarmKlaxon} can start
+ * playing as soon as the alarm fires.
+ *
+ * The ringtone is resolved to its songs on the bulk background lane. The player is then
+ * created and prepared asynchronously on the main thread, where AlarmKlaxon runs, so its
+ * callbacks are delivered to the same thread as for players created by the klaxon.
+ * Songs that fail to prepare are dropped like they would be at fire time.
+ *
+ * One player is kept per instance and sound, so the alarm sound of an instance can be
+ * prepared while its pre-alarm is playing and re-registering several instances keeps
+ * all of them prepared. A player is replaced when the same sound is warmed up again,
+ * released when the instance is unregistered or too many players are prepared, and
+ * ignored at fire time if it does not match anymore.
+ */
+final class AlarmAudioPreloader {
+    /**
+     * A prepared player and the sound it was prepared for.
+     */
+    static final class Warm {
+        final long mInstanceId;
+        final boolean mPreAlarm;
+        final long mFireTime;
+        final Uri mRingtone;
+        final int mStream;
+        final AlarmKlaxon.Source mSource;
+        MediaPlayer mPlayer;
+        boolean mPrepared;
+
+        Warm(long instanceId, boolean preAlarm, long fireTime, Uri ringtone, int stream,
+                AlarmKlaxon.Source source) {
+            mInstanceId = instanceId;
+            mPreAlarm = preAlarm;
+            mFireTime = fireTime;
+            mRingtone = ringtone;
+            mStream = stream;
+            mSource = source;
+        }
+    }
+
+    // Prepared players are expensive, the ones firing last are dropped above this
+    private static final int MAX_WARM = 3;
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    // Keys of the sounds a warm up was requested for, guarded by the class
+    private static final Set<Long> sPending = new HashSet<Long>();
+
+    // Prepared sounds by key, only accessed on the main thread
+    private static final Map<Long, Warm> sWarm = new HashMap<Long, Warm>();
+
+    private AlarmAudioPreloader() {}
+
+    /**
+     * Start preparing the sound of an instance, replacing the one previously prepared for
+     * the same instance and sound.
+     *
+     * @param context application context
+     * @param instance instance that will fire next
+     * @param preAlarm true to prepare the pre-alarm sound
+     */
+    static void warmUp(final Context context, AlarmInstance instance, final boolean preAlarm) {
+        if (Utils.isSpotifyAlarm(instance, preAlarm) && Utils.isSpotifyPluginInstalled(context)) {
+            // Played by the plugin
+            return;
+        }
+        final long instanceId = instance.mId;
+        final long key = keyOf(instanceId, preAlarm);
+        final long fireTime = (preAlarm ? instance.getPreAlarmTime()
+                : instance.getAlarmTime()).getTimeInMillis();
+        final Uri ringtone = preAlarm ? instance.mPreAlarmRingtone : instance.mRingtone;
+        final boolean randomPlayback = instance.getRandomMode(preAlarm);
+        setPending(key);
+
+        AsyncHandler.post(AsyncHandler.LANE_BULK, new Runnable() {
+            @Override
+            public void run() {
+                final AlarmKlaxon.Source source = AlarmKlaxon.resolveSource(context, ringtone,
+                        randomPlayback);
+                final int stream = AlarmKlaxon.getAudioStream(context);
+                sHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isPending(key)) {
+                            LogUtils.v("Dropping outdated warm up for instance " + instanceId);
+                            return;
+                        }
+                        releaseWarm(key);
+                        if (!source.playSound()) {
+                            return;
+                        }
+                        LogUtils.v("Preparing alarm audio for instance " + instanceId
+                                + " preAlarm=" + preAlarm);
+                        final Warm warm = new Warm(instanceId, preAlarm, fireTime, ringtone,
+                                stream, source);
+                        sWarm.put(key, warm);
+                        trim();
+                        if (sWarm.get(key) == warm) {
+                            prepare(context, warm);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Release the prepared sounds of an instance if there are any.
+     */
+    static void discard(final long instanceId) {
+        synchronized (AlarmAudioPreloader.class) {
+            final boolean alarm = sPending.remove(keyOf(instanceId, false));
+            final boolean preAlarm = sPending.remove(keyOf(instanceId, true));
+            if (!alarm && !preAlarm) {
+                return;
+            }
+        }
+        sHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseWarm(keyOf(instanceId, false));
+                releaseWarm(keyOf(instanceId, true));
+            }
+        });
+    }
+
+    /**
+     * Hand over the prepared player if it matches the alarm that is starting. Must be
+     * called on the main thread. Players prepared for other sounds are kept.
+     *
+     * @return the prepared sound or null if it has to be prepared on demand
+     */
+    static Warm take(AlarmInstance instance, boolean preAlarm, int stream) {
+        final long key = keyOf(instance.mId, preAlarm);
+        synchronized (AlarmAudioPreloader.class) {
+            sPending.remove(key);
+        }
+        final Warm warm = sWarm.remove(key);
+        if (warm == null) {
+            return null;
+        }
+        final Uri ringtone = preAlarm ? instance.mPreAlarmRingtone : instance.mRingtone;
+        if (warm.mStream != stream || !Objects.equals(warm.mRingtone, ringtone)
+                || !warm.mPrepared) {
+            LogUtils.v("Prepared alarm audio not usable for instance " + instance.mId
+                    + " prepared=" + warm.mPrepared);
+            if (warm.mPlayer != null) {
+                warm.mPlayer.release();
+            }
+            return null;
+        }
+        return warm;
+    }
+
+    private static long keyOf(long instanceId, boolean preAlarm) {
+        return instanceId * 2 + (preAlarm ? 1 : 0);
+    }
+
+    private static synchronized void setPending(long key) {
+        sPending.add(key);
+    }
+
+    private static synchronized boolean isPending(long key) {
+        return sPending.contains(key);
+    }
+
+    private static void releaseWarm(long key) {
+        final Warm warm = sWarm.remove(key);
+        if (warm != null && warm.mPlayer != null) {
+            warm.mPlayer.release();
+        }
+    }
+
+    /**
+     * Release the players firing last while more than MAX_WARM are prepared.
+     */
+    private static void trim() {
+        while (sWarm.size() > MAX_WARM) {
+            long lastKey = 0;
+            Warm last = null;
+            for (Map.Entry<Long, Warm> entry : sWarm.entrySet()) {
+                if (last == null || entry.getValue().mFireTime > last.mFireTime) {
+                    lastKey = entry.getKey();
+                    last = entry.getValue();
+                }
+            }
+            LogUtils.v("Dropping prepared alarm audio for instance " + last.mInstanceId);
+            synchronized (AlarmAudioPreloader.class) {
+                sPending.remove(lastKey);
+            }
+            releaseWarm(lastKey);
+        }
+    }
+
+    private static void prepare(final Context context, final Warm warm) {
+        final AlarmKlaxon.Source source = warm.mSource;
+        final MediaPlayer player = new MediaPlayer();
+        warm.mPlayer = player;
+        player.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+            @Override
+            public void onPrepared(MediaPlayer mp) {
+                if (isCurrent(warm)) {
+                    LogUtils.v("Prepared alarm audio " + source.mUri);
+                    warm.mPrepared = true;
+                }
+            }
+        });
+        player.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayer mp, int what, int extra) {
+                if (isCurrent(warm)) {
+                    LogUtils.e("Error preparing " + source.mUri);
+                    skip(context, warm);
+                }
+                return true;
+            }
+        });
+
+        try {
+            player.setAudioStreamType(warm.mStream);
+            if (source.mPlayFallbackAlarm || source.mUri == null) {
+                AlarmKlaxon.setDataSourceFromResource(context, player,
+                        org.omnirom.deskclock.R.raw.fallbackring);
+            } else {
+                player.setDataSource(context, source.mUri);
+            }
+            player.prepareAsync();
+        } catch (Exception ex) {
+            LogUtils.e("Error preparing " + source.mUri, ex);
+            skip(context, warm);
+        }
+    }
+
+    private static boolean isCurrent(Warm warm) {
+        return sWarm.get(keyOf(warm.mInstanceId, warm.mPreAlarm)) == warm;
+    }
+
+    /**
+     * Drop the song that failed to prepare and continue with the next one or the
+     * fallback ringtone, the same way AlarmKlaxon does at fire time.
+     */
+    private static void skip(Context context, Warm warm) {
+        final AlarmKlaxon.Source source = warm.mSource;
+        warm.mPlayer.release();
+        warm.mPlayer = null;
+        if (source.mPlayFallbackAlarm) {
+            // Nothing left to try
+            sWarm.remove(keyOf(warm.mInstanceId, warm.mPreAlarm));
+            return;
+        }
+        if (source.mRandomMusicMode || source.mLocalMediaMode) {
+            source.mSongs.remove(source.mUri);
+        }
+        if (source.mSongs.size() != 0 && (source.mRandomMusicMode || source.mLocalMediaMode)) {
+            source.mUri = source.mSongs.get(0);
+        } else {
+            source.mUri = null;
+            source.mRandomMusicMode = false;
+            source.mLocalMediaMode = false;
+            source.mPlayFallbackAlarm = true;
+        }
+        prepare(context, warm);
+    }
+}
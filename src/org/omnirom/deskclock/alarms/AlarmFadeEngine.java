@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock.alarms;
+
+import android.media.MediaPlayer;
+import android.media.VolumeShaper;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import org.omnirom.deskclock.LogUtils;
+
+/**
+ * Fades in the alarm sound by applying a gain curve to the player, the stream volume
+ * is left untouched.
+ *
+ * The fade is time based and continues across players, so songs of a playlist pick up
+ * the gain where the previous one stopped. On O and later the curve is handed to a
+ * {@link VolumeShaper} and runs inside the audio framework. On older releases the gain
+ * is stepped from a thread of its own, so the steps never delay alarm state changes.
+ */
+final class AlarmFadeEngine {
+    static final int CURVE_LINEAR = 0;
+    static final int CURVE_EXPONENTIAL = 1;
+    static final int CURVE_LOGARITHMIC = 2;
+
+    // Ratio of full gain to the smallest non zero gain of the non linear curves (60dB)
+    private static final double CURVE_RANGE = 1000.0;
+
+    // Points of the curve handed to VolumeShaper, linearly interpolated in between
+    private static final int SHAPER_POINTS = 16;
+
+    // Interval of gain steps without VolumeShaper
+    private static final long STEP_INTERVAL = 50;
+
+    // Thread of the gain steps without VolumeShaper, started on first use
+    private static Handler sStepHandler;
+
+    private final int mCurve;
+    private final long mDuration;
+    private long mStartTime = -1;
+    private MediaPlayer mPlayer;
+    private VolumeShaper mShaper;
+    private boolean mStepping;
+    private boolean mStopped;
+
+    private final Runnable mStep = new Runnable() {
+        @Override
+        public void run() {
+            step();
+        }
+    };
+
+    /**
+     * @param curve one of the curve constants
+     * @param duration time in ms until full gain is reached
+     */
+    AlarmFadeEngine(int curve, long duration) {
+        mCurve = curve;
+        mDuration = Math.max(duration, 1);
+    }
+
+    /**
+     * Gain of a curve at a point of the fade.
+     *
+     * @param curve one of the curve constants
+     * @param progress fade progress from 0 to 1
+     * @return gain from 0 to 1
+     */
+    static float gain(int curve, float progress) {
+        if (progress <= 0f) {
+            return 0f;
+        }
+        if (progress >= 1f) {
+            return 1f;
+        }
+        switch (curve) {
+            case CURVE_EXPONENTIAL:
+                // Slow start, equal loudness steps in dB
+                return (float) ((Math.pow(CURVE_RANGE, progress) - 1) / (CURVE_RANGE - 1));
+            case CURVE_LOGARITHMIC:
+                // Fast start, slow end
+                return (float) (Math.log1p(progress * (CURVE_RANGE - 1)) / Math.log(CURVE_RANGE));
+            default:
+                return progress;
+        }
+    }
+
+    /**
+     * Apply the fade to a player that is about to be started. The first call starts the
+     * fade, later calls continue it on the new player.
+     */
+    synchronized void attach(MediaPlayer player) {
+        if (mStopped) {
+            return;
+        }
+        if (mStartTime < 0) {
+            mStartTime = SystemClock.elapsedRealtime();
+            LogUtils.v("Starting volume fade curve " + mCurve + " duration " + mDuration);
+        }
+        closeShaper();
+        mPlayer = player;
+
+        final float progress = progress();
+        if (progress >= 1f) {
+            setGain(1f);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            try {
+                // The shaper applies on top of the player volume
+                player.setVolume(1f, 1f);
+                mShaper = player.createVolumeShaper(createConfiguration(progress));
+                mShaper.apply(VolumeShaper.Operation.PLAY);
+            } catch (IllegalStateException e) {
+                LogUtils.e("Failed to apply volume shaper", e);
+                mShaper = null;
+                setGain(1f);
+            }
+        } else {
+            setGain(gain(mCurve, progress));
+            if (!mStepping) {
+                mStepping = true;
+                getStepHandler().postDelayed(mStep, STEP_INTERVAL);
+            }
+        }
+    }
+
+    /**
+     * Set the current gain on a player that starts on its own before it is attached, so
+     * it does not start at full gain.
+     */
+    synchronized void preset(MediaPlayer player) {
+        if (mStopped || mStartTime < 0) {
+            return;
+        }
+        final float gain = gain(mCurve, progress());
+        player.setVolume(gain, gain);
+    }
+
+    /**
+     * Stop the fade, must be called before the player is released.
+     */
+    synchronized void stop() {
+        mStopped = true;
+        closeShaper();
+        mPlayer = null;
+        if (mStepping) {
+            getStepHandler().removeCallbacks(mStep);
+            mStepping = false;
+        }
+    }
+
+    private static synchronized Handler getStepHandler() {
+        if (sStepHandler == null) {
+            final HandlerThread thread = new HandlerThread("AlarmFadeEngine",
+                    Process.THREAD_PRIORITY_AUDIO);
+            thread.start();
+            sStepHandler = new Handler(thread.getLooper());
+        }
+        return sStepHandler;
+    }
+
+    private float progress() {
+        return (SystemClock.elapsedRealtime() - mStartTime) / (float) mDuration;
+    }
+
+    /**
+     * Curve of the rest of the fade, starting at the given progress.
+     */
+    private VolumeShaper.Configuration createConfiguration(float progress) {
+        final float[] times = new float[SHAPER_POINTS];
+        final float[] volumes = new float[SHAPER_POINTS];
+        for (int i = 0; i < SHAPER_POINTS; i++) {
+            times[i] = i / (float) (SHAPER_POINTS - 1);
+            volumes[i] = gain(mCurve, progress + times[i] * (1f - progress));
+        }
+        return new VolumeShaper.Configuration.Builder()
+                .setDuration(Math.max((long) ((1f - progress) * mDuration), 1))
+                .setCurve(times, volumes)
+                .setInterpolatorType(VolumeShaper.Configuration.INTERPOLATOR_TYPE_LINEAR)
+                .build();
+    }
+
+    private synchronized void step() {
+        if (mStopped) {
+            mStepping = false;
+            return;
+        }
+        final float progress = progress();
+        setGain(gain(mCurve, progress));
+        if (progress < 1f) {
+            getStepHandler().postDelayed(mStep, STEP_INTERVAL);
+        } else {
+            mStepping = false;
+        }
+    }
+
+    private void setGain(float gain) {
+        if (mPlayer == null) {
+            return;
+        }
+        try {
+            mPlayer.setVolume(gain, gain);
+        } catch (IllegalStateException e) {
+            // Player was released by an error path, the next attach picks it up again
+            mPlayer = null;
+        }
+    }
+
+    private void closeShaper() {
+        if (mShaper != null) {
+            try {
+                mShaper.close();
+            } catch (IllegalStateException e) {
+                // Player already released
+            }
+            mShaper = null;
+        }
+    }
+}
@@ -19,8 +19,10 @@ package org.omnirom.deskclock.alarms;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Collections;
+import java.util.Set;
 
 import android.app.NotificationManager;
 import android.content.Context;
@@ -33,11 +35,11 @@ import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
 import android.net.Uri;
 import android.os.Build;
-import android.os.Handler;
-import android.os.Message;
+import android.os.SystemClock;
 import android.os.Vibrator;
 import android.preference.PreferenceManager;
 
+import org.omnirom.deskclock.AsyncHandler;
 import org.omnirom.deskclock.LogUtils;
 import org.omnirom.deskclock.SettingsActivity;
 import org.omnirom.deskclock.Utils;
@@ -52,9 +54,6 @@ public class AlarmKlaxon {
     // Volume suggested by media team for in-call alarms.
     private static final float IN_CALL_VOLUME = 0.125f;
 
-    private static final int INCREASING_VOLUME_START = 1;
-    private static final int INCREASING_VOLUME_DELTA = 1;
-
     private static boolean sStarted = false;
     private static AudioManager sAudioManager = null;
     private static MediaPlayer sMediaPlayer = null;
@@ -62,42 +61,48 @@ public class AlarmKlaxon {
     private static List<Uri> mSongs = new ArrayList<Uri>();
     private static Uri mCurrentTone;
     private static int sCurrentIndex;
-    private static int sCurrentVolume = INCREASING_VOLUME_START;
+    // Songs of the random music pool that were played or skipped
+    private static final Set<Uri> sPoolConsumed = new HashSet<Uri>();
     private static int sSavedVolume;
     private static int sMaxVolume;
     private static boolean sIncreasingVolume;
     private static boolean sRandomPlayback;
-    private static long sVolumeIncreaseSpeed;
+    private static AlarmFadeEngine sFadeEngine;
     private static boolean sFirstFile;
-    private static Context sContext;
     private static boolean sRandomMusicMode;
     private static boolean sLocalMediaMode;
     private static boolean sPlayFallbackAlarm;
+    // Instance whose first audio start has not been recorded yet
+    private static long sLatencyInstanceId = AlarmInstance.INVALID_ID;
+    // Elapsed realtime start() was called, 0 once the first audio start was recorded
+    private static long sStartTime;
+
+    // Next song of a playlist, chained to the current player once prepared
+    private static MediaPlayer sNextPlayer;
+    private static Uri sNextSong;
+    private static int sNextIndex;
+    private static boolean sNextChained;
+    // Elapsed realtime of the last song completion and of the chained song start
+    private static long sCompletionTime;
+    private static long sNextStartTime;
 
-    // Internal messages
-    private static final int INCREASING_VOLUME = 1001;
-
-    private static Handler sHandler = new Handler() {
-        @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case INCREASING_VOLUME:
-                    if (sStarted) {
-                        sCurrentVolume += INCREASING_VOLUME_DELTA;
-                        if (sCurrentVolume <= sMaxVolume) {
-                            LogUtils.v("Increasing alarm volume to " + sCurrentVolume);
-                            sAudioManager.setStreamVolume(
-                                    getAudioStream(sContext), sCurrentVolume, 0);
-                            sHandler.sendEmptyMessageDelayed(INCREASING_VOLUME,
-                                    sVolumeIncreaseSpeed);
-                        }
-                    }
-                    break;
-            }
+    /**
+     * Sound to play for an alarm, resolved from its ringtone uri.
+     */
+    static final class Source {
+        // First song to play or null for the fallback ringtone or silence
+        Uri mUri;
+        List<Uri> mSongs = new ArrayList<Uri>();
+        boolean mRandomMusicMode;
+        boolean mLocalMediaMode;
+        boolean mPlayFallbackAlarm;
+
+        boolean playSound() {
+            return mUri != null || mPlayFallbackAlarm;
         }
-    };
+    }
 
-    private static int getAudioStream(Context context) {
+    static int getAudioStream(Context context) {
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         String stream = prefs.getString(SettingsActivity.KEY_AUDIO_STREAM, "1");
         int streamInt = Integer.decode(stream).intValue();
@@ -109,13 +114,28 @@ public class AlarmKlaxon {
             LogUtils.v("AlarmKlaxon.stop()");
 
             sStarted = false;
-            sHandler.removeMessages(INCREASING_VOLUME);
+            if (sRandomMusicMode) {
+                // Continue with songs not heard yet next time
+                final Context appContext = context.getApplicationContext();
+                final int played = sPoolConsumed.size();
+                AsyncHandler.post(AsyncHandler.LANE_BULK, new Runnable() {
+                    @Override
+                    public void run() {
+                        RandomMusicPool.advance(appContext, played);
+                    }
+                });
+            }
+            if (sFadeEngine != null) {
+                sFadeEngine.stop();
+                sFadeEngine = null;
+            }
             // reset to default from before
             sAudioManager.setStreamVolume(getAudioStream(context),
                     sSavedVolume, 0);
             sAudioManager.abandonAudioFocus(null);
 
             // Stop audio playing
+            releaseNextPlayer();
             if (sMediaPlayer != null) {
                 sMediaPlayer.stop();
                 sMediaPlayer.reset();
@@ -130,21 +150,21 @@ public class AlarmKlaxon {
     }
 
     public static void start(final Context context, AlarmInstance instance) {
-        sContext = context;
-
         // Make sure we are stop before starting
         stop(context);
 
         LogUtils.v("AlarmKlaxon.start() " + instance);
+        sLatencyInstanceId = instance.mId;
+        sStartTime = SystemClock.elapsedRealtime();
+        sCompletionTime = 0;
+        sNextStartTime = 0;
+        sPoolConsumed.clear();
 
         sPreAlarmMode = false;
         if (instance.mAlarmState == AlarmInstance.PRE_ALARM_STATE) {
             sPreAlarmMode = true;
         }
 
-        sVolumeIncreaseSpeed = getVolumeChangeDelay(context);
-        LogUtils.v("Volume increase interval " + sVolumeIncreaseSpeed);
-
         final Context appContext = context.getApplicationContext();
         sAudioManager = (AudioManager) appContext
                 .getSystemService(Context.AUDIO_SERVICE);
@@ -164,125 +184,126 @@ public class AlarmKlaxon {
             sMaxVolume = calcNormalizedVolumeFromCurrentAlarm(context);
         }
 
-        Uri alarmNoise = null;
-        sRandomMusicMode = false;
-        sLocalMediaMode = false;
-        sPlayFallbackAlarm = false;
-
+        Uri alarmNoise = sPreAlarmMode ? instance.mPreAlarmRingtone : instance.mRingtone;
+        final AlarmAudioPreloader.Warm warm = AlarmAudioPreloader.take(instance, sPreAlarmMode,
+                getAudioStream(context));
+        final Source source = warm != null ? warm.mSource
+                : resolveSource(context, alarmNoise, sRandomPlayback);
+        mSongs = source.mSongs;
+        sRandomMusicMode = source.mRandomMusicMode;
+        sLocalMediaMode = source.mLocalMediaMode;
+        sPlayFallbackAlarm = source.mPlayFallbackAlarm;
+        if (sRandomMusicMode) {
+            sRandomPlayback = true;
+        }
         sCurrentIndex = 0;
-        if (sPreAlarmMode) {
-            alarmNoise = instance.mPreAlarmRingtone;
+        alarmNoise = source.mUri;
+
+        boolean playSound = source.playSound();
+        boolean vibrate = instance.mVibrate;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            NotificationManager noMan = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+            int filter = noMan.getCurrentInterruptionFilter();
+            if (filter == NotificationManager.INTERRUPTION_FILTER_NONE) {
+                playSound = false;
+                vibrate = false;
+            }
+        }
+        if (playSound && warm != null) {
+            playPreparedAlarm(context, warm.mPlayer, alarmNoise);
         } else {
-            alarmNoise = instance.mRingtone;
+            if (warm != null) {
+                warm.mPlayer.release();
+            }
+            if (playSound) {
+                playAlarm(context, alarmNoise);
+            }
+        }
+        if (vibrate) {
+            Vibrator vibrator = (Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE);
+            vibrator.vibrate(sVibratePattern, 0);
         }
+        sStarted = true;
+    }
+
+    /**
+     * Resolve the songs to play for a ringtone uri. Does not touch the klaxon state, so it
+     * can be called ahead of time from a background thread.
+     *
+     * @param context application context
+     * @param alarmNoise ringtone uri of the alarm
+     * @param randomPlayback true if songs of a playlist are played in random order
+     */
+    static Source resolveSource(Context context, Uri alarmNoise, boolean randomPlayback) {
+        final Source source = new Source();
         if (alarmNoise != null && Utils.isSpotifyUri(alarmNoise.toString())) {
             alarmNoise = null;
         }
         if (alarmNoise != null) {
             if (Utils.isRandomUri(alarmNoise.toString())) {
-                sRandomMusicMode = true;
-                sRandomPlayback = true;
-                mSongs = Utils.getRandomMusicFiles(context, 50);
-                if (mSongs.size() != 0) {
-                    alarmNoise = mSongs.get(0);
+                source.mRandomMusicMode = true;
+                source.mSongs = RandomMusicPool.getSongs(context, 50);
+                if (source.mSongs.size() != 0) {
+                    alarmNoise = source.mSongs.get(0);
                 } else {
                     // fallback
                     alarmNoise = null;
-                    sRandomMusicMode = false;
+                    source.mRandomMusicMode = false;
                 }
             } else if (Utils.isLocalPlaylistType(alarmNoise.toString())) {
                 // can fail if no external storage permissions
                 try {
-                    sLocalMediaMode = true;
+                    source.mLocalMediaMode = true;
                     if (Utils.isLocalAlbumUri(alarmNoise.toString())) {
-                        collectAlbumSongs(context, alarmNoise);
+                        source.mSongs = collectAlbumSongs(context, alarmNoise, randomPlayback);
                     }
                     if (Utils.isLocalArtistUri(alarmNoise.toString())) {
-                        collectArtistSongs(context, alarmNoise);
+                        source.mSongs = collectArtistSongs(context, alarmNoise, randomPlayback);
                     }
                     if (Utils.isFolderUri(alarmNoise.toString())) {
-                        collectFiles(context, alarmNoise);
+                        source.mSongs = collectFiles(alarmNoise, randomPlayback);
                     }
-                    if (mSongs.size() != 0) {
-                        alarmNoise = mSongs.get(0);
+                    if (source.mSongs.size() != 0) {
+                        alarmNoise = source.mSongs.get(0);
                     } else {
                         // fallback
                         alarmNoise = null;
-                        sLocalMediaMode = false;
+                        source.mLocalMediaMode = false;
                     }
                 } catch (Exception ex) {
                     LogUtils.e("Error accessing media contents", ex);
                     // fallback
                     alarmNoise = null;
-                    sLocalMediaMode = false;
+                    source.mLocalMediaMode = false;
                 }
             }
         }
         if (alarmNoise == null) {
             LogUtils.e("Play default alarm");
-            sPlayFallbackAlarm = true;
+            source.mPlayFallbackAlarm = true;
         } else if (AlarmInstance.NO_RINGTONE_URI.equals(alarmNoise)) {
             // silent
             alarmNoise = null;
         }
-        boolean playSound = alarmNoise != null || sPlayFallbackAlarm;
-        boolean vibrate = instance.mVibrate;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            NotificationManager noMan = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
-            int filter = noMan.getCurrentInterruptionFilter();
-            if (filter == NotificationManager.INTERRUPTION_FILTER_NONE) {
-                playSound = false;
-                vibrate = false;
-            }
-        }
-        if (playSound) {
-            playAlarm(context, alarmNoise);
-        }
-        if (vibrate) {
-            Vibrator vibrator = (Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE);
-            vibrator.vibrate(sVibratePattern, 0);
-        }
-        sStarted = true;
+        source.mUri = alarmNoise;
+        return source;
     }
 
     private static void playAlarm(final Context context, final Uri alarmNoise) {
-
         sMediaPlayer = new MediaPlayer();
-        sMediaPlayer.setOnErrorListener(new OnErrorListener() {
-            @Override
-            public boolean onError(MediaPlayer mp, int what, int extra) {
-                LogUtils.e("Error playing " + alarmNoise);
-                if (sLocalMediaMode || sRandomMusicMode) {
-                    LogUtils.e("Skipping file");
-                    mSongs.remove(alarmNoise);
-                    nextSong(context);
-                } else {
-                    sPlayFallbackAlarm = true;
-                    playAlarm(context, null);
-                }
-                return true;
-            }
-        });
-
-        if (sLocalMediaMode || sRandomMusicMode) {
-            sMediaPlayer.setOnCompletionListener(new OnCompletionListener() {
-                @Override
-                public void onCompletion(MediaPlayer mp) {
-                    nextSong(context);
-                }
-            });
-        }
+        setPlayerListeners(context, sMediaPlayer, alarmNoise);
 
         try {
             if (sPlayFallbackAlarm || alarmNoise == null) {
                 LogUtils.e("Using the fallback ringtone");
                 setDataSourceFromResource(context, sMediaPlayer, org.omnirom.deskclock.R.raw.fallbackring);
             } else {
+                consumeSong(alarmNoise);
                 sMediaPlayer.setDataSource(context, alarmNoise);
                 mCurrentTone = alarmNoise;
                 LogUtils.v("next song:" + mCurrentTone);
             }
-            startAlarm(context, sMediaPlayer);
+            startAlarm(context, sMediaPlayer, false);
         } catch (Exception ex) {
             LogUtils.e("Error playing " + alarmNoise, ex);
             if (sLocalMediaMode || sRandomMusicMode) {
@@ -297,7 +318,7 @@ public class AlarmKlaxon {
                     // Must reset the media player to clear the error state.
                     sMediaPlayer.reset();
                     setDataSourceFromResource(context, sMediaPlayer, org.omnirom.deskclock.R.raw.fallbackring);
-                    startAlarm(context, sMediaPlayer);
+                    startAlarm(context, sMediaPlayer, false);
                 } catch (Exception ex2) {
                     // At this point we just don't play anything.
                     LogUtils.e("Failed to play fallback ringtone", ex2);
@@ -306,46 +327,117 @@ public class AlarmKlaxon {
         }
     }
 
+    /**
+     * Start a player that was already prepared by {@link AlarmAudioPreloader}.
+     */
+    private static void playPreparedAlarm(final Context context, MediaPlayer player,
+            final Uri alarmNoise) {
+        LogUtils.v("Using prepared player for " + alarmNoise);
+        sMediaPlayer = player;
+        setPlayerListeners(context, sMediaPlayer, alarmNoise);
+        if (alarmNoise != null) {
+            consumeSong(alarmNoise);
+            mCurrentTone = alarmNoise;
+        }
+        try {
+            startAlarm(context, sMediaPlayer, true);
+        } catch (Exception ex) {
+            LogUtils.e("Error starting prepared player", ex);
+            sMediaPlayer.release();
+            sMediaPlayer = null;
+            playAlarm(context, alarmNoise);
+        }
+    }
+
+    private static void setPlayerListeners(final Context context, MediaPlayer player,
+            final Uri alarmNoise) {
+        player.setOnErrorListener(new OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayer mp, int what, int extra) {
+                LogUtils.e("Error playing " + alarmNoise);
+                if (sLocalMediaMode || sRandomMusicMode) {
+                    LogUtils.e("Skipping file");
+                    mSongs.remove(alarmNoise);
+                    nextSong(context);
+                } else {
+                    sPlayFallbackAlarm = true;
+                    playAlarm(context, null);
+                }
+                return true;
+            }
+        });
+
+        if (sLocalMediaMode || sRandomMusicMode) {
+            player.setOnCompletionListener(new OnCompletionListener() {
+                @Override
+                public void onCompletion(MediaPlayer mp) {
+                    onSongCompleted(context, mp);
+                }
+            });
+        }
+    }
+
     // Do the common stuff when starting the alarm.
-    private static void startAlarm(Context context, MediaPlayer player) throws IOException {
+    private static void startAlarm(Context context, MediaPlayer player, boolean prepared)
+            throws IOException {
         // do not play alarms if alarm volume is 0
         // this can only happen if "use system alarm volume" is used
         if (sMaxVolume != 0) {
             // only start volume handling on the first invocation
             if (sFirstFile) {
+                sAudioManager.setStreamVolume(getAudioStream(context),
+                        sMaxVolume, 0);
+                LogUtils.v("Alarm volume " + sMaxVolume);
                 if (sIncreasingVolume) {
-                    sCurrentVolume = INCREASING_VOLUME_START;
-                    sAudioManager.setStreamVolume(getAudioStream(context),
-                            sCurrentVolume, 0);
-                    LogUtils.v("Starting alarm volume " + sCurrentVolume
-                            + " max volume " + sMaxVolume);
-
-                    if (sCurrentVolume < sMaxVolume) {
-                        sHandler.sendEmptyMessageDelayed(INCREASING_VOLUME,
-                                sVolumeIncreaseSpeed);
-                    }
-                } else {
-                    sAudioManager.setStreamVolume(getAudioStream(context),
-                            sMaxVolume, 0);
-                    LogUtils.v("Alarm volume " + sMaxVolume);
+                    // The fade only changes the gain of the player
+                    sFadeEngine = new AlarmFadeEngine(getFadeCurve(context),
+                            getFadeDuration(context));
                 }
                 sFirstFile = false;
             }
 
             LogUtils.v("Using audio stream " + (getAudioStream(context) == AudioManager.STREAM_MUSIC ? "Music" : "Alarm"));
 
-            player.setAudioStreamType(getAudioStream(context));
+            if (!prepared) {
+                player.setAudioStreamType(getAudioStream(context));
+            }
             if (!sRandomMusicMode && !sLocalMediaMode) {
                 player.setLooping(true);
             }
-            player.prepare();
+            if (!prepared) {
+                player.prepare();
+            }
             sAudioManager.requestAudioFocus(null, getAudioStream(context),
                     AudioManager.AUDIOFOCUS_GAIN_TRANSIENT);
+            if (sFadeEngine != null) {
+                sFadeEngine.attach(player);
+            }
             player.start();
+            if (sCompletionTime != 0) {
+                // Song change without a chained player
+                AlarmLatencyStats.onDuration(context, AlarmLatencyStats.TYPE_TRACK_GAP,
+                        SystemClock.elapsedRealtime() - sCompletionTime);
+                sCompletionTime = 0;
+            }
+            if (sRandomMusicMode || sLocalMediaMode) {
+                prepareNextSong(context);
+            }
+            if (sLatencyInstanceId != AlarmInstance.INVALID_ID) {
+                AlarmLatencyStats.onStage(context, sLatencyInstanceId,
+                        AlarmLatencyStats.TYPE_AUDIO_START, true);
+                sLatencyInstanceId = AlarmInstance.INVALID_ID;
+            }
+            if (sStartTime != 0) {
+                AlarmLatencyStats.onDuration(context, prepared
+                        ? AlarmLatencyStats.TYPE_FIRST_AUDIO_WARM
+                        : AlarmLatencyStats.TYPE_FIRST_AUDIO_COLD,
+                        SystemClock.elapsedRealtime() - sStartTime);
+                sStartTime = 0;
+            }
         }
     }
 
-    private static void setDataSourceFromResource(Context context,
+    static void setDataSourceFromResource(Context context,
                                                   MediaPlayer player, int res) throws IOException {
         AssetFileDescriptor afd = context.getResources().openRawResourceFd(res);
         if (afd != null) {
@@ -355,11 +447,28 @@ public class AlarmKlaxon {
         }
     }
 
-    private static long getVolumeChangeDelay(Context context) {
+    private static int getFadeCurve(Context context) {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String curve = prefs.getString(SettingsActivity.KEY_VOLUME_FADE_CURVE, "1");
+        return Integer.decode(curve).intValue();
+    }
+
+    private static long getFadeDuration(Context context) {
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String speed = prefs.getString(SettingsActivity.KEY_VOLUME_INCREASE_SPEED, "5");
-        int speedInt = Integer.decode(speed).intValue();
-        return speedInt * 1000;
+        String duration = prefs.getString(SettingsActivity.KEY_VOLUME_FADE_DURATION, "60");
+        int durationInt = Integer.decode(duration).intValue();
+        return durationInt * 1000;
+    }
+
+    /**
+     * Seconds between stream volume steps for plugins that still raise the stream volume,
+     * so they reach full volume after the fade duration.
+     */
+    public static int getVolumeIncreaseSpeed(Context context) {
+        final AudioManager audioManager =
+                (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        final int steps = Math.max(audioManager.getStreamMaxVolume(getAudioStream(context)), 1);
+        return (int) Math.max(getFadeDuration(context) / 1000 / steps, 1);
     }
 
     /**
@@ -399,7 +508,160 @@ public class AlarmKlaxon {
         return alarmVolume;
     }
 
+    /**
+     * Prepare the song following the current one in the background and chain it to the
+     * current player, so it starts without a gap. Songs that fail to prepare are dropped
+     * from the playlist and the one after them is tried.
+     */
+    private static void prepareNextSong(final Context context) {
+        releaseNextPlayer();
+        if (mSongs.size() == 0 || sMediaPlayer == null) {
+            return;
+        }
+        int index = sCurrentIndex + 1;
+        if (index >= mSongs.size()) {
+            index = 0;
+            if (sRandomPlayback) {
+                Collections.shuffle(mSongs);
+            }
+        }
+        final Uri song = mSongs.get(index);
+        final MediaPlayer player = new MediaPlayer();
+        sNextPlayer = player;
+        sNextSong = song;
+        sNextIndex = index;
+        player.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+            @Override
+            public void onPrepared(MediaPlayer mp) {
+                if (mp != sNextPlayer || sMediaPlayer == null) {
+                    return;
+                }
+                try {
+                    if (sFadeEngine != null) {
+                        sFadeEngine.preset(mp);
+                    }
+                    sMediaPlayer.setNextMediaPlayer(mp);
+                    sNextChained = true;
+                    LogUtils.v("Chained next song:" + song);
+                } catch (IllegalStateException e) {
+                    LogUtils.e("Failed to chain next song", e);
+                }
+            }
+        });
+        player.setOnInfoListener(new MediaPlayer.OnInfoListener() {
+            @Override
+            public boolean onInfo(MediaPlayer mp, int what, int extra) {
+                if (what == MediaPlayer.MEDIA_INFO_STARTED_AS_NEXT) {
+                    sNextStartTime = SystemClock.elapsedRealtime();
+                    recordChainedGap(context);
+                }
+                return false;
+            }
+        });
+        player.setOnErrorListener(new OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayer mp, int what, int extra) {
+                if (mp != sNextPlayer) {
+                    return false;
+                }
+                skipNextSong(context, song);
+                return true;
+            }
+        });
+        try {
+            player.setAudioStreamType(getAudioStream(context));
+            player.setDataSource(context, song);
+            player.prepareAsync();
+        } catch (Exception ex) {
+            LogUtils.e("Error preparing " + song, ex);
+            skipNextSong(context, song);
+        }
+    }
+
+    /**
+     * Remember a song of the random music pool was used, so the pool continues after it
+     * next time. Counting distinct songs stays right across wrap arounds and skips.
+     */
+    private static void consumeSong(Uri song) {
+        if (sRandomMusicMode && !sPlayFallbackAlarm && song != null) {
+            sPoolConsumed.add(song);
+        }
+    }
+
+    private static void skipNextSong(Context context, Uri song) {
+        LogUtils.e("Skipping file " + song);
+        consumeSong(song);
+        releaseNextPlayer();
+        int index = mSongs.indexOf(song);
+        if (index >= 0) {
+            mSongs.remove(index);
+            if (index < sCurrentIndex) {
+                sCurrentIndex--;
+            }
+        }
+        prepareNextSong(context);
+    }
+
+    private static void releaseNextPlayer() {
+        if (sNextPlayer != null) {
+            sNextPlayer.release();
+            sNextPlayer = null;
+        }
+        sNextSong = null;
+        sNextChained = false;
+    }
+
+    private static void onSongCompleted(Context context, MediaPlayer mp) {
+        if (mp != sMediaPlayer) {
+            return;
+        }
+        sCompletionTime = SystemClock.elapsedRealtime();
+        if (!sNextChained) {
+            // Next song was not ready, start it the slow way
+            nextSong(context);
+            return;
+        }
+
+        // The chained player is already playing, make it the current one
+        final Uri song = sNextSong;
+        sMediaPlayer = sNextPlayer;
+        sCurrentIndex = sNextIndex;
+        sNextPlayer = null;
+        sNextSong = null;
+        sNextChained = false;
+        mp.release();
+
+        setPlayerListeners(context, sMediaPlayer, song);
+        consumeSong(song);
+        mCurrentTone = song;
+        LogUtils.v("next song:" + mCurrentTone);
+        if (sFadeEngine != null) {
+            sFadeEngine.attach(sMediaPlayer);
+        }
+        recordChainedGap(context);
+        prepareNextSong(context);
+    }
+
+    /**
+     * Record the gap between a song completing and the chained one starting, once both
+     * events were received. They can arrive in either order.
+     */
+    private static void recordChainedGap(Context context) {
+        if (sCompletionTime == 0 || sNextStartTime == 0) {
+            return;
+        }
+        AlarmLatencyStats.onDuration(context, AlarmLatencyStats.TYPE_TRACK_GAP,
+                Math.max(sNextStartTime - sCompletionTime, 0));
+        sCompletionTime = 0;
+        sNextStartTime = 0;
+    }
+
     private static void nextSong(final Context context) {
+        releaseNextPlayer();
+        if (sMediaPlayer != null) {
+            sMediaPlayer.release();
+            sMediaPlayer = null;
+        }
         if (mSongs.size() == 0) {
             sRandomMusicMode = false;
             sLocalMediaMode = false;
@@ -422,55 +684,50 @@ public class AlarmKlaxon {
         playAlarm(context, song);
     }
 
-    private static void collectFiles(Context context, Uri folderUri) {
-        mSongs.clear();
+    private static List<Uri> collectFiles(Uri folderUri, boolean randomPlayback) {
+        List<Uri> songs = new ArrayList<Uri>();
 
         File folder = new File(folderUri.getPath());
         if (folder.exists() && folder.isDirectory()) {
-            for (final File fileEntry : folder.listFiles()) {
-                if (!fileEntry.isDirectory()) {
-                    if (Utils.isValidAudioFile(fileEntry.getName())) {
-                        mSongs.add(Uri.fromFile(fileEntry));
-                    }
-                } else {
-                    collectSub(context, fileEntry);
-                }
-            }
-            if (sRandomPlayback) {
-                Collections.shuffle(mSongs);
+            collectSub(songs, folder);
+            if (randomPlayback) {
+                Collections.shuffle(songs);
             } else {
-                Collections.sort(mSongs);
+                Collections.sort(songs);
             }
         }
+        return songs;
     }
 
-    private static void collectSub(Context context, File folder) {
+    private static void collectSub(List<Uri> songs, File folder) {
         if (folder.exists() && folder.isDirectory()) {
             for (final File fileEntry : folder.listFiles()) {
                 if (!fileEntry.isDirectory()) {
                     if (Utils.isValidAudioFile(fileEntry.getName())) {
-                        mSongs.add(Uri.fromFile(fileEntry));
+                        songs.add(Uri.fromFile(fileEntry));
                     }
                 } else {
-                    collectSub(context, fileEntry);
+                    collectSub(songs, fileEntry);
                 }
             }
         }
     }
 
-    private static void collectAlbumSongs(Context context, Uri albumUri) {
-        mSongs.clear();
-        mSongs = Utils.getAlbumSongs(context, albumUri);
-        if (sRandomPlayback) {
-            Collections.shuffle(mSongs);
+    private static List<Uri> collectAlbumSongs(Context context, Uri albumUri,
+            boolean randomPlayback) {
+        List<Uri> songs = Utils.getAlbumSongs(context, albumUri);
+        if (randomPlayback) {
+            Collections.shuffle(songs);
         }
+        return songs;
     }
 
-    private static void collectArtistSongs(Context context, Uri artistUri) {
-        mSongs.clear();
-        mSongs = Utils.getArtistSongs(context, artistUri);
-        if (sRandomPlayback) {
-            Collections.shuffle(mSongs);
+    private static List<Uri> collectArtistSongs(Context context, Uri artistUri,
+            boolean randomPlayback) {
+        List<Uri> songs = Utils.getArtistSongs(context, artistUri);
+        if (randomPlayback) {
+            Collections.shuffle(songs);
         }
+        return songs;
     }
 }
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock.alarms;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+
+import org.omnirom.deskclock.AsyncHandler;
+import org.omnirom.deskclock.LogUtils;
+import org.omnirom.deskclock.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records how late alarm state changes are handled compared to the time they were
+ * scheduled for. Delays are kept in small log-linear histograms that are persisted
+ * to a private file, so they survive the process being killed between alarms.
+ *
+ * Recording never touches the file, as it happens on the firing path. New values are
+ * collected in memory and merged into the persisted histograms by a single write on the
+ * bulk lane shortly after the firing.
+ *
+ * The delay of the first stage is the wall time at which the wakeup was received
+ * minus the scheduled trigger time. Later stages of the same firing add the elapsed
+ * realtime since the wakeup, so they are not affected by wall clock changes.
+ *
+ * The first audio types are durations from AlarmKlaxon being started until its player
+ * is started, split by whether a player prepared ahead of time could be used. The track
+ * gap is the time from a playlist song completing until the next one started.
+ */
+public final class AlarmLatencyStats {
+    // Wakeup broadcast received by AlarmStateManager
+    public static final int TYPE_RECEIVE = 0;
+    // Firing or pre-firing state set in AlarmStateManager
+    public static final int TYPE_STATE_SET = 1;
+    // AlarmKlaxon started playing audio
+    public static final int TYPE_AUDIO_START = 2;
+    // AlarmKlaxon start until audio start with a player prepared ahead of time
+    public static final int TYPE_FIRST_AUDIO_WARM = 3;
+    // AlarmKlaxon start until audio start preparing the player on demand
+    public static final int TYPE_FIRST_AUDIO_COLD = 4;
+    // Silence between songs of a playlist alarm
+    public static final int TYPE_TRACK_GAP = 5;
+    private static final int TYPE_COUNT = 6;
+
+    private static final String[] TYPE_NAMES = {
+            "receive",
+            "state set",
+            "audio start",
+            "first audio warm",
+            "first audio cold",
+            "track gap",
+    };
+
+    private static final String STATS_FILE = "alarm_latency.dat";
+    private static final int STATS_FILE_VERSION = 1;
+
+    // Delay of the write, long enough to collect all stages of a firing
+    private static final long SAVE_DELAY_MS = 30 * 1000;
+
+    /**
+     * Log-linear histogram of non negative millisecond values. Every power of two
+     * range is split into SUB_BUCKETS linear buckets, so the relative error of a
+     * reported value is below 1 / SUB_BUCKETS.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        // Values above 2^MAX_EXPONENT ms end up in the last bucket
+        private static final int MAX_EXPONENT = 31;
+        static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+        final int[] mCounts = new int[BUCKET_COUNT];
+        long mTotal;
+        long mMax;
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mCounts[bucketOf(value)]++;
+            mTotal++;
+            if (value > mMax) {
+                mMax = value;
+            }
+        }
+
+        /**
+         * @return upper bound of the bucket holding the given percentile, or -1 if empty
+         */
+        long percentile(double percentile) {
+            if (mTotal == 0) {
+                return -1;
+            }
+            long rank = (long) Math.ceil(percentile / 100.0 * mTotal);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(lowerBoundOf(i + 1) - 1, mMax);
+                }
+            }
+            return mMax;
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mCounts[i] += other.mCounts[i];
+            }
+            mTotal += other.mTotal;
+            if (other.mMax > mMax) {
+                mMax = other.mMax;
+            }
+        }
+
+        void clear() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mCounts[i] = 0;
+            }
+            mTotal = 0;
+            mMax = 0;
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent > MAX_EXPONENT) {
+                return BUCKET_COUNT - 1;
+            }
+            int shift = exponent - SUB_BUCKET_BITS;
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS
+                    + (int) ((value >> shift) & (SUB_BUCKETS - 1));
+        }
+
+        static long lowerBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+        }
+    }
+
+    // Persisted histograms, loaded on first use off the firing path
+    private static Histogram[] sHistograms;
+    // Values recorded since the last write
+    private static final Histogram[] sUnsaved = newHistograms();
+    private static boolean sSaveScheduled;
+
+    // Firings in progress by instance id: scheduled time, receive wall time and elapsed time
+    private static final Map<Long, long[]> sTraces = new HashMap<Long, long[]>();
+
+    private AlarmLatencyStats() {}
+
+    /**
+     * Record the wakeup for a scheduled state change.
+     *
+     * @param context application context
+     * @param instanceId instance changing state
+     * @param scheduledTime wall time the state change was scheduled for
+     * @param receiveWallTime wall time the wakeup was received
+     * @param receiveElapsedTime elapsed realtime the wakeup was received
+     * @param firing true if the state change starts the alarm, later stages will be traced
+     */
+    public static synchronized void onReceive(Context context, long instanceId,
+            long scheduledTime, long receiveWallTime, long receiveElapsedTime, boolean firing) {
+        long delay = receiveWallTime - scheduledTime;
+        record(context, TYPE_RECEIVE, delay);
+        if (firing) {
+            sTraces.put(instanceId, new long[] {scheduledTime, receiveWallTime, receiveElapsedTime});
+        } else {
+            sTraces.remove(instanceId);
+        }
+    }
+
+    /**
+     * Record a later stage of an alarm firing that was traced from its wakeup.
+     *
+     * @param context application context
+     * @param instanceId instance that is firing
+     * @param type stage that was reached
+     * @param finished true if this was the last stage of the firing
+     * @return the delay to the scheduled time or -1 if the firing was not traced
+     */
+    public static synchronized long onStage(Context context, long instanceId, int type,
+            boolean finished) {
+        long[] trace = finished ? sTraces.remove(instanceId) : sTraces.get(instanceId);
+        if (trace == null) {
+            return -1;
+        }
+        long delay = (trace[1] - trace[0]) + (SystemClock.elapsedRealtime() - trace[2]);
+        record(context, type, delay);
+        return delay;
+    }
+
+    /**
+     * Record a duration that is not relative to the scheduled time.
+     *
+     * @param context application context
+     * @param type one of the first audio types or the track gap
+     * @param duration in ms
+     */
+    public static synchronized void onDuration(Context context, int type, long duration) {
+        record(context, type, duration);
+    }
+
+    public static synchronized void reset(Context context) {
+        ensureLoaded(context);
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            sHistograms[type].clear();
+            sUnsaved[type].clear();
+        }
+        sTraces.clear();
+        scheduleSave(context);
+    }
+
+    /**
+     * Print count, p50, p95 and max of every stage.
+     */
+    public static synchronized void dump(Context context, PrintWriter pw) {
+        ensureLoaded(context);
+        mergeUnsaved();
+        pw.println("Alarm latency (ms):");
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            Histogram histogram = sHistograms[type];
+            pw.println("  " + TYPE_NAMES[type] + ": count=" + histogram.mTotal
+                    + " p50=" + histogram.percentile(50)
+                    + " p95=" + histogram.percentile(95)
+                    + " max=" + (histogram.mTotal == 0 ? -1 : histogram.mMax));
+        }
+    }
+
+    public static String dumpToString(Context context) {
+        StringWriter writer = new StringWriter();
+        PrintWriter pw = new PrintWriter(writer);
+        dump(context, pw);
+        pw.flush();
+        return writer.toString();
+    }
+
+    private static void record(Context context, int type, long delay) {
+        LogUtils.v("Alarm latency " + TYPE_NAMES[type] + " " + delay + "ms");
+        sUnsaved[type].record(delay);
+        scheduleSave(context);
+    }
+
+    private static Histogram[] newHistograms() {
+        Histogram[] histograms = new Histogram[TYPE_COUNT];
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            histograms[type] = new Histogram();
+        }
+        return histograms;
+    }
+
+    private static void mergeUnsaved() {
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            sHistograms[type].add(sUnsaved[type]);
+            sUnsaved[type].clear();
+        }
+    }
+
+    /**
+     * Write the stats on the bulk lane, once for all values recorded until then.
+     */
+    private static void scheduleSave(final Context context) {
+        if (sSaveScheduled) {
+            return;
+        }
+        sSaveScheduled = true;
+        final Context appContext = context.getApplicationContext();
+        AsyncHandler.postDelayed(AsyncHandler.LANE_BULK, new Runnable() {
+            @Override
+            public void run() {
+                save(appContext);
+            }
+        }, SAVE_DELAY_MS);
+    }
+
+    private static void ensureLoaded(Context context) {
+        if (sHistograms != null) {
+            return;
+        }
+        sHistograms = newHistograms();
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(getFile(context).openRead()));
+            if (in.readInt() != STATS_FILE_VERSION) {
+                return;
+            }
+            int types = Math.min(in.readInt(), TYPE_COUNT);
+            for (int type = 0; type < types; type++) {
+                Histogram histogram = sHistograms[type];
+                histogram.mTotal = in.readLong();
+                histogram.mMax = in.readLong();
+                for (int i = 0; i < Histogram.BUCKET_COUNT; i++) {
+                    histogram.mCounts[i] = in.readInt();
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing recorded yet
+        } catch (IOException e) {
+            LogUtils.e("Failed to read alarm latency stats", e);
+            for (Histogram histogram : sHistograms) {
+                histogram.clear();
+            }
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    private static void save(Context context) {
+        // Copy under the lock and write outside of it, so recording is never blocked
+        final Histogram[] histograms = newHistograms();
+        synchronized (AlarmLatencyStats.class) {
+            sSaveScheduled = false;
+            ensureLoaded(context);
+            mergeUnsaved();
+            for (int type = 0; type < TYPE_COUNT; type++) {
+                histograms[type].add(sHistograms[type]);
+            }
+        }
+
+        final AtomicFile file = getFile(context);
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(STATS_FILE_VERSION);
+            out.writeInt(TYPE_COUNT);
+            for (Histogram histogram : histograms) {
+                out.writeLong(histogram.mTotal);
+                out.writeLong(histogram.mMax);
+                for (int i = 0; i < Histogram.BUCKET_COUNT; i++) {
+                    out.writeInt(histogram.mCounts[i]);
+                }
+            }
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            LogUtils.e("Failed to write alarm latency stats", e);
+            file.failWrite(stream);
+        }
+    }
+
+    private static AtomicFile getFile(Context context) {
+        return new AtomicFile(new File(context.getFilesDir(), STATS_FILE));
+    }
+}
@@ -26,10 +26,14 @@ import android.os.IBinder;
 
 import org.omnirom.deskclock.AlarmAlertWakeLock;
 import org.omnirom.deskclock.AlarmUtils;
+import org.omnirom.deskclock.AsyncHandler;
 import org.omnirom.deskclock.LogUtils;
 import org.omnirom.deskclock.Utils;
 import org.omnirom.deskclock.provider.AlarmInstance;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /**
  * This service is in charge of starting/stoping the alarm. It will bring up and manage the
  * {@link AlarmKlaxon}.
@@ -125,6 +129,13 @@ public class AlarmService extends Service {
         return null;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("Current alarm: " + mCurrentAlarm);
+        AlarmLatencyStats.dump(this, pw);
+        AsyncHandler.dump(pw);
+    }
+
     private Notification showAlarmNotification(Context context, AlarmInstance instance) {
         if (instance.mAlarmState == AlarmInstance.PRE_ALARM_STATE) {
             LogUtils.v("Displaying pre-alarm notification for alarm instance: " + instance.mId);
@@ -15,15 +15,17 @@
  */
 package org.omnirom.deskclock.alarms;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.PowerManager;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.widget.Toast;
 
@@ -38,8 +40,10 @@ import org.omnirom.deskclock.SettingsActivity;
 import org.omnirom.deskclock.Utils;
 import org.omnirom.deskclock.provider.Alarm;
 import org.omnirom.deskclock.provider.AlarmInstance;
+import org.omnirom.deskclock.provider.ClockContract;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
 
@@ -126,9 +130,6 @@ public final class AlarmStateManager extends BroadcastReceiver {
     public static final String ALARM_SNOOZE_TAG = "SNOOZE_TAG";
     public static final String ALARM_DELETE_TAG = "DELETE_TAG";
 
-    // Intent category tag used when schedule state change intents in alarm manager.
-    private static final String ALARM_MANAGER_TAG = "ALARM_MANAGER";
-
     // Buffer time in seconds to fire alarm instead of marking it missed.
     public static final int ALARM_FIRE_BUFFER = 15;
 
@@ -137,6 +138,10 @@ public final class AlarmStateManager extends BroadcastReceiver {
 
     private static int sSnoozeCount = 0;
 
+    // Instance writes collected by the current thread while in batch mode, null otherwise
+    private static final ThreadLocal<ArrayList<ContentProviderOperation>> sBatchOperations =
+            new ThreadLocal<ArrayList<ContentProviderOperation>>();
+
     public static int getGlobalIntentId(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         return prefs.getInt(ALARM_GLOBAL_ID_EXTRA, -1);
@@ -155,15 +160,62 @@ public final class AlarmStateManager extends BroadcastReceiver {
      * @param context application context
      */
     public static void updateNextAlarm(Context context) {
-        AlarmInstance nextAlarm = null;
+        if (sBatchOperations.get() != null) {
+            // Done once when the batch is applied
+            return;
+        }
         ContentResolver cr = context.getContentResolver();
         String activeAlarmQuery = AlarmInstance.ALARM_STATE + "<" + AlarmInstance.PRE_ALARM_STATE;
-        for (AlarmInstance instance : AlarmInstance.getInstances(cr, activeAlarmQuery)) {
-            if (nextAlarm == null || instance.getAlarmTime().before(nextAlarm.getAlarmTime())) {
-                nextAlarm = instance;
+        AlarmInstance nextAlarm = AlarmInstance.getNextInstance(cr, activeAlarmQuery);
+        AlarmNotifications.registerNextAlarmWithAlarmManager(context, nextAlarm);
+    }
+
+    /**
+     * Start collecting instance db writes of the current thread instead of applying
+     * them one by one. Must be followed by {@link #applyBatch}.
+     */
+    private static void beginBatch() {
+        sBatchOperations.set(new ArrayList<ContentProviderOperation>());
+    }
+
+    /**
+     * Apply all instance writes collected since {@link #beginBatch} in a single
+     * provider transaction and update the next alarm once.
+     *
+     * @param context application context
+     */
+    private static void applyBatch(Context context) {
+        ArrayList<ContentProviderOperation> operations = sBatchOperations.get();
+        sBatchOperations.remove();
+        if (operations != null && !operations.isEmpty()) {
+            try {
+                context.getContentResolver().applyBatch(ClockContract.AUTHORITY, operations);
+            } catch (RemoteException | OperationApplicationException e) {
+                LogUtils.e("Failed to apply instance batch", e);
             }
         }
-        AlarmNotifications.registerNextAlarmWithAlarmManager(context, nextAlarm);
+        updateNextAlarm(context);
+    }
+
+    private static void updateInstance(Context context, AlarmInstance instance) {
+        ArrayList<ContentProviderOperation> operations = sBatchOperations.get();
+        if (operations == null) {
+            AlarmInstance.updateInstance(context.getContentResolver(), instance);
+        } else if (instance.mId != AlarmInstance.INVALID_ID) {
+            operations.add(ContentProviderOperation.newUpdate(AlarmInstance.getUri(instance.mId))
+                    .withValues(AlarmInstance.createContentValues(instance))
+                    .build());
+        }
+    }
+
+    private static void deleteInstance(Context context, AlarmInstance instance) {
+        ArrayList<ContentProviderOperation> operations = sBatchOperations.get();
+        if (operations == null) {
+            AlarmInstance.deleteInstance(context.getContentResolver(), instance.mId);
+        } else if (instance.mId != AlarmInstance.INVALID_ID) {
+            operations.add(ContentProviderOperation.newDelete(AlarmInstance.getUri(instance.mId))
+                    .build());
+        }
     }
 
     /**
@@ -228,7 +280,7 @@ public final class AlarmStateManager extends BroadcastReceiver {
     }
 
     /**
-     * Schedule alarm instance state changes with {@link AlarmManager}.
+     * Schedule alarm instance state changes with the {@link AlarmStateScheduler}.
      *
      * @param context application context
      * @param time to trigger state change
@@ -240,31 +292,19 @@ public final class AlarmStateManager extends BroadcastReceiver {
         long timeInMillis = time.getTimeInMillis();
         LogUtils.v("Scheduling state change " + newState + " to instance " + instance.mId +
                 " at " + AlarmUtils.getFormattedTime(context, time) + " (" + timeInMillis + ")");
-        Intent stateChangeIntent = createStateChangeIntent(context, ALARM_MANAGER_TAG, instance,
-                newState);
-        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, instance.hashCode(),
-                stateChangeIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        am.setExact(AlarmManager.RTC_WAKEUP, timeInMillis, pendingIntent);
+        AlarmStateScheduler.schedule(context, instance.mId, timeInMillis, newState,
+                getGlobalIntentId(context));
     }
 
     /**
-     * Cancel all {@link AlarmManager} timers for instance.
+     * Cancel the pending state change of instance.
      *
      * @param context application context
-     * @param instance to disable all {@link AlarmManager} timers
+     * @param instance to cancel the pending state change for
      */
     private static void cancelScheduledInstance(Context context, AlarmInstance instance) {
         LogUtils.v("Canceling instance " + instance.mId + " timers");
-
-        // Create a PendingIntent that will match any one set for this instance
-        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, instance.hashCode(),
-                createStateChangeIntent(context, ALARM_MANAGER_TAG, instance, null),
-                PendingIntent.FLAG_UPDATE_CURRENT);
-
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        am.cancel(pendingIntent);
+        AlarmStateScheduler.cancel(context, instance.mId);
     }
 
 
@@ -280,9 +320,8 @@ public final class AlarmStateManager extends BroadcastReceiver {
         LogUtils.v("Setting silent state to instance " + instance.mId);
 
         // Update alarm in db
-        ContentResolver contentResolver = context.getContentResolver();
         instance.mAlarmState = AlarmInstance.SILENT_STATE;
-        AlarmInstance.updateInstance(contentResolver, instance);
+        updateInstance(context, instance);
 
         // Setup instance notification and scheduling timers
         int highNotificationOffset = Utils.getHighNotificationOffset(context);
@@ -355,9 +394,8 @@ public final class AlarmStateManager extends BroadcastReceiver {
         LogUtils.v("Setting high notification state to instance " + instance.mId);
 
         // Update alarm state in db
-        ContentResolver contentResolver = context.getContentResolver();
         instance.mAlarmState = AlarmInstance.HIGH_NOTIFICATION_STATE;
-        AlarmInstance.updateInstance(contentResolver, instance);
+        updateInstance(context, instance);
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         if (prefs.getBoolean(SettingsActivity.KEY_PRE_ALARM_NOTIFICATION_SHOW, true)) {
@@ -371,6 +409,9 @@ public final class AlarmStateManager extends BroadcastReceiver {
             scheduleInstanceStateChange(context, instance.getAlarmTime(),
                     instance, AlarmInstance.FIRED_STATE);
         }
+
+        // Prepare the sound so it can start right away when firing
+        AlarmAudioPreloader.warmUp(context, instance, instance.mPreAlarm);
     }
 
     /**
@@ -386,9 +427,8 @@ public final class AlarmStateManager extends BroadcastReceiver {
 
         int lastState = instance.mAlarmState;
         // Update alarm state in db
-        ContentResolver contentResolver = context.getContentResolver();
         instance.mAlarmState = AlarmInstance.FIRED_STATE;
-        AlarmInstance.updateInstance(contentResolver, instance);
+        updateInstance(context, instance);
 
         // Start the alarm if required and schedule timeout timer for it
         if (lastState == AlarmInstance.PRE_ALARM_STATE) {
@@ -405,6 +445,7 @@ public final class AlarmStateManager extends BroadcastReceiver {
 
         // Instance not valid anymore, so find next alarm that will fire and notify system
         updateNextAlarm(context);
+        AlarmLatencyStats.onStage(context, instance.mId, AlarmLatencyStats.TYPE_STATE_SET, false);
     }
 
     /**
@@ -419,9 +460,8 @@ public final class AlarmStateManager extends BroadcastReceiver {
         LogUtils.v("Setting pre fire state to instance " + instance.mId);
 
         // Update alarm state in db
-        ContentResolver contentResolver = context.getContentResolver();
         instance.mAlarmState = AlarmInstance.PRE_ALARM_STATE;
-        AlarmInstance.updateInstance(contentResolver, instance);
+        updateInstance(context, instance);
 
         // Schedule timeout timer for pre-alarm dismiss if before alarm
         Calendar timeout = instance.getPreAlarmTimeout(context);
@@ -433,6 +473,8 @@ public final class AlarmStateManager extends BroadcastReceiver {
         startAlarm(context, instance, true);
         scheduleInstanceStateChange(context, instance.getAlarmTime(),
                 instance, AlarmInstance.FIRED_STATE);
+        AlarmAudioPreloader.warmUp(context, instance, false);
+        AlarmLatencyStats.onStage(context, instance.mId, AlarmLatencyStats.TYPE_STATE_SET, false);
     }
 
     /**
@@ -446,9 +488,8 @@ public final class AlarmStateManager extends BroadcastReceiver {
         LogUtils.v("Setting pre fire dismiss state to instance " + instance.mId);
 
         // Update alarm state in db
-        ContentResolver contentResolver = context.getContentResolver();
         instance.mAlarmState = AlarmInstance.PRE_ALARM_DISMISS_STATE;
-        AlarmInstance.updateInstance(contentResolver, instance);
+        updateInstance(context, instance);
 
         AlarmNotifications.showPreAlarmDismissNotification(context, instance);
 
@@ -500,7 +541,7 @@ public final class AlarmStateManager extends BroadcastReceiver {
                 + AlarmUtils.getFormattedTime(context, newAlarmTime));
 
         instance.mAlarmState = AlarmInstance.SNOOZE_STATE;
-        AlarmInstance.updateInstance(context.getContentResolver(), instance);
+        updateInstance(context, instance);
 
         // Setup instance notification and scheduling timers
         AlarmNotifications.showSnoozeNotification(context, instance, newAlarmTime);
@@ -551,9 +592,8 @@ public final class AlarmStateManager extends BroadcastReceiver {
         }
 
         // Update alarm state
-        ContentResolver contentResolver = context.getContentResolver();
         instance.mAlarmState = AlarmInstance.MISSED_STATE;
-        AlarmInstance.updateInstance(contentResolver, instance);
+        updateInstance(context, instance);
 
         // Setup instance notification and scheduling timers
         AlarmNotifications.showMissedNotification(context, instance);
@@ -595,7 +635,7 @@ public final class AlarmStateManager extends BroadcastReceiver {
         }
 
         // Delete instance as it is not needed anymore
-        AlarmInstance.deleteInstance(context.getContentResolver(), instance.mId);
+        deleteInstance(context, instance);
 
         // Instance is not valid anymore, so find next alarm that will fire and notify system
         updateNextAlarm(context);
@@ -613,6 +653,7 @@ public final class AlarmStateManager extends BroadcastReceiver {
         stopAlarm(context, instance, instance.mAlarmState == AlarmInstance.PRE_ALARM_STATE);
         AlarmNotifications.clearNotification(context, instance);
         cancelScheduledInstance(context, instance);
+        AlarmAudioPreloader.discard(instance.mId);
     }
 
     /**
@@ -712,7 +753,9 @@ public final class AlarmStateManager extends BroadcastReceiver {
             }
         } else if (instance.mAlarmState == AlarmInstance.SNOOZE_STATE) {
             // We only want to display snooze notification and not update the time,
-            // so handle showing the notification directly
+            // so handle showing the notification directly. The db row is still
+            // rewritten so the stored trigger time follows timezone changes.
+            updateInstance(context, instance);
             AlarmNotifications.showSnoozeNotification(context, instance, instance.getAlarmTime());
             scheduleInstanceStateChange(context, instance.getAlarmTime(),
                     instance, AlarmInstance.FIRED_STATE);
@@ -767,11 +810,19 @@ public final class AlarmStateManager extends BroadcastReceiver {
     public static void fixAlarmInstances(Context context) {
         // Register all instances after major time changes or when phone restarts
         // TODO: Refactor this code to not use the overloaded registerInstance method.
+        // All instance writes go into one transaction and the next alarm is updated once.
         ContentResolver contentResolver = context.getContentResolver();
-        for (AlarmInstance instance : AlarmInstance.getInstances(contentResolver, null)) {
-            AlarmStateManager.registerInstance(context, instance, false);
+        beginBatch();
+        AlarmStateScheduler.hold();
+        AlarmStateScheduler.invalidateWakeup();
+        try {
+            for (AlarmInstance instance : AlarmInstance.getInstances(contentResolver, null)) {
+                AlarmStateManager.registerInstance(context, instance, false);
+            }
+        } finally {
+            applyBatch(context);
+            AlarmStateScheduler.release(context);
         }
-        AlarmStateManager.updateNextAlarm(context);
     }
 
     /**
@@ -824,23 +875,28 @@ public final class AlarmStateManager extends BroadcastReceiver {
             return;
         }
 
+        final long receiveWallTime = System.currentTimeMillis();
+        final long receiveElapsedTime = SystemClock.elapsedRealtime();
         final PendingResult result = goAsync();
         final PowerManager.WakeLock wl = AlarmAlertWakeLock.createPartialWakeLock(context);
         wl.acquire();
         AsyncHandler.post(new Runnable() {
             @Override
             public void run() {
-                handleIntent(context, intent);
+                handleIntent(context, intent, receiveWallTime, receiveElapsedTime);
                 result.finish();
                 wl.release();
             }
         });
     }
 
-    private void handleIntent(Context context, Intent intent) {
+    private void handleIntent(Context context, Intent intent, long receiveWallTime,
+            long receiveElapsedTime) {
         final String action = intent.getAction();
         LogUtils.v("AlarmStateManager received intent " + intent);
-        if (CHANGE_STATE_ACTION.equals(action)) {
+        if (AlarmStateScheduler.WAKEUP_ACTION.equals(action)) {
+            handleScheduledTransitions(context, receiveWallTime, receiveElapsedTime);
+        } else if (CHANGE_STATE_ACTION.equals(action)) {
             Uri uri = intent.getData();
             AlarmInstance instance = AlarmInstance.getInstance(context.getContentResolver(),
                     AlarmInstance.getId(uri));
@@ -887,6 +943,45 @@ public final class AlarmStateManager extends BroadcastReceiver {
         }
     }
 
+    /**
+     * Apply all state changes that are due, then register the next wakeup.
+     *
+     * @param context application context
+     * @param receiveWallTime wall time the wakeup was received
+     * @param receiveElapsedTime elapsed realtime the wakeup was received
+     */
+    private void handleScheduledTransitions(Context context, long receiveWallTime,
+            long receiveElapsedTime) {
+        List<AlarmStateScheduler.Transition> transitions =
+                AlarmStateScheduler.drainDue(context, System.currentTimeMillis());
+        try {
+            int globalId = getGlobalIntentId(context);
+            ContentResolver cr = context.getContentResolver();
+            for (AlarmStateScheduler.Transition transition : transitions) {
+                if (transition.globalId != globalId) {
+                    LogUtils.i("Ignoring old " + transition + " GlobalId: " + globalId);
+                    continue;
+                }
+                AlarmInstance instance = AlarmInstance.getInstance(cr, transition.instanceId);
+                if (instance == null) {
+                    // Not a big deal, but it shouldn't happen
+                    LogUtils.e("Can not change state for unknown instance: "
+                            + transition.instanceId);
+                    continue;
+                }
+                boolean firing = transition.state == AlarmInstance.FIRED_STATE
+                        || transition.state == AlarmInstance.PRE_ALARM_STATE;
+                AlarmLatencyStats.onReceive(context, instance.mId, transition.time,
+                        receiveWallTime, receiveElapsedTime, firing);
+                LogUtils.v("AlarmStateManager change from: " + instance);
+                setAlarmState(context, instance, transition.state);
+                LogUtils.v("AlarmStateManager change to: " + instance);
+            }
+        } finally {
+            AlarmStateScheduler.release(context);
+        }
+    }
+
     /**
      * Creates an intent that can be used to set an AlarmManager alarm to set the next alarm
      * indicators.
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock.alarms;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+
+import org.omnirom.deskclock.LogUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Keeps the pending state change of every alarm instance in one time ordered queue
+ * and registers only the earliest of them with {@link AlarmManager}. When that wakeup
+ * is delivered to {@link AlarmStateManager} all transitions that are due are drained
+ * and the next wakeup is registered.
+ *
+ * Like a per instance PendingIntent there is at most one pending transition per
+ * instance, scheduling a new one replaces the previous one.
+ *
+ * The queue is persisted to its own preferences file so it survives process death.
+ */
+final class AlarmStateScheduler {
+    // Intent action of the single AlarmManager wakeup
+    static final String WAKEUP_ACTION = "scheduled_state_change";
+
+    private static final String PREFS_NAME = "alarm_state_schedule";
+
+    /**
+     * A pending state change of one instance.
+     */
+    static final class Transition implements Comparable<Transition> {
+        final long instanceId;
+        final long time;
+        final int state;
+        final int globalId;
+
+        Transition(long instanceId, long time, int state, int globalId) {
+            this.instanceId = instanceId;
+            this.time = time;
+            this.state = state;
+            this.globalId = globalId;
+        }
+
+        @Override
+        public int compareTo(Transition other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            if (instanceId != other.instanceId) {
+                return instanceId < other.instanceId ? -1 : 1;
+            }
+            return 0;
+        }
+
+        private String encode() {
+            return time + "," + state + "," + globalId;
+        }
+
+        private static Transition decode(String key, String value) {
+            try {
+                String[] parts = value.split(",");
+                return new Transition(Long.parseLong(key), Long.parseLong(parts[0]),
+                        Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+            } catch (RuntimeException e) {
+                LogUtils.e("Dropping invalid scheduled transition " + key + "=" + value);
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Transition{instanceId=" + instanceId + ", time=" + time
+                    + ", state=" + state + ", globalId=" + globalId + "}";
+        }
+    }
+
+    // Ordered by time, the first element is the one registered with AlarmManager
+    private static TreeSet<Transition> sQueue;
+    private static Map<Long, Transition> sByInstance;
+
+    // While held, wakeup registration and persisting are deferred until release
+    private static int sHoldCount;
+    private static SharedPreferences.Editor sPendingEdit;
+    // Time of the wakeup known to be pending with AlarmManager, -1 if there is none
+    private static long sRegisteredTime = -1;
+
+    private AlarmStateScheduler() {}
+
+    /**
+     * Schedule a state change for an instance replacing any pending one.
+     */
+    static synchronized void schedule(Context context, long instanceId, long time, int state,
+            int globalId) {
+        ensureLoaded(context);
+        Transition transition = new Transition(instanceId, time, state, globalId);
+        Transition old = sByInstance.put(instanceId, transition);
+        if (old != null) {
+            sQueue.remove(old);
+        }
+        sQueue.add(transition);
+        edit(context).putString(String.valueOf(instanceId), transition.encode());
+        commit(context);
+    }
+
+    /**
+     * Remove the pending state change of an instance if there is one.
+     */
+    static synchronized void cancel(Context context, long instanceId) {
+        ensureLoaded(context);
+        Transition old = sByInstance.remove(instanceId);
+        if (old == null) {
+            return;
+        }
+        sQueue.remove(old);
+        edit(context).remove(String.valueOf(instanceId));
+        commit(context);
+    }
+
+    /**
+     * Defer wakeup registration and persisting until the matching {@link #release}.
+     */
+    static synchronized void hold() {
+        sHoldCount++;
+    }
+
+    static synchronized void release(Context context) {
+        if (sHoldCount > 0) {
+            sHoldCount--;
+        }
+        commit(context);
+    }
+
+    /**
+     * Forget the registered wakeup so the next {@link #release} registers the earliest
+     * transition again. Used when all instances are re-registered, e.g. after a time change.
+     */
+    static synchronized void invalidateWakeup() {
+        sRegisteredTime = -1;
+    }
+
+    /**
+     * Remove and return all transitions that are due at now, in time order. The scheduler
+     * is held on return so transitions scheduled while dispatching them only register a
+     * single wakeup on {@link #release}.
+     */
+    static synchronized List<Transition> drainDue(Context context, long now) {
+        ensureLoaded(context);
+        hold();
+        // The wakeup was consumed, the next one must be registered even if its time is
+        // unchanged because nothing was due yet
+        sRegisteredTime = -1;
+        List<Transition> due = new ArrayList<Transition>();
+        while (!sQueue.isEmpty() && sQueue.first().time <= now) {
+            Transition transition = sQueue.pollFirst();
+            sByInstance.remove(transition.instanceId);
+            edit(context).remove(String.valueOf(transition.instanceId));
+            due.add(transition);
+        }
+        LogUtils.v("Drained " + due.size() + " due transitions, " + sQueue.size() + " pending");
+        return due;
+    }
+
+    private static void ensureLoaded(Context context) {
+        if (sQueue != null) {
+            return;
+        }
+        sQueue = new TreeSet<Transition>();
+        sByInstance = new HashMap<Long, Transition>();
+        sRegisteredTime = -1;
+        Map<String, ?> entries = getPrefs(context).getAll();
+        for (Map.Entry<String, ?> entry : entries.entrySet()) {
+            if (!(entry.getValue() instanceof String)) {
+                continue;
+            }
+            Transition transition = Transition.decode(entry.getKey(), (String) entry.getValue());
+            if (transition != null) {
+                sQueue.add(transition);
+                sByInstance.put(transition.instanceId, transition);
+            }
+        }
+        LogUtils.v("Loaded " + sQueue.size() + " scheduled transitions");
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static SharedPreferences.Editor edit(Context context) {
+        if (sPendingEdit == null) {
+            sPendingEdit = getPrefs(context).edit();
+        }
+        return sPendingEdit;
+    }
+
+    private static void commit(Context context) {
+        if (sHoldCount > 0) {
+            return;
+        }
+        if (sPendingEdit != null) {
+            sPendingEdit.apply();
+            sPendingEdit = null;
+        }
+        updateWakeup(context);
+    }
+
+    /**
+     * Register the earliest transition with AlarmManager unless it is already pending.
+     */
+    private static void updateWakeup(Context context) {
+        long nextTime = sQueue == null || sQueue.isEmpty() ? -1 : sQueue.first().time;
+        if (sRegisteredTime >= 0 && nextTime == sRegisteredTime) {
+            return;
+        }
+
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent pendingIntent = createWakeupIntent(context);
+        if (nextTime < 0) {
+            LogUtils.v("No scheduled transitions, canceling wakeup");
+            am.cancel(pendingIntent);
+        } else {
+            LogUtils.v("Scheduling wakeup at " + nextTime + " for " + sQueue.first());
+            am.setExact(AlarmManager.RTC_WAKEUP, nextTime, pendingIntent);
+        }
+        sRegisteredTime = nextTime;
+    }
+
+    private static PendingIntent createWakeupIntent(Context context) {
+        Intent intent = new Intent(context, AlarmStateManager.class).setAction(WAKEUP_ACTION);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
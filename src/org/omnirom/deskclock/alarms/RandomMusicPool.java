@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock.alarms;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.AtomicFile;
+
+import org.omnirom.deskclock.AsyncHandler;
+import org.omnirom.deskclock.LogUtils;
+import org.omnirom.deskclock.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Shuffled pool of music ids used by random music alarms, so firing an alarm does not
+ * have to sort the whole media store.
+ *
+ * The pool is a file of a header followed by the shuffled ids as longs. Firing reads
+ * only the header and the ids it needs from the current position. Songs played by an
+ * alarm move the position forward, so the following alarms continue with songs that
+ * were not heard yet until the whole pool was played.
+ *
+ * The pool is rebuilt in the background by {@link RefreshJob}, which runs whenever the
+ * media store changes. Rebuilding keeps the order of songs that were not played yet.
+ */
+public final class RandomMusicPool {
+    private static final String POOL_FILE = "random_music_pool.dat";
+    private static final int POOL_FILE_VERSION = 1;
+    // Version, count and position ints
+    private static final int HEADER_SIZE = 12;
+    private static final int POSITION_OFFSET = 8;
+
+    private static final int REFRESH_JOB_ID = 1;
+    // Wait for media scans to settle before rebuilding
+    private static final long REFRESH_UPDATE_DELAY = 10 * 1000;
+    private static final long REFRESH_MAX_DELAY = 10 * 60 * 1000;
+
+    private static final Random sRandom = new Random();
+
+    private RandomMusicPool() {}
+
+    /**
+     * Rebuilds the pool when the media store changes.
+     */
+    public static final class RefreshJob extends JobService {
+        @Override
+        public boolean onStartJob(final JobParameters params) {
+            AsyncHandler.post(AsyncHandler.LANE_BULK, new Runnable() {
+                @Override
+                public void run() {
+                    refresh(RefreshJob.this);
+                    jobFinished(params, false);
+                    // Content triggers only fire once
+                    scheduleRefresh(RefreshJob.this);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean onStopJob(JobParameters params) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the next songs of the pool without moving its position. Falls back to
+     * querying the media store if there is no pool yet.
+     *
+     * @param context application context
+     * @param size maximum number of songs
+     */
+    public static List<Uri> getSongs(Context context, int size) {
+        List<Uri> songs = readSongs(context, size);
+        if (songs == null) {
+            LogUtils.v("No random music pool, querying media store");
+            refreshAsync(context);
+            return Utils.getRandomMusicFiles(context, size);
+        }
+        return songs;
+    }
+
+    /**
+     * Move the position of the pool past songs that were played. Once all songs were
+     * played the pool is shuffled again.
+     *
+     * @param played number of distinct songs from the position that were played or skipped
+     */
+    public static synchronized void advance(Context context, int played) {
+        AtomicFile file = getFile(context);
+        DataInputStream in = null;
+        int position;
+        try {
+            // Restores the pool if a rewrite was interrupted
+            in = new DataInputStream(file.openRead());
+            if (in.readInt() != POOL_FILE_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            position = in.readInt() + played;
+            if (position >= count) {
+                position = -1;
+            }
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException e) {
+            LogUtils.e("Failed to advance random music pool", e);
+            return;
+        } finally {
+            Utils.closeQuietly(in);
+        }
+
+        if (position >= 0) {
+            // Only the position changes, it is written in place
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file.getBaseFile(), "rw");
+                raf.seek(POSITION_OFFSET);
+                raf.writeInt(position);
+            } catch (IOException e) {
+                LogUtils.e("Failed to advance random music pool", e);
+            } finally {
+                Utils.closeQuietly(raf);
+            }
+            return;
+        }
+
+        // All songs played, start over with a new order
+        List<Long> ids = readIds(context);
+        if (ids != null) {
+            Collections.shuffle(ids, sRandom);
+            write(context, ids);
+        }
+    }
+
+    /**
+     * Rebuild the pool in the background now and on every media store change.
+     */
+    public static void refreshAsync(final Context context) {
+        AsyncHandler.post(AsyncHandler.LANE_BULK, new Runnable() {
+            @Override
+            public void run() {
+                refresh(context);
+            }
+        });
+        scheduleRefresh(context);
+    }
+
+    /**
+     * Schedule rebuilding the pool on the next media store change.
+     */
+    public static void scheduleRefresh(Context context) {
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(
+                Context.JOB_SCHEDULER_SERVICE);
+        JobInfo job = new JobInfo.Builder(REFRESH_JOB_ID,
+                new ComponentName(context, RefreshJob.class))
+                .addTriggerContentUri(new JobInfo.TriggerContentUri(
+                        MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                        JobInfo.TriggerContentUri.FLAG_NOTIFY_FOR_DESCENDANTS))
+                .setTriggerContentUpdateDelay(REFRESH_UPDATE_DELAY)
+                .setTriggerContentMaxDelay(REFRESH_MAX_DELAY)
+                .build();
+        scheduler.schedule(job);
+    }
+
+    /**
+     * Rebuild the pool from the media store. Songs that were not played yet keep their
+     * order, new songs are mixed in and played songs are shuffled to the end.
+     *
+     * The media store is queried without holding the class lock, so an alarm reading or
+     * advancing the pool never waits for the query, only for the rewrite of the file.
+     */
+    public static void refresh(Context context) {
+        Set<Long> current = queryMusicIds(context);
+        if (current == null) {
+            return;
+        }
+        merge(context, current);
+    }
+
+    private static synchronized void merge(Context context, Set<Long> current) {
+        List<Long> unplayed = new ArrayList<Long>();
+        List<Long> played = new ArrayList<Long>();
+        Set<Long> known = new HashSet<Long>();
+        int position = readPosition(context);
+        List<Long> old = readIds(context);
+        if (old != null) {
+            for (int i = 0; i < old.size(); i++) {
+                Long id = old.get(i);
+                if (current.contains(id) && known.add(id)) {
+                    (i < position ? played : unplayed).add(id);
+                }
+            }
+        }
+        for (Long id : current) {
+            if (!known.contains(id)) {
+                unplayed.add(sRandom.nextInt(unplayed.size() + 1), id);
+            }
+        }
+        Collections.shuffle(played, sRandom);
+        unplayed.addAll(played);
+        write(context, unplayed);
+        LogUtils.v("Random music pool refreshed with " + unplayed.size() + " songs");
+    }
+
+    private static Set<Long> queryMusicIds(Context context) {
+        String selection = MediaStore.Audio.Media.IS_MUSIC + " != 0";
+        String[] projection = {
+                MediaStore.Audio.Media._ID
+        };
+        Cursor c = null;
+        try {
+            c = context.getContentResolver().query(
+                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                    projection,
+                    selection,
+                    null,
+                    null);
+        } catch (SecurityException e) {
+            // No external storage permissions
+            LogUtils.e("Failed to query music files", e);
+        }
+        if (c == null) {
+            return null;
+        }
+        Set<Long> ids = new HashSet<Long>(c.getCount());
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    /**
+     * @return up to size songs from the current position, or null if there is no pool
+     */
+    private static synchronized List<Uri> readSongs(Context context, int size) {
+        FileInputStream stream = null;
+        try {
+            stream = getFile(context).openRead();
+            // Unbuffered, so the channel position is the read position
+            DataInputStream in = new DataInputStream(stream);
+            FileChannel channel = stream.getChannel();
+            if (in.readInt() != POOL_FILE_VERSION) {
+                return null;
+            }
+            int count = in.readInt();
+            int position = in.readInt();
+            if (count <= 0 || position < 0 || position >= count
+                    || HEADER_SIZE + 8L * count > channel.size()) {
+                return null;
+            }
+            size = Math.min(size, count);
+            List<Uri> songs = new ArrayList<Uri>(size);
+            channel.position(HEADER_SIZE + 8L * position);
+            for (int i = 0; i < size; i++) {
+                if (position + i == count) {
+                    // Wrap around
+                    channel.position(HEADER_SIZE);
+                }
+                songs.add(Uri.withAppendedPath(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                        String.valueOf(in.readLong())));
+            }
+            return songs;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            LogUtils.e("Failed to read random music pool", e);
+            return null;
+        } finally {
+            Utils.closeQuietly(stream);
+        }
+    }
+
+    private static List<Long> readIds(Context context) {
+        AtomicFile file = getFile(context);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(file.openRead()));
+            if (in.readInt() != POOL_FILE_VERSION) {
+                return null;
+            }
+            int count = in.readInt();
+            in.readInt();
+            if (count < 0 || HEADER_SIZE + 8L * count > file.getBaseFile().length()) {
+                LogUtils.e("Corrupt random music pool with " + count + " songs");
+                return null;
+            }
+            List<Long> ids = new ArrayList<Long>(count);
+            for (int i = 0; i < count; i++) {
+                ids.add(in.readLong());
+            }
+            return ids;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            LogUtils.e("Failed to read random music pool", e);
+            return null;
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    private static int readPosition(Context context) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(getFile(context).openRead());
+            in.skipBytes(POSITION_OFFSET);
+            return in.readInt();
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write a new pool with position 0, replacing the old file atomically.
+     */
+    private static void write(Context context, List<Long> ids) {
+        AtomicFile file = getFile(context);
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(POOL_FILE_VERSION);
+            out.writeInt(ids.size());
+            out.writeInt(0);
+            for (Long id : ids) {
+                out.writeLong(id);
+            }
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            LogUtils.e("Failed to write random music pool", e);
+            file.failWrite(stream);
+        }
+    }
+
+    private static AtomicFile getFile(Context context) {
+        return new AtomicFile(new File(context.getFilesDir(), POOL_FILE));
+    }
+}
@@ -115,7 +115,7 @@ public class TestAlarmKlaxon {
             if (Utils.isRandomUri(alarmNoise.toString())) {
                 sRandomMusicMode = true;
                 sRandomPlayback = true;
-                mSongs = Utils.getRandomMusicFiles(context, 50);
+                mSongs = RandomMusicPool.getSongs(context, 50);
                 if (mSongs.size() != 0) {
                     alarmNoise = mSongs.get(0);
                     sErrorHandler.onTrackChanged(alarmNoise);
@@ -31,6 +31,7 @@ import android.os.Parcelable;
 import java.util.Calendar;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.TimeZone;
 
 public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
     /**
@@ -400,25 +401,10 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
     }
 
     public AlarmInstance createInstanceAfter(Calendar time) {
+        long nextTriggerTime = AlarmRecurrence.nextTriggerTime(time.getTimeInMillis(),
+                TimeZone.getDefault(), hour, minutes, daysOfWeek.getBitSet());
         Calendar nextInstanceTime = Calendar.getInstance();
-        nextInstanceTime.set(Calendar.YEAR, time.get(Calendar.YEAR));
-        nextInstanceTime.set(Calendar.MONTH, time.get(Calendar.MONTH));
-        nextInstanceTime.set(Calendar.DAY_OF_MONTH, time.get(Calendar.DAY_OF_MONTH));
-        nextInstanceTime.set(Calendar.HOUR_OF_DAY, hour);
-        nextInstanceTime.set(Calendar.MINUTE, minutes);
-        nextInstanceTime.set(Calendar.SECOND, 0);
-        nextInstanceTime.set(Calendar.MILLISECOND, 0);
-
-        // If we are still behind the passed in time, then add a day
-        if (nextInstanceTime.getTimeInMillis() <= time.getTimeInMillis()) {
-            nextInstanceTime.add(Calendar.DAY_OF_YEAR, 1);
-        }
-
-        // The day of the week might be invalid, so find next valid one
-        int addDays = daysOfWeek.calculateDaysToNextAlarm(nextInstanceTime);
-        if (addDays > 0) {
-            nextInstanceTime.add(Calendar.DAY_OF_WEEK, addDays);
-        }
+        nextInstanceTime.setTimeInMillis(nextTriggerTime);
 
         AlarmInstance result = new AlarmInstance(nextInstanceTime, id);
         result.mVibrate = vibrate;
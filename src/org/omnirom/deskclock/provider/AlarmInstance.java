@@ -85,7 +85,8 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
             PRE_ALARM_RINGTONE,
             RANDOM_MODE,
             RINGTONE_NAME,
-            PRE_ALARM_RINGTONE_NAME
+            PRE_ALARM_RINGTONE_NAME,
+            TRIGGER_TIME
     };
 
     /**
@@ -112,7 +113,8 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
     private static final int RANDOM_MODE_INDEX = 17;
     private static final int RINGTONE_NAME_INDEX = 18;
     private static final int PRE_ALARM_RINGTONE_NAME_INDEX = 19;
-    private static final int COLUMN_COUNT = PRE_ALARM_RINGTONE_NAME_INDEX + 1;
+    private static final int TRIGGER_TIME_INDEX = 20;
+    private static final int COLUMN_COUNT = TRIGGER_TIME_INDEX + 1;
 
     private Calendar mTimeout;
 
@@ -127,6 +129,7 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
         values.put(DAY, instance.mDay);
         values.put(HOUR, instance.mHour);
         values.put(MINUTES, instance.mMinute);
+        values.put(TRIGGER_TIME, instance.getAlarmTime().getTimeInMillis());
         values.put(LABEL, instance.mLabel);
         values.put(VIBRATE, instance.mVibrate ? 1 : 0);
         values.put(INCREASING_VOLUME, instance.mIncreasingVolume);
@@ -242,6 +245,38 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
         return result;
     }
 
+    /**
+     * Get the instance with the earliest trigger time matching selection.
+     *
+     * @param contentResolver to perform the query on.
+     * @param selection A filter declaring which rows to consider, formatted as an
+     *         SQL WHERE clause (excluding the WHERE itself). Passing null will
+     *         consider all rows.
+     * @param selectionArgs You may include ?s in selection, which will be
+     *         replaced by the values from selectionArgs, in the order that they
+     *         appear in the selection. The values will be bound as Strings.
+     * @return first instance to fire or null if none found.
+     */
+    public static AlarmInstance getNextInstance(ContentResolver contentResolver,
+            String selection, String ... selectionArgs) {
+        Cursor cursor = contentResolver.query(NEXT_CONTENT_URI, QUERY_COLUMNS,
+                selection, selectionArgs, null);
+        AlarmInstance result = null;
+        if (cursor == null) {
+            return result;
+        }
+
+        try {
+            if (cursor.moveToFirst()) {
+                result = new AlarmInstance(cursor);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return result;
+    }
+
     public static AlarmInstance addInstance(ContentResolver contentResolver,
             AlarmInstance instance) {
         // Make sure we are not adding a duplicate instances. This is not a
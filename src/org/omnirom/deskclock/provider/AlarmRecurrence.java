@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock.provider;
+
+import java.util.TimeZone;
+
+/**
+ * Computes alarm trigger times on epoch millis without Calendar objects.
+ *
+ * Days are handled as local epoch days in the given zone and the {@link DaysOfWeek}
+ * bit set is resolved through a precomputed table of days until the next set bit.
+ *
+ * Local wall times are mapped back to instants as follows:
+ * <ul>
+ *     <li>In a DST gap the wall time is shifted forward by the length of the gap,
+ *     so 02:30 in a 02:00 -> 03:00 gap fires at 03:30</li>
+ *     <li>In a DST overlap the earlier of both instants is used, so the alarm fires
+ *     at the first occurrence of the wall time</li>
+ * </ul>
+ */
+public final class AlarmRecurrence {
+    private static final long MINUTE_MILLIS = 60 * 1000L;
+    private static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    // 1970-01-01 was a thursday, bit index 3 in DaysOfWeek
+    private static final int EPOCH_DAY_BIT_INDEX = 3;
+
+    private static final int BIT_SETS = DaysOfWeek.ALL_DAYS_SET + 1;
+
+    /**
+     * Days from a day bit index until the next set bit, indexed by
+     * bitSet * DAYS_IN_A_WEEK + dayBitIndex. -1 if no bit is set.
+     */
+    private static final byte[] DAYS_UNTIL_NEXT = new byte[BIT_SETS * DaysOfWeek.DAYS_IN_A_WEEK];
+
+    static {
+        for (int bitSet = 0; bitSet < BIT_SETS; bitSet++) {
+            for (int day = 0; day < DaysOfWeek.DAYS_IN_A_WEEK; day++) {
+                int days = -1;
+                for (int i = 0; i < DaysOfWeek.DAYS_IN_A_WEEK; i++) {
+                    if ((bitSet & (1 << ((day + i) % DaysOfWeek.DAYS_IN_A_WEEK))) != 0) {
+                        days = i;
+                        break;
+                    }
+                }
+                DAYS_UNTIL_NEXT[bitSet * DaysOfWeek.DAYS_IN_A_WEEK + day] = (byte) days;
+            }
+        }
+    }
+
+    /**
+     * This utility class cannot be instantiated
+     */
+    private AlarmRecurrence() {}
+
+    /**
+     * Returns number of days from the given day until the next set day.
+     *
+     * @param bitSet {@link DaysOfWeek} bit set
+     * @param dayBitIndex day in {@link DaysOfWeek} bit index, monday is 0
+     * @return days until next set day, or -1 if no day is set
+     */
+    public static int daysUntilNext(int bitSet, int dayBitIndex) {
+        return DAYS_UNTIL_NEXT[(bitSet & DaysOfWeek.ALL_DAYS_SET) * DaysOfWeek.DAYS_IN_A_WEEK
+                + dayBitIndex];
+    }
+
+    /**
+     * Returns the first trigger time strictly after a given time.
+     *
+     * @param afterMillis time the result has to be after
+     * @param zone time zone hour and minutes are in
+     * @param hour in 24-hour localtime 0 - 23
+     * @param minutes in localtime 0 - 59
+     * @param bitSet {@link DaysOfWeek} bit set, no days set means the next occurrence
+     * @return trigger time in millis since epoch
+     */
+    public static long nextTriggerTime(long afterMillis, TimeZone zone, int hour, int minutes,
+            int bitSet) {
+        long epochDay = Math.floorDiv(afterMillis + zone.getOffset(afterMillis), DAY_MILLIS);
+        long timeOfDay = hour * HOUR_MILLIS + minutes * MINUTE_MILLIS;
+
+        // If we are still behind the passed in time, then add a day
+        if (toInstant(epochDay * DAY_MILLIS + timeOfDay, zone) <= afterMillis) {
+            epochDay++;
+        }
+
+        // The day of the week might be invalid, so find next valid one
+        int addDays = daysUntilNext(bitSet, dayBitIndex(epochDay));
+        if (addDays > 0) {
+            epochDay += addDays;
+        }
+        return toInstant(epochDay * DAY_MILLIS + timeOfDay, zone);
+    }
+
+    /**
+     * Returns the {@link DaysOfWeek} bit index of a local epoch day, monday is 0.
+     */
+    static int dayBitIndex(long epochDay) {
+        return (int) Math.floorMod(epochDay + EPOCH_DAY_BIT_INDEX, DaysOfWeek.DAYS_IN_A_WEEK);
+    }
+
+    /**
+     * Map a local wall time, expressed as millis since the local epoch, to an instant.
+     */
+    static long toInstant(long wallMillis, TimeZone zone) {
+        // Offsets on both sides of any transition close to the wall time
+        int offsetBefore = zone.getOffset(wallMillis - DAY_MILLIS);
+        int offsetAfter = zone.getOffset(wallMillis + DAY_MILLIS);
+
+        long before = wallMillis - offsetBefore;
+        long after = wallMillis - offsetAfter;
+        boolean beforeValid = zone.getOffset(before) == offsetBefore;
+        boolean afterValid = zone.getOffset(after) == offsetAfter;
+        if (beforeValid && afterValid) {
+            // Unambiguous or overlap, use the first occurrence
+            return Math.min(before, after);
+        } else if (afterValid) {
+            return after;
+        } else if (beforeValid) {
+            return before;
+        }
+        // Gap, the pre-transition offset moves the time past the transition by the gap
+        return before;
+    }
+}
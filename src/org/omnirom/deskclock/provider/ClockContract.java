@@ -34,6 +34,7 @@ import android.provider.BaseColumns;
  * alarm in the AlarmsColumn table.
  * </li>
  * <li>The {@link CitiesColumns} table holds all user selectable cities</li>
+ * <li>The {@link TimersColumns} table holds the user created timers</li>
  * </ul>
  */
 public final class ClockContract {
@@ -187,6 +188,13 @@ public final class ClockContract {
          */
         public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/instances");
 
+        /**
+         * The content:// style URL returning only the instance with the earliest
+         * {@link #TRIGGER_TIME} matching the given selection.
+         */
+        public static final Uri NEXT_CONTENT_URI =
+                Uri.parse("content://" + AUTHORITY + "/instances/next");
+
         /**
          * Alarm state when to show no notification.
          *
@@ -317,6 +325,13 @@ public final class ClockContract {
          * <p>Type: INTEGER</p>
          */
         public static final String ALARM_STATE = "alarm_state";
+
+        /**
+         * Alarm time in milliseconds since epoch, derived from the localtime
+         * fields above when the instance was last written.
+         * <p>Type: INTEGER (long)</p>
+         */
+        public static final String TRIGGER_TIME = "trigger_time";
     }
 
     /**
@@ -352,4 +367,63 @@ public final class ClockContract {
          */
         public static final String TIMEZONE_OFFSET = "timezone_offset";
     }
+
+    /**
+     * Constants for the Timers table, which contains the user created timers.
+     */
+    public interface TimersColumns extends BaseColumns {
+        /**
+         * The content:// style URL for this table.
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/timers");
+
+        /**
+         * Time the timer was last started, together with the original length used
+         * to calculate the time left.
+         * <p>Type: INTEGER (long)</p>
+         */
+        public static final String START_TIME = "start_time";
+
+        /**
+         * Time left in milliseconds when the timer was last updated.
+         * <p>Type: INTEGER (long)</p>
+         */
+        public static final String TIME_LEFT = "time_left";
+
+        /**
+         * Length in milliseconds set at start and extended by +1 min after times up.
+         * <p>Type: INTEGER (long)</p>
+         */
+        public static final String ORIGINAL_LENGTH = "original_length";
+
+        /**
+         * Length in milliseconds set at start.
+         * <p>Type: INTEGER (long)</p>
+         */
+        public static final String SETUP_LENGTH = "setup_length";
+
+        /**
+         * Timer state.
+         * <p>Type: INTEGER</p>
+         */
+        public static final String STATE = "state";
+
+        /**
+         * Timer label.
+         * <p>Type: STRING</p>
+         */
+        public static final String LABEL = "label";
+
+        /**
+         * True if the timer is deleted after it has been used.
+         * <p>Type: BOOLEAN</p>
+         */
+        public static final String DELETE_AFTER_USE = "delete_after_use";
+
+        /**
+         * Segments and repeat count of a sequence timer, null for a single countdown.
+         * <p>Type: STRING</p>
+         */
+        public static final String SEQUENCE = "sequence";
+    }
 }
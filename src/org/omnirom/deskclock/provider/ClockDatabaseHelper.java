@@ -18,16 +18,19 @@ package org.omnirom.deskclock.provider;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.preference.PreferenceManager;
 import android.text.TextUtils;
 
 import org.omnirom.deskclock.LogUtils;
 
 import java.util.Calendar;
+import java.util.Set;
 
 /**
  * Helper class for opening the database from multiple providers.  Also provides
@@ -62,12 +65,29 @@ class ClockDatabaseHelper extends SQLiteOpenHelper {
      */
     private static final int VERSION_9 = 9;
 
+    /**
+     * Added trigger time column and state/trigger time index to instance table
+     */
+    private static final int VERSION_10 = 10;
+
+    /**
+     * Added timers table, replacing the timer keys in the default shared preferences
+     */
+    private static final int VERSION_11 = 11;
+
+    /**
+     * Added sequence column to timers table
+     */
+    private static final int VERSION_12 = 12;
+
     // Database and table names
     static final String DATABASE_NAME = "alarms.db";
     static final String OLD_ALARMS_TABLE_NAME = "alarms";
     static final String ALARMS_TABLE_NAME = "alarm_templates";
     static final String INSTANCES_TABLE_NAME = "alarm_instances";
     static final String CITIES_TABLE_NAME = "selected_cities";
+    static final String TIMERS_TABLE_NAME = "timers";
+    static final String INSTANCES_STATE_TRIGGER_INDEX_NAME = "alarm_instances_state_trigger";
 
     private static void createAlarmsTable(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE " + ALARMS_TABLE_NAME + " (" +
@@ -115,10 +135,51 @@ class ClockDatabaseHelper extends SQLiteOpenHelper {
                 ClockContract.InstancesColumns.PRE_ALARM_RINGTONE + " TEXT, " +
                 ClockContract.InstancesColumns.RANDOM_MODE + " INTEGER NOT NULL DEFAULT 0, " +
                 ClockContract.InstancesColumns.RINGTONE_NAME + " TEXT, " +
-                ClockContract.InstancesColumns.PRE_ALARM_RINGTONE_NAME + " TEXT);");
+                ClockContract.InstancesColumns.PRE_ALARM_RINGTONE_NAME + " TEXT, " +
+                ClockContract.InstancesColumns.TRIGGER_TIME + " INTEGER NOT NULL DEFAULT 0);");
+        createInstanceIndex(db);
         LogUtils.i("Instance table created");
     }
 
+    private static void createInstanceIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INSTANCES_STATE_TRIGGER_INDEX_NAME + " ON " +
+                INSTANCES_TABLE_NAME + " (" +
+                ClockContract.InstancesColumns.ALARM_STATE + ", " +
+                ClockContract.InstancesColumns.TRIGGER_TIME + ");");
+    }
+
+    /**
+     * Fill the trigger time column of all existing instances from their
+     * localtime fields.
+     */
+    private static void backfillInstanceTriggerTimes(SQLiteDatabase db) {
+        String[] columns = {
+                ClockContract.InstancesColumns._ID,
+                ClockContract.InstancesColumns.YEAR,
+                ClockContract.InstancesColumns.MONTH,
+                ClockContract.InstancesColumns.DAY,
+                ClockContract.InstancesColumns.HOUR,
+                ClockContract.InstancesColumns.MINUTES,
+        };
+        Cursor cursor = db.query(INSTANCES_TABLE_NAME, columns, null, null, null, null, null);
+        Calendar calendar = Calendar.getInstance();
+        ContentValues values = new ContentValues(1);
+        try {
+            while (cursor.moveToNext()) {
+                calendar.clear();
+                calendar.set(cursor.getInt(1), cursor.getInt(2), cursor.getInt(3),
+                        cursor.getInt(4), cursor.getInt(5), 0);
+                values.put(ClockContract.InstancesColumns.TRIGGER_TIME,
+                        calendar.getTimeInMillis());
+                db.update(INSTANCES_TABLE_NAME, values,
+                        ClockContract.InstancesColumns._ID + "=" + cursor.getLong(0), null);
+            }
+        } finally {
+            cursor.close();
+        }
+        LogUtils.i("Instance trigger times filled");
+    }
+
     private static void createCitiesTable(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE " + CITIES_TABLE_NAME + " (" +
                 ClockContract.CitiesColumns.CITY_ID + " TEXT PRIMARY KEY," +
@@ -128,10 +189,79 @@ class ClockDatabaseHelper extends SQLiteOpenHelper {
         LogUtils.i("Cities table created");
     }
 
+    private static void createTimersTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TIMERS_TABLE_NAME + " (" +
+                ClockContract.TimersColumns._ID + " INTEGER PRIMARY KEY," +
+                ClockContract.TimersColumns.START_TIME + " INTEGER NOT NULL, " +
+                ClockContract.TimersColumns.TIME_LEFT + " INTEGER NOT NULL, " +
+                ClockContract.TimersColumns.ORIGINAL_LENGTH + " INTEGER NOT NULL, " +
+                ClockContract.TimersColumns.SETUP_LENGTH + " INTEGER NOT NULL, " +
+                ClockContract.TimersColumns.STATE + " INTEGER NOT NULL, " +
+                ClockContract.TimersColumns.LABEL + " TEXT NOT NULL, " +
+                ClockContract.TimersColumns.DELETE_AFTER_USE + " INTEGER NOT NULL DEFAULT 0, " +
+                ClockContract.TimersColumns.SEQUENCE + " TEXT);");
+        LogUtils.i("Timers table created");
+    }
+
+    // Timer keys used in the default shared preferences before VERSION_11
+    private static final String PREF_TIMERS_LIST = "timers_list";
+    private static final String PREF_TIMER_ID = "timer_id_";
+    private static final String PREF_START_TIME = "timer_start_time_";
+    private static final String PREF_TIME_LEFT = "timer_time_left_";
+    private static final String PREF_ORIGINAL_TIME = "timer_original_timet_";
+    private static final String PREF_SETUP_TIME = "timer_setup_timet_";
+    private static final String PREF_STATE = "timer_state_";
+    private static final String PREF_LABEL = "timer_label_";
+    private static final String PREF_DELETE_AFTER_USE = "delete_after_use_";
+
+    /**
+     * Move the timers from the default shared preferences to the timers table.
+     */
+    private void migrateTimers(SQLiteDatabase db) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        Set<String> ids = prefs.getStringSet(PREF_TIMERS_LIST, null);
+        if (ids == null) {
+            return;
+        }
+        SharedPreferences.Editor editor = prefs.edit();
+        ContentValues values = new ContentValues(8);
+        for (String id : ids) {
+            values.clear();
+            values.put(ClockContract.TimersColumns._ID, Integer.parseInt(id));
+            values.put(ClockContract.TimersColumns.START_TIME,
+                    prefs.getLong(PREF_START_TIME + id, 0));
+            values.put(ClockContract.TimersColumns.TIME_LEFT,
+                    prefs.getLong(PREF_TIME_LEFT + id, 0));
+            values.put(ClockContract.TimersColumns.ORIGINAL_LENGTH,
+                    prefs.getLong(PREF_ORIGINAL_TIME + id, 0));
+            values.put(ClockContract.TimersColumns.SETUP_LENGTH,
+                    prefs.getLong(PREF_SETUP_TIME + id, 0));
+            values.put(ClockContract.TimersColumns.STATE, prefs.getInt(PREF_STATE + id, 0));
+            values.put(ClockContract.TimersColumns.LABEL, prefs.getString(PREF_LABEL + id, ""));
+            values.put(ClockContract.TimersColumns.DELETE_AFTER_USE,
+                    prefs.getBoolean(PREF_DELETE_AFTER_USE + id, false) ? 1 : 0);
+            db.insert(TIMERS_TABLE_NAME, null, values);
+
+            editor.remove(PREF_TIMER_ID + id);
+            editor.remove(PREF_START_TIME + id);
+            editor.remove(PREF_TIME_LEFT + id);
+            editor.remove(PREF_ORIGINAL_TIME + id);
+            editor.remove(PREF_SETUP_TIME + id);
+            editor.remove(PREF_STATE + id);
+            editor.remove(PREF_LABEL + id);
+            editor.remove(PREF_DELETE_AFTER_USE + id);
+        }
+        editor.remove(PREF_TIMERS_LIST);
+        // Only remove them once the table is committed
+        mPendingPrefsCleanup = editor;
+        LogUtils.i("Migrated " + ids.size() + " timers from shared preferences");
+    }
+
     private Context mContext;
+    private SharedPreferences.Editor mPendingPrefsCleanup;
 
     public ClockDatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, VERSION_9);
+        super(context, DATABASE_NAME, null, VERSION_12);
         mContext = context;
     }
 
@@ -140,6 +270,16 @@ class ClockDatabaseHelper extends SQLiteOpenHelper {
         createAlarmsTable(db);
         createInstanceTable(db);
         createCitiesTable(db);
+        createTimersTable(db);
+        migrateTimers(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        if (mPendingPrefsCleanup != null) {
+            mPendingPrefsCleanup.apply();
+            mPendingPrefsCleanup = null;
+        }
     }
 
     @Override
@@ -258,6 +398,23 @@ class ClockDatabaseHelper extends SQLiteOpenHelper {
                     + " ADD COLUMN " + ClockContract.InstancesColumns.PRE_ALARM_RINGTONE_NAME
                     + " TEXT;");
         }
+
+        // Versions up to 6 recreated the instance table above with the current layout
+        if (oldVersion > VERSION_6 && oldVersion < VERSION_10) {
+            db.execSQL("ALTER TABLE " + INSTANCES_TABLE_NAME
+                    + " ADD COLUMN " + ClockContract.InstancesColumns.TRIGGER_TIME
+                    + " INTEGER NOT NULL DEFAULT 0;");
+            createInstanceIndex(db);
+            backfillInstanceTriggerTimes(db);
+        }
+
+        if (oldVersion < VERSION_11) {
+            createTimersTable(db);
+            migrateTimers(db);
+        } else if (oldVersion < VERSION_12) {
+            db.execSQL("ALTER TABLE " + TIMERS_TABLE_NAME
+                    + " ADD COLUMN " + ClockContract.TimersColumns.SEQUENCE + " TEXT;");
+        }
     }
 
     long fixAlarmInsert(ContentValues values) {
@@ -17,8 +17,11 @@
 package org.omnirom.deskclock.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -28,15 +31,25 @@ import android.text.TextUtils;
 
 import org.omnirom.deskclock.LogUtils;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 public class ClockProvider extends ContentProvider {
     private ClockDatabaseHelper mOpenHelper;
 
+    // Change notifications collected while a batch is applied on the calling thread
+    private final ThreadLocal<Set<Uri>> mBatchNotifications = new ThreadLocal<Set<Uri>>();
+
     private static final int ALARMS = 1;
     private static final int ALARMS_ID = 2;
     private static final int INSTANCES = 3;
     private static final int INSTANCES_ID = 4;
     private static final int CITIES = 5;
     private static final int CITIES_ID = 6;
+    private static final int INSTANCES_NEXT = 7;
+    private static final int TIMERS = 8;
+    private static final int TIMERS_ID = 9;
 
     private static final UriMatcher sURLMatcher = new UriMatcher(UriMatcher.NO_MATCH);
     static {
@@ -44,8 +57,11 @@ public class ClockProvider extends ContentProvider {
         sURLMatcher.addURI(ClockContract.AUTHORITY, "alarms/#", ALARMS_ID);
         sURLMatcher.addURI(ClockContract.AUTHORITY, "instances", INSTANCES);
         sURLMatcher.addURI(ClockContract.AUTHORITY, "instances/#", INSTANCES_ID);
+        sURLMatcher.addURI(ClockContract.AUTHORITY, "instances/next", INSTANCES_NEXT);
         sURLMatcher.addURI(ClockContract.AUTHORITY, "cities", CITIES);
         sURLMatcher.addURI(ClockContract.AUTHORITY, "cities/*", CITIES_ID);
+        sURLMatcher.addURI(ClockContract.AUTHORITY, "timers", TIMERS);
+        sURLMatcher.addURI(ClockContract.AUTHORITY, "timers/#", TIMERS_ID);
     }
 
     public ClockProvider() {
@@ -61,6 +77,7 @@ public class ClockProvider extends ContentProvider {
     public Cursor query(Uri uri, String[] projectionIn, String selection, String[] selectionArgs,
             String sort) {
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        String limit = null;
 
         // Generate the body of the query
         int match = sURLMatcher.match(uri);
@@ -81,6 +98,16 @@ public class ClockProvider extends ContentProvider {
                 qb.appendWhere(ClockContract.InstancesColumns._ID + "=");
                 qb.appendWhere(uri.getLastPathSegment());
                 break;
+            case INSTANCES_NEXT:
+                // Served from the (alarm_state, trigger_time) index
+                qb.setTables(ClockDatabaseHelper.INSTANCES_TABLE_NAME);
+                if (TextUtils.isEmpty(sort)) {
+                    sort = ClockContract.InstancesColumns.TRIGGER_TIME + " ASC";
+                }
+                limit = "1";
+                // Observe the whole table, any instance change may change the result
+                uri = ClockContract.InstancesColumns.CONTENT_URI;
+                break;
             case CITIES:
                 qb.setTables(ClockDatabaseHelper.CITIES_TABLE_NAME);
                 break;
@@ -89,13 +116,21 @@ public class ClockProvider extends ContentProvider {
                 qb.appendWhere(ClockContract.CitiesColumns.CITY_ID + "=");
                 qb.appendWhere(uri.getLastPathSegment());
                 break;
+            case TIMERS:
+                qb.setTables(ClockDatabaseHelper.TIMERS_TABLE_NAME);
+                break;
+            case TIMERS_ID:
+                qb.setTables(ClockDatabaseHelper.TIMERS_TABLE_NAME);
+                qb.appendWhere(ClockContract.TimersColumns._ID + "=");
+                qb.appendWhere(uri.getLastPathSegment());
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URL " + uri);
         }
 
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
         Cursor ret = qb.query(db, projectionIn, selection, selectionArgs,
-                              null, null, sort);
+                              null, null, sort, limit);
 
         if (ret == null) {
             LogUtils.e("Alarms.query: failed");
@@ -117,11 +152,16 @@ public class ClockProvider extends ContentProvider {
             case INSTANCES:
                 return "vnd.android.cursor.dir/instances";
             case INSTANCES_ID:
+            case INSTANCES_NEXT:
                 return "vnd.android.cursor.item/instances";
             case CITIES:
                 return "vnd.android.cursor.dir/cities";
             case CITIES_ID:
                 return "vnd.android.cursor.item/cities";
+            case TIMERS:
+                return "vnd.android.cursor.dir/timers";
+            case TIMERS_ID:
+                return "vnd.android.cursor.item/timers";
             default:
                 throw new IllegalArgumentException("Unknown URL");
         }
@@ -151,13 +191,19 @@ public class ClockProvider extends ContentProvider {
                         ClockContract.CitiesColumns.CITY_ID + "=" + alarmId,
                         null);
                 break;
+            case TIMERS_ID:
+                alarmId = uri.getLastPathSegment();
+                count = db.update(ClockDatabaseHelper.TIMERS_TABLE_NAME, values,
+                        ClockContract.TimersColumns._ID + "=" + alarmId,
+                        null);
+                break;
             default: {
                 throw new UnsupportedOperationException(
                         "Cannot update URL: " + uri);
             }
         }
         LogUtils.v("*** notifyChange() id: " + alarmId + " url " + uri);
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return count;
     }
 
@@ -175,12 +221,20 @@ public class ClockProvider extends ContentProvider {
             case CITIES:
                 rowId = db.insert(ClockDatabaseHelper.CITIES_TABLE_NAME, null, initialValues);
                 break;
+            case TIMERS:
+                // Timer ids are allocated by the app, an existing timer is replaced
+                rowId = db.insertWithOnConflict(ClockDatabaseHelper.TIMERS_TABLE_NAME, null,
+                        initialValues, SQLiteDatabase.CONFLICT_REPLACE);
+                Uri timerUri = ContentUris.withAppendedId(
+                        ClockContract.TimersColumns.CONTENT_URI, rowId);
+                notifyChange(timerUri);
+                return timerUri;
             default:
                 throw new IllegalArgumentException("Cannot insert from URL: " + uri);
         }
 
         Uri uriResult = ContentUris.withAppendedId(ClockContract.AlarmsColumns.CONTENT_URI, rowId);
-        getContext().getContentResolver().notifyChange(uriResult, null);
+        notifyChange(uriResult);
         return uriResult;
     }
 
@@ -229,11 +283,80 @@ public class ClockProvider extends ContentProvider {
                 }
                 count = db.delete(ClockDatabaseHelper.CITIES_TABLE_NAME, where, whereArgs);
                 break;
+            case TIMERS:
+                count = db.delete(ClockDatabaseHelper.TIMERS_TABLE_NAME, where, whereArgs);
+                break;
+            case TIMERS_ID:
+                primaryKey = uri.getLastPathSegment();
+                if (TextUtils.isEmpty(where)) {
+                    where = ClockContract.TimersColumns._ID + "=" + primaryKey;
+                } else {
+                    where = ClockContract.TimersColumns._ID + "=" + primaryKey +
+                            " AND (" + where + ")";
+                }
+                count = db.delete(ClockDatabaseHelper.TIMERS_TABLE_NAME, where, whereArgs);
+                break;
             default:
                 throw new IllegalArgumentException("Cannot delete from URL: " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return count;
     }
+
+    /**
+     * Apply all operations in a single transaction. Observers are notified once per
+     * affected table after the transaction has been committed instead of once per row.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        Set<Uri> notifications = new LinkedHashSet<Uri>();
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        mBatchNotifications.set(notifications);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchNotifications.remove();
+        }
+
+        LogUtils.v("Applied batch of " + operations.size() + " operations");
+        for (Uri uri : notifications) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return results;
+    }
+
+    private void notifyChange(Uri uri) {
+        Set<Uri> notifications = mBatchNotifications.get();
+        if (notifications == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+            return;
+        }
+
+        switch (sURLMatcher.match(uri)) {
+            case ALARMS:
+            case ALARMS_ID:
+                notifications.add(ClockContract.AlarmsColumns.CONTENT_URI);
+                break;
+            case INSTANCES:
+            case INSTANCES_ID:
+                notifications.add(ClockContract.InstancesColumns.CONTENT_URI);
+                break;
+            case CITIES:
+            case CITIES_ID:
+                notifications.add(ClockContract.CitiesColumns.CONTENT_URI);
+                break;
+            case TIMERS:
+            case TIMERS_ID:
+                notifications.add(ClockContract.TimersColumns.CONTENT_URI);
+                break;
+            default:
+                notifications.add(uri);
+        }
+    }
 }
@@ -164,19 +164,8 @@ public final class DaysOfWeek {
      * @param current must be set to today
      */
     public int calculateDaysToNextAlarm(Calendar current) {
-        if (!isRepeating()) {
-            return -1;
-        }
-
-        int dayCount = 0;
-        int currentDayBit = convertDayToBitIndex(current.get(Calendar.DAY_OF_WEEK));
-        for (; dayCount < DAYS_IN_A_WEEK; dayCount++) {
-            int nextAlarmBit = (currentDayBit + dayCount) % DAYS_IN_A_WEEK;
-            if (isBitEnabled(nextAlarmBit)) {
-                break;
-            }
-        }
-        return dayCount;
+        return AlarmRecurrence.daysUntilNext(mBitSet,
+                convertDayToBitIndex(current.get(Calendar.DAY_OF_WEEK)));
     }
 
     public void clearAllDays() {
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock.stopwatch;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import org.omnirom.deskclock.LogUtils;
+import org.omnirom.deskclock.Utils;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * Append only log of the completed laps of a stopwatch, shared by the stopwatch fragment and
+ * service. Every stopwatch of the {@link StopwatchStore} has a log of its own.
+ *
+ * Each completed lap is stored as the total elapsed time at its end, one long per lap, so
+ * adding a lap appends eight bytes no matter how many laps there are. Reads map the file
+ * into memory instead of copying it through a stream. The running lap is not stored, it
+ * starts at the end of the last completed lap.
+ */
+public final class LapLog {
+    private static final String LAP_LOG_FILE = "stopwatch_laps.dat";
+    private static final String NAMED_LAP_LOG_FILE_PREFIX = "stopwatch_laps_";
+    // Lap keys used in the default shared preferences before the lap log
+    private static final String PREF_LAP_NUM = "sw_lap_num";
+    private static final String PREF_LAP_TIME = "sw_lap_time_";
+
+    private static final HashMap<Integer, LapLog> sInstances = new HashMap<Integer, LapLog>();
+
+    private final File mFile;
+    // Number of completed laps, -1 until the file was looked at
+    private int mSize = -1;
+
+    private LapLog(Context context, int stopwatchId) {
+        final File dir = context.getApplicationContext().getFilesDir();
+        if (stopwatchId == Stopwatches.MAIN_STOPWATCH_ID) {
+            mFile = new File(dir, LAP_LOG_FILE);
+            importPreferences(PreferenceManager.getDefaultSharedPreferences(context));
+        } else {
+            mFile = new File(dir, NAMED_LAP_LOG_FILE_PREFIX + stopwatchId + ".dat");
+        }
+    }
+
+    /**
+     * @return the lap log of the stopwatch of the stopwatch tab
+     */
+    public static LapLog getInstance(Context context) {
+        return getInstance(context, Stopwatches.MAIN_STOPWATCH_ID);
+    }
+
+    public static synchronized LapLog getInstance(Context context, int stopwatchId) {
+        LapLog lapLog = sInstances.get(stopwatchId);
+        if (lapLog == null) {
+            lapLog = new LapLog(context, stopwatchId);
+            sInstances.put(stopwatchId, lapLog);
+        }
+        return lapLog;
+    }
+
+    /**
+     * @return the number of completed laps
+     */
+    public synchronized int size() {
+        if (mSize < 0) {
+            mSize = (int) (mFile.length() / 8);
+        }
+        return mSize;
+    }
+
+    /**
+     * @return the number of laps shown to the user, the completed laps and the running one
+     */
+    public int getLapCount() {
+        final int size = size();
+        return size > 0 ? size + 1 : 0;
+    }
+
+    /**
+     * Add a completed lap.
+     *
+     * @param totalTime total elapsed time at the end of the lap
+     */
+    public synchronized void append(long totalTime) {
+        // Counted before writing, the file length includes the new lap afterwards
+        final int size = size();
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(mFile, true));
+            out.writeLong(totalTime);
+            out.close();
+            out = null;
+            mSize = size + 1;
+        } catch (IOException e) {
+            LogUtils.e("Failed to append lap", e);
+            mSize = -1;
+        } finally {
+            Utils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * @return the total elapsed time at the end of each completed lap, oldest first
+     */
+    public synchronized long[] readTotalTimes() {
+        final int size = size();
+        final long[] totals = new long[size];
+        if (size == 0) {
+            return totals;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(mFile);
+            final FileChannel channel = in.getChannel();
+            final LongBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    size * 8L).asLongBuffer();
+            buffer.get(totals);
+        } catch (IOException e) {
+            LogUtils.e("Failed to read laps", e);
+            return new long[0];
+        } finally {
+            Utils.closeQuietly(in);
+        }
+        return totals;
+    }
+
+    /**
+     * Remove all laps.
+     */
+    public synchronized void clear() {
+        if (mFile.exists() && !mFile.delete()) {
+            LogUtils.e("Failed to clear laps");
+        }
+        mSize = 0;
+    }
+
+    /**
+     * Take over the laps of older versions. The last stored lap was the running one.
+     */
+    private void importPreferences(SharedPreferences prefs) {
+        if (!prefs.contains(PREF_LAP_NUM)) {
+            return;
+        }
+        final int numLaps = prefs.getInt(PREF_LAP_NUM, 0);
+        final SharedPreferences.Editor editor = prefs.edit();
+        clear();
+        for (int lap_i = 1; lap_i <= numLaps; lap_i++) {
+            final String key = PREF_LAP_TIME + Integer.toString(lap_i);
+            if (lap_i < numLaps) {
+                append(prefs.getLong(key, 0));
+            }
+            editor.remove(key);
+        }
+        editor.remove(PREF_LAP_NUM);
+        editor.apply();
+        LogUtils.i("Imported " + size() + " laps from shared preferences");
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock.stopwatch;
+
+import java.util.Arrays;
+
+/**
+ * Statistics of the completed stopwatch laps, updated in constant time per lap.
+ *
+ * Mean and variance use Welford's online algorithm. Median and 90th percentile are
+ * exact for the first laps and then estimated with the P-square algorithm, which keeps
+ * five markers instead of all laps.
+ */
+final class LapStats {
+    private int mCount;
+    private double mMean;
+    // Sum of squared differences from the mean
+    private double mM2;
+    private long mBest;
+    private int mBestIndex = -1;
+    private long mWorst;
+    private int mWorstIndex = -1;
+    private final QuantileEstimator mMedian = new QuantileEstimator(0.5);
+    private final QuantileEstimator mPercentile90 = new QuantileEstimator(0.9);
+
+    /**
+     * Add the time of the next completed lap.
+     */
+    void add(long lapTime) {
+        final int index = mCount++;
+        final double delta = lapTime - mMean;
+        mMean += delta / mCount;
+        mM2 += delta * (lapTime - mMean);
+        if (mBestIndex < 0 || lapTime < mBest) {
+            mBest = lapTime;
+            mBestIndex = index;
+        }
+        if (mWorstIndex < 0 || lapTime > mWorst) {
+            mWorst = lapTime;
+            mWorstIndex = index;
+        }
+        mMedian.add(lapTime);
+        mPercentile90.add(lapTime);
+    }
+
+    void reset() {
+        mCount = 0;
+        mMean = 0;
+        mM2 = 0;
+        mBestIndex = -1;
+        mWorstIndex = -1;
+        mMedian.reset();
+        mPercentile90.reset();
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    long getMean() {
+        return Math.round(mMean);
+    }
+
+    /**
+     * @return the sample standard deviation, 0 for less than two laps
+     */
+    long getStandardDeviation() {
+        return mCount < 2 ? 0 : Math.round(Math.sqrt(mM2 / (mCount - 1)));
+    }
+
+    long getBest() {
+        return mBest;
+    }
+
+    /**
+     * @return zero based index of the fastest lap, oldest first, or -1 if there are no laps
+     */
+    int getBestIndex() {
+        return mBestIndex;
+    }
+
+    long getWorst() {
+        return mWorst;
+    }
+
+    /**
+     * @return zero based index of the slowest lap, oldest first, or -1 if there are no laps
+     */
+    int getWorstIndex() {
+        return mWorstIndex;
+    }
+
+    long getMedian() {
+        return Math.round(mMedian.get());
+    }
+
+    long getPercentile90() {
+        return Math.round(mPercentile90.get());
+    }
+
+    /**
+     * Streaming estimate of a quantile with the P-square algorithm of Jain and Chlamtac.
+     * The markers need many values to move away from their start, so the quantile is
+     * computed from the values themselves until there are more than EXACT_LIMIT.
+     */
+    private static final class QuantileEstimator {
+        private static final int EXACT_LIMIT = 20;
+
+        private final double mP;
+        // The first values, exact quantiles are computed from them
+        private final double[] mValues = new double[EXACT_LIMIT];
+        // Marker heights, positions, desired positions and their increments
+        private final double[] mHeights = new double[5];
+        private final int[] mPositions = new int[5];
+        private final double[] mDesired = new double[5];
+        private final double[] mIncrements;
+        private int mCount;
+
+        QuantileEstimator(double p) {
+            mP = p;
+            mIncrements = new double[] { 0, p / 2, p, (1 + p) / 2, 1 };
+        }
+
+        void reset() {
+            mCount = 0;
+        }
+
+        void add(double x) {
+            if (mCount < EXACT_LIMIT) {
+                mValues[mCount] = x;
+            }
+            if (mCount < 5) {
+                mHeights[mCount++] = x;
+                if (mCount == 5) {
+                    Arrays.sort(mHeights);
+                    for (int i = 0; i < 5; i++) {
+                        mPositions[i] = i + 1;
+                    }
+                    mDesired[0] = 1;
+                    mDesired[1] = 1 + 2 * mP;
+                    mDesired[2] = 1 + 4 * mP;
+                    mDesired[3] = 3 + 2 * mP;
+                    mDesired[4] = 5;
+                }
+                return;
+            }
+            mCount++;
+
+            // Find the cell of the value and move the markers above it
+            int k;
+            if (x < mHeights[0]) {
+                mHeights[0] = x;
+                k = 0;
+            } else if (x >= mHeights[4]) {
+                mHeights[4] = x;
+                k = 3;
+            } else {
+                k = 0;
+                while (x >= mHeights[k + 1]) {
+                    k++;
+                }
+            }
+            for (int i = k + 1; i < 5; i++) {
+                mPositions[i]++;
+            }
+            for (int i = 0; i < 5; i++) {
+                mDesired[i] += mIncrements[i];
+            }
+
+            // Adjust the middle markers that are off their desired position
+            for (int i = 1; i <= 3; i++) {
+                final double d = mDesired[i] - mPositions[i];
+                if ((d >= 1 && mPositions[i + 1] - mPositions[i] > 1)
+                        || (d <= -1 && mPositions[i - 1] - mPositions[i] < -1)) {
+                    final int sign = d > 0 ? 1 : -1;
+                    final double height = parabolic(i, sign);
+                    if (mHeights[i - 1] < height && height < mHeights[i + 1]) {
+                        mHeights[i] = height;
+                    } else {
+                        mHeights[i] = linear(i, sign);
+                    }
+                    mPositions[i] += sign;
+                }
+            }
+        }
+
+        double get() {
+            if (mCount == 0) {
+                return 0;
+            }
+            if (mCount <= EXACT_LIMIT) {
+                final double[] values = Arrays.copyOf(mValues, mCount);
+                Arrays.sort(values);
+                final double rank = mP * (mCount - 1);
+                final int lower = (int) Math.floor(rank);
+                final int upper = (int) Math.ceil(rank);
+                return values[lower] + (rank - lower) * (values[upper] - values[lower]);
+            }
+            return mHeights[2];
+        }
+
+        private double parabolic(int i, int d) {
+            final double n = mPositions[i];
+            final double nPrev = mPositions[i - 1];
+            final double nNext = mPositions[i + 1];
+            return mHeights[i] + d / (nNext - nPrev)
+                    * ((n - nPrev + d) * (mHeights[i + 1] - mHeights[i]) / (nNext - n)
+                    + (nNext - n - d) * (mHeights[i] - mHeights[i - 1]) / (n - nPrev));
+        }
+
+        private double linear(int i, int d) {
+            return mHeights[i] + d * (mHeights[i + d] - mHeights[i])
+                    / (mPositions[i + d] - mPositions[i]);
+        }
+    }
+}
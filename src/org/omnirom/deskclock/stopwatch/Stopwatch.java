@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock.stopwatch;
+
+/**
+ * State of a named stopwatch of the {@link StopwatchStore}.
+ *
+ * Times are in {@link org.omnirom.deskclock.Utils#getTimeNow()} milliseconds. The laps are
+ * kept in the {@link LapLog} of the stopwatch.
+ */
+public final class Stopwatch {
+    public final int mId;
+    public final String mName;
+    int mState = Stopwatches.STOPWATCH_RESET;
+    // Start of the current run, only valid while running
+    long mStartTime;
+    // Time of the previous runs
+    long mAccumulatedTime;
+
+    Stopwatch(int id, String name) {
+        mId = id;
+        mName = name != null ? name : "";
+    }
+
+    Stopwatch copy() {
+        final Stopwatch stopwatch = new Stopwatch(mId, mName);
+        stopwatch.mState = mState;
+        stopwatch.mStartTime = mStartTime;
+        stopwatch.mAccumulatedTime = mAccumulatedTime;
+        return stopwatch;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public boolean isRunning() {
+        return mState == Stopwatches.STOPWATCH_RUNNING;
+    }
+
+    /**
+     * @return the time elapsed in all runs
+     */
+    public long getElapsedTime(long now) {
+        return isRunning() ? mAccumulatedTime + now - mStartTime : mAccumulatedTime;
+    }
+
+    void start(long now) {
+        if (!isRunning()) {
+            mStartTime = now;
+            mState = Stopwatches.STOPWATCH_RUNNING;
+        }
+    }
+
+    void stop(long now) {
+        if (isRunning()) {
+            mAccumulatedTime += now - mStartTime;
+            mState = Stopwatches.STOPWATCH_STOPPED;
+        }
+    }
+}
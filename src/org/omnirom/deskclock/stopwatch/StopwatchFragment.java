@@ -27,16 +27,18 @@ import android.os.Bundle;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.preference.PreferenceManager;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.text.format.DateUtils;
 import android.util.TypedValue;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.view.animation.Animation;
 import android.view.animation.TranslateAnimation;
-import android.widget.BaseAdapter;
 import android.widget.ListPopupWindow;
-import android.widget.ListView;
 import android.widget.TextView;
 
 import org.omnirom.deskclock.CircleButtonsLayout;
@@ -48,20 +50,24 @@ import org.omnirom.deskclock.Utils;
 import org.omnirom.deskclock.timer.CountingTimerView;
 
 import java.util.ArrayList;
+import java.util.List;
 
 public class StopwatchFragment extends DeskClockFragment
         implements OnSharedPreferenceChangeListener {
     private static final boolean DEBUG = false;
 
     private static final String TAG = "StopwatchFragment";
-    private static final int STOPWATCH_REFRESH_INTERVAL_MILLIS = 25;
+    // Precision of the shown time in a focused stopwatch tab and otherwise
+    private static final long HIGH_PRECISION_MILLIS = 10;
+    private static final long LOW_PRECISION_MILLIS = DateUtils.SECOND_IN_MILLIS;
 
     int mState = Stopwatches.STOPWATCH_RESET;
 
     // Stopwatch views that are accessed by the activity
     private CircleTimerView mTime;
     private CountingTimerView mTimeText;
-    private ListView mLapsList;
+    private RecyclerView mLapsList;
+    private LinearLayoutManager mLapsLayoutManager;
     private ListPopupWindow mSharePopup;
     private WakeLock mWakeLock;
     private CircleButtonsLayout mCircleLayout;
@@ -77,6 +83,11 @@ public class StopwatchFragment extends DeskClockFragment
     long mStartTime = 0;
     long mAccumulatedTime = 0;
 
+    // Whether the stopwatch tab is shown in a focused window
+    private boolean mHighPrecision = true;
+    // Shown time in units of the current precision, -1 to update the next frame
+    private long mShownTime = -1;
+
     // Lap information
     class Lap {
 
@@ -88,19 +99,47 @@ public class StopwatchFragment extends DeskClockFragment
         public long mLapTime;
         public long mTotalTime;
         public long mTimeDiff;
+    }
 
-        public void updateView() {
-            View lapInfo = mLapsList.findViewWithTag(this);
-            if (lapInfo != null) {
-                mLapsAdapter.setTimeText(lapInfo, this);
-            }
+    static class LapViewHolder extends RecyclerView.ViewHolder {
+        final View mLapLine;
+        final TextView mLapNumber;
+        final TextView mLapTime;
+        final TextView mLapTotal;
+        final TextView mLapDiff;
+
+        LapViewHolder(View lapInfo) {
+            super(lapInfo);
+            mLapLine = lapInfo.findViewById(org.omnirom.deskclock.R.id.lap_line);
+            mLapNumber = (TextView) lapInfo.findViewById(org.omnirom.deskclock.R.id.lap_number);
+            mLapTime = (TextView) lapInfo.findViewById(org.omnirom.deskclock.R.id.lap_time);
+            mLapTotal = (TextView) lapInfo.findViewById(org.omnirom.deskclock.R.id.lap_total);
+            mLapDiff = (TextView) lapInfo.findViewById(org.omnirom.deskclock.R.id.lap_diff);
         }
     }
 
-    // Adapter for the ListView that shows the lap times.
-    class LapsListAdapter extends BaseAdapter {
+    static class LapStatsViewHolder extends RecyclerView.ViewHolder {
+        final TextView mStats;
 
-        ArrayList<Lap> mLaps = new ArrayList<Lap>();
+        LapStatsViewHolder(View statsView) {
+            super(statsView);
+            mStats = (TextView) statsView;
+        }
+    }
+
+    // Adapter for the RecyclerView that shows the lap statistics and the lap times.
+    // The laps are stored oldest first so a new lap is appended, they are shown newest first.
+    // Only the rows that change are rebound, the running lap is rebound with a payload that
+    // only sets its times.
+    class LapsListAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+        private static final int VIEW_TYPE_STATS = 0;
+        private static final int VIEW_TYPE_LAP = 1;
+        private static final String PAYLOAD_TIME = "time";
+
+        final ArrayList<Lap> mLaps = new ArrayList<Lap>();
+        // Statistics of the completed laps, all laps but the last in mLaps
+        final LapStats mStats = new LapStats();
+        private final Context mContext;
         private final LayoutInflater mInflater;
         private final String[] mFormats;
         private final String[] mLapFormatSet;
@@ -115,6 +154,7 @@ public class StopwatchFragment extends DeskClockFragment
         private int mLapIndex = 0;
         private int mTotalIndex = 0;
         private String mLapFormat;
+        private String mStatsText;
         private int mLapTextColor;
         private int mLapDefaultTextColor;
         private int mLapMinColor;
@@ -122,6 +162,7 @@ public class StopwatchFragment extends DeskClockFragment
         private int mLapDefaultColor;
 
         public LapsListAdapter(Context context) {
+            mContext = context;
             mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
             mFormats = context.getResources().getStringArray(org.omnirom.deskclock.R.array.stopwatch_format_set);
             mLapFormatSet = context.getResources().getStringArray(org.omnirom.deskclock.R.array.sw_lap_number_set);
@@ -133,80 +174,108 @@ public class StopwatchFragment extends DeskClockFragment
             context.getTheme().resolveAttribute(android.R.attr.textColorPrimary, outValue, true);
             mLapDefaultTextColor = context.getResources().getColor(outValue.resourceId);
 
+            setHasStableIds(true);
             updateLapFormat();
         }
 
+        @Override
+        public int getItemCount() {
+            return mLaps.isEmpty() ? 0 : mLaps.size() + getStatsCount();
+        }
+
+        @Override
+        public int getItemViewType(int position) {
+            return position < getStatsCount() ? VIEW_TYPE_STATS : VIEW_TYPE_LAP;
+        }
+
         @Override
         public long getItemId(int position) {
-            return position;
+            // A lap keeps its number as the id, the statistics use 0
+            return getItemViewType(position) == VIEW_TYPE_STATS ? 0 : getLapIndex(position) + 1;
         }
 
         @Override
-        public View getView(int position, View convertView, ViewGroup parent) {
-            if (mLaps.size() == 0 || position >= mLaps.size()) {
-                return null;
+        public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            if (viewType == VIEW_TYPE_STATS) {
+                return new LapStatsViewHolder(mInflater.inflate(
+                        org.omnirom.deskclock.R.layout.lap_stats_header, parent, false));
             }
-            Lap lap = getItem(position);
+            return new LapViewHolder(mInflater.inflate(
+                    org.omnirom.deskclock.R.layout.lap_view, parent, false));
+        }
 
-            View lapInfo;
-            if (convertView != null) {
-                lapInfo = convertView;
-            } else {
-                lapInfo = mInflater.inflate(org.omnirom.deskclock.R.layout.lap_view, parent, false);
+        @Override
+        public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) {
+            if (holder instanceof LapStatsViewHolder) {
+                ((LapStatsViewHolder) holder).mStats.setText(mStatsText);
+                return;
             }
-            lapInfo.setTag(lap);
-            TextView count = (TextView)lapInfo.findViewById(org.omnirom.deskclock.R.id.lap_number);
-            count.setText(String.format(mLapFormat, mLaps.size() - position).toUpperCase());
-            setTimeText(lapInfo, lap);
-
-            if (position != 0 && getMaxLapTimeIndex() == position) {
-                setTimeColor(lapInfo, mLapTextColor, mLapMaxColor);
-            } else if (position != 0 && getMinLapTimeIndex() == position) {
-                setTimeColor(lapInfo, mLapTextColor, mLapMinColor);
+            LapViewHolder lapHolder = (LapViewHolder) holder;
+            int lapIndex = getLapIndex(position);
+            Lap lap = mLaps.get(lapIndex);
+            lapHolder.mLapNumber.setText(String.format(mLapFormat, lapIndex + 1).toUpperCase());
+            setTimeText(lapHolder, lap);
+
+            boolean completed = lapIndex < mLaps.size() - 1;
+            if (completed && mStats.getWorstIndex() == lapIndex) {
+                setTimeColor(lapHolder, mLapTextColor, mLapMaxColor);
+            } else if (completed && mStats.getBestIndex() == lapIndex) {
+                setTimeColor(lapHolder, mLapTextColor, mLapMinColor);
             } else {
-                setTimeColor(lapInfo, mLapDefaultTextColor, mLapDefaultColor);
+                setTimeColor(lapHolder, mLapDefaultTextColor, mLapDefaultColor);
             }
+        }
 
-            return lapInfo;
+        @Override
+        public void onBindViewHolder(RecyclerView.ViewHolder holder, int position,
+                List<Object> payloads) {
+            if (holder instanceof LapViewHolder && payloads.contains(PAYLOAD_TIME)) {
+                setTimeText((LapViewHolder) holder, mLaps.get(getLapIndex(position)));
+            } else {
+                onBindViewHolder(holder, position);
+            }
         }
 
-        protected void setTimeText(View lapInfo, Lap lap) {
-            TextView lapTime = (TextView)lapInfo.findViewById(org.omnirom.deskclock.R.id.lap_time);
-            TextView totalTime = (TextView)lapInfo.findViewById(org.omnirom.deskclock.R.id.lap_total);
-            TextView timeDiff = (TextView)lapInfo.findViewById(org.omnirom.deskclock.R.id.lap_diff);
-            lapTime.setText(Stopwatches.formatTimeText(lap.mLapTime, mFormats[mLapIndex]));
-            totalTime.setText(Stopwatches.formatTimeText(lap.mTotalTime, mFormats[mTotalIndex]));
-            timeDiff.setText(Stopwatches.formatTimeText(lap.mTimeDiff, mFormats[mTotalIndex]));
+        protected void setTimeText(LapViewHolder lapHolder, Lap lap) {
+            lapHolder.mLapTime.setText(Stopwatches.formatTimeText(lap.mLapTime, mFormats[mLapIndex]));
+            lapHolder.mLapTotal.setText(Stopwatches.formatTimeText(lap.mTotalTime, mFormats[mTotalIndex]));
+            lapHolder.mLapDiff.setText(Stopwatches.formatTimeText(lap.mTimeDiff, mFormats[mTotalIndex]));
         }
 
-        protected void setTimeColor(View lapInfo, int textColor, int lineColor) {
-            View lapLine = lapInfo.findViewById(org.omnirom.deskclock.R.id.lap_line);
-            TextView lapTime = (TextView)lapInfo.findViewById(org.omnirom.deskclock.R.id.lap_time);
-            TextView totalTime = (TextView)lapInfo.findViewById(org.omnirom.deskclock.R.id.lap_total);
-            TextView timeDiff = (TextView)lapInfo.findViewById(org.omnirom.deskclock.R.id.lap_diff);
-            TextView count = (TextView)lapInfo.findViewById(org.omnirom.deskclock.R.id.lap_number);
-            lapTime.setTextColor(textColor);
-            totalTime.setTextColor(textColor);
-            timeDiff.setTextColor(textColor);
-            count.setTextColor(textColor);
-            lapLine.setBackgroundColor(lineColor);
+        protected void setTimeColor(LapViewHolder lapHolder, int textColor, int lineColor) {
+            lapHolder.mLapTime.setTextColor(textColor);
+            lapHolder.mLapTotal.setTextColor(textColor);
+            lapHolder.mLapDiff.setTextColor(textColor);
+            lapHolder.mLapNumber.setTextColor(textColor);
+            lapHolder.mLapLine.setBackgroundColor(lineColor);
         }
 
-        @Override
-        public int getCount() {
+        /**
+         * @return the number of laps, the completed laps and the running one
+         */
+        public int getLapCount() {
             return mLaps.size();
         }
 
-        @Override
-        public Lap getItem(int position) {
-            if (mLaps.size() == 0 || position >= mLaps.size()) {
-                return null;
+        private int getStatsCount() {
+            return mStatsText != null ? 1 : 0;
+        }
+
+        private int getLapIndex(int position) {
+            return mLaps.size() - 1 - (position - getStatsCount());
+        }
+
+        private int getPosition(int lapIndex) {
+            return mLaps.size() - 1 - lapIndex + getStatsCount();
+        }
+
+        private void notifyLapChanged(int lapIndex) {
+            if (lapIndex >= 0) {
+                notifyItemChanged(getPosition(lapIndex));
             }
-            return mLaps.get(position);
         }
 
         private void updateLapFormat() {
-            // Note Stopwatches.MAX_LAPS < 100
             mLapFormat = mLapFormatSet[mLaps.size() < 10 ? 0 : 1];
         }
 
@@ -237,14 +306,81 @@ public class StopwatchFragment extends DeskClockFragment
             return formatChanged;
         }
 
-        public void addLap(Lap l) {
-            mLaps.add(0, l);
-            // for efficiency caller also calls notifyDataSetChanged()
-            updateColors();
+        /**
+         * Finish the running lap, or add the first lap, and start a new running lap.
+         *
+         * @param totalTime total elapsed time at the end of the lap
+         * @return the time of the finished lap
+         */
+        public long addLap(long totalTime) {
+            final int size = mLaps.size();
+            final String lapFormat = mLapFormat;
+            final int statsCount = getStatsCount();
+            final int bestIndex = mStats.getBestIndex();
+            final int worstIndex = mStats.getWorstIndex();
+            final long lapTime;
+            final boolean formatChanged;
+            if (size == 0) {
+                lapTime = totalTime;
+                Lap firstLap = new Lap(lapTime, totalTime, 0);
+                mLaps.add(firstLap);
+                formatChanged = updateTimeFormats(firstLap);
+            } else {
+                Lap lap = mLaps.get(size - 1);
+                Lap previousLap = mLaps.get(size - 2);
+                lapTime = totalTime - previousLap.mTotalTime;
+                lap.mLapTime = lapTime;
+                lap.mTotalTime = totalTime;
+                lap.mTimeDiff = lapTime - previousLap.mLapTime;
+                formatChanged = updateTimeFormats(lap);
+            }
+            mStats.add(lapTime);
+            mLaps.add(new Lap(0, totalTime, 0));
+            updateLapFormat();
+            mStatsText = Stopwatches.getLapStatsText(mContext, mStats);
+
+            if (size == 0 || formatChanged || !mLapFormat.equals(lapFormat)) {
+                // All rows look different
+                notifyDataSetChanged();
+                return lapTime;
+            }
+            if (statsCount == 0 && getStatsCount() > 0) {
+                notifyItemInserted(0);
+            } else if (getStatsCount() > 0) {
+                notifyItemChanged(0);
+            }
+            notifyItemInserted(getStatsCount());
+            notifyLapChanged(mLaps.size() - 2);
+            notifyLapChanged(bestIndex);
+            notifyLapChanged(worstIndex);
+            notifyLapChanged(mStats.getBestIndex());
+            notifyLapChanged(mStats.getWorstIndex());
+            return lapTime;
+        }
+
+        /**
+         * Update the time of the running lap.
+         *
+         * @param totalTime total elapsed time
+         */
+        public void updateRunningLap(long totalTime) {
+            final int size = mLaps.size();
+            Lap lap = mLaps.get(size - 1);
+            lap.mLapTime = totalTime - mLaps.get(size - 2).mTotalTime;
+            lap.mTotalTime = totalTime;
+            // If this lap has caused a change in the format for total and/or lap time, all of
+            // the rows need a fresh print.
+            if (updateTimeFormats(lap)) {
+                notifyDataSetChanged();
+            } else {
+                notifyItemChanged(getPosition(size - 1), PAYLOAD_TIME);
+            }
         }
 
         public void clearLaps() {
             mLaps.clear();
+            mStats.reset();
+            mStatsText = null;
             updateLapFormat();
             resetTimeFormats();
             notifyDataSetChanged();
@@ -258,7 +394,7 @@ public class StopwatchFragment extends DeskClockFragment
             }
             long [] laps = new long[size];
             for (int i = 0; i < size; i ++) {
-                laps[i] = mLaps.get(i).mTotalTime;
+                laps[i] = mLaps.get(size - 1 - i).mTotalTime;
             }
             return laps;
         }
@@ -271,75 +407,26 @@ public class StopwatchFragment extends DeskClockFragment
 
             int size = laps.length;
             mLaps.clear();
-            for (long lap : laps) {
-                mLaps.add(new Lap(lap, 0, 0));
-            }
+            mStats.reset();
             long totalTime = 0;
             for (int i = size -1; i >= 0; i --) {
                 totalTime += laps[i];
                 long lapDiff = 0;
                 if (i < size - 1 && i > 0) {
-                    lapDiff = mLaps.get(i).mLapTime - mLaps.get(i + 1).mLapTime;
+                    lapDiff = laps[i] - laps[i + 1];
+                }
+                if (i > 0) {
+                    mStats.add(laps[i]);
                 }
-                mLaps.get(i).mTotalTime = totalTime;
-                mLaps.get(i).mTimeDiff = lapDiff;
-                updateTimeFormats(mLaps.get(i));
+                Lap lap = new Lap(laps[i], totalTime, lapDiff);
+                mLaps.add(lap);
+                updateTimeFormats(lap);
             }
             updateLapFormat();
+            mStatsText = Stopwatches.getLapStatsText(mContext, mStats);
             showLaps();
-            updateColors();
             notifyDataSetChanged();
         }
-
-        public int getMinLapTimeIndex() {
-            int size = mLaps.size();
-            if (size == 0) {
-                return -1;
-            }
-            long minLapTime = Integer.MAX_VALUE;
-            int minLapIndex = -1;
-            for (int i = size -1; i > 0; i --) {
-                long time = mLaps.get(i).mLapTime;
-                if (time != 0 && time < minLapTime) {
-                    minLapIndex = i;
-                    minLapTime = mLaps.get(i).mLapTime;
-                }
-            }
-            return minLapIndex;
-        }
-
-        public int getMaxLapTimeIndex() {
-            int size = mLaps.size();
-            if (size == 0) {
-                return -1;
-            }
-            long maxLapTime = Integer.MIN_VALUE;
-            int maxLapIndex = -1;
-            for (int i = size -1; i > 0; i --) {
-                if (mLaps.get(i).mLapTime > maxLapTime) {
-                    maxLapIndex = i;
-                    maxLapTime = mLaps.get(i).mLapTime;
-                }
-            }
-            return maxLapIndex;
-        }
-
-        private void updateColors() {
-            int size = mLaps.size();
-            for (int i = size -1; i >= 0; i --) {
-                Lap l = mLaps.get(i);
-                View lapInfo = mLapsList.findViewWithTag(l);
-                if (lapInfo != null) {
-                    if (i != size - 1 && getMaxLapTimeIndex() == i) {
-                        setTimeColor(lapInfo, mLapTextColor, mLapMaxColor);
-                    } else if (i != size - 1 && getMinLapTimeIndex() == i) {
-                        setTimeColor(lapInfo, mLapTextColor, mLapMinColor);
-                    } else {
-                        setTimeColor(lapInfo, mLapDefaultTextColor, mLapDefaultColor);
-                    }
-                }
-            }
-        }
     }
 
     LapsListAdapter mLapsAdapter;
@@ -389,8 +476,12 @@ public class StopwatchFragment extends DeskClockFragment
                 org.omnirom.deskclock.R.drawable.bg_circle_view :
                 org.omnirom.deskclock.R.drawable.bg_circle_view_dark);
         mTimeText = (CountingTimerView)v.findViewById(org.omnirom.deskclock.R.id.stopwatch_time_text);
-        mLapsList = (ListView)v.findViewById(org.omnirom.deskclock.R.id.laps_list);
-        mLapsList.setDividerHeight(0);
+        mLapsList = (RecyclerView)v.findViewById(org.omnirom.deskclock.R.id.laps_list);
+        mLapsLayoutManager = new LinearLayoutManager(getActivity());
+        mLapsList.setLayoutManager(mLapsLayoutManager);
+        // The size of the list does not depend on the laps, so updating the running lap
+        // does not lay out the whole fragment
+        mLapsList.setHasFixedSize(true);
         mLapsAdapter = new LapsListAdapter(getActivity());
         mLapsList.setAdapter(mLapsAdapter);
 
@@ -431,19 +522,15 @@ public class StopwatchFragment extends DeskClockFragment
                         if (DEBUG) LogUtils.v("StopwatchFragment.start laps-list disappearing");
                         boolean shiftX = view.getResources().getConfiguration().orientation
                                 == Configuration.ORIENTATION_LANDSCAPE;
-                        int first = mLapsList.getFirstVisiblePosition();
-                        int last = mLapsList.getLastVisiblePosition();
                         // Ensure index range will not cause a divide by zero
-                        if (last < first) {
-                            last = first;
-                        }
+                        int last = Math.max(mLapsList.getChildCount() - 1, 0);
                         long duration = transition.getDuration(LayoutTransition.DISAPPEARING);
-                        long offset = duration / (last - first + 1) / 5;
-                        for (int visibleIndex = first; visibleIndex <= last; visibleIndex++) {
-                            View lapView = mLapsList.getChildAt(visibleIndex - first);
+                        long offset = duration / (last + 1) / 5;
+                        for (int visibleIndex = 0; visibleIndex <= last; visibleIndex++) {
+                            View lapView = mLapsList.getChildAt(visibleIndex);
                             if (lapView != null) {
-                                float toXValue = shiftX ? 1.0f * (visibleIndex - first + 1) : 0;
-                                float toYValue = shiftX ? 0 : 4.0f * (visibleIndex - first + 1);
+                                float toXValue = shiftX ? 1.0f * (visibleIndex + 1) : 0;
+                                float toYValue = shiftX ? 0 : 4.0f * (visibleIndex + 1);
                                         TranslateAnimation animation = new TranslateAnimation(
                                         Animation.RELATIVE_TO_SELF, 0,
                                         Animation.RELATIVE_TO_SELF, toXValue,
@@ -463,9 +550,8 @@ public class StopwatchFragment extends DeskClockFragment
                                       View view, int transitionType) {
                 if (transitionType == LayoutTransition.DISAPPEARING) {
                     if (DEBUG) LogUtils.v("StopwatchFragment.end laps-list disappearing");
-                    int last = mLapsList.getLastVisiblePosition();
-                    for (int visibleIndex = mLapsList.getFirstVisiblePosition();
-                         visibleIndex <= last; visibleIndex++) {
+                    int last = mLapsList.getChildCount() - 1;
+                    for (int visibleIndex = 0; visibleIndex <= last; visibleIndex++) {
                         View lapView = mLapsList.getChildAt(visibleIndex);
                         if (lapView != null) {
                             Animation animation = lapView.getAnimation();
@@ -492,7 +578,7 @@ public class StopwatchFragment extends DeskClockFragment
     public void onStart() {
         super.onStart();
 
-        boolean lapsVisible = mLapsAdapter.getCount() > 0;
+        boolean lapsVisible = mLapsAdapter.getLapCount() > 0;
 
         mLapsList.setVisibility(lapsVisible ? View.VISIBLE : View.GONE);
         if (mSpacersUsed) {
@@ -533,18 +619,20 @@ public class StopwatchFragment extends DeskClockFragment
         View v = getView();
         if (v != null) {
             v.setVisibility(View.VISIBLE);
+            v.getViewTreeObserver().addOnWindowFocusChangeListener(mWindowFocusListener);
         }
+        updatePrecision();
     }
 
     @Override
     public void onPause() {
+        View v = getView();
         if (mState == Stopwatches.STOPWATCH_RUNNING) {
             stopUpdateThread();
 
             // This is called because the lock screen was activated, the window stay
             // active under it and when we unlock the screen, we see the old time for
             // a fraction of a second.
-            View v = getView();
             if (v != null) {
                 v.setVisibility(View.INVISIBLE);
             }
@@ -556,6 +644,9 @@ public class StopwatchFragment extends DeskClockFragment
         writeToSharedPref(prefs);
         mTime.writeToSharedPref(prefs, "sw");
         mTimeText.blinkTimeStr(false);
+        if (v != null) {
+            v.getViewTreeObserver().removeOnWindowFocusChangeListener(mWindowFocusListener);
+        }
         ((DeskClock)getActivity()).unregisterPageChangedListener(this);
         releaseWakeLock();
         super.onPause();
@@ -570,6 +661,7 @@ public class StopwatchFragment extends DeskClockFragment
         } else {
             releaseWakeLock();
         }
+        updatePrecision();
     }
 
     private void doStop() {
@@ -608,7 +700,7 @@ public class StopwatchFragment extends DeskClockFragment
         if (DEBUG) LogUtils.v("StopwatchFragment.doReset");
         SharedPreferences prefs =
                 PreferenceManager.getDefaultSharedPreferences(getActivity());
-        Utils.clearSwSharedPref(prefs);
+        Utils.clearSwSharedPref(getActivity(), prefs);
         mTime.clearSharedPref(prefs, "sw");
         mAccumulatedTime = 0;
         mLapsAdapter.clearLaps();
@@ -631,7 +723,7 @@ public class StopwatchFragment extends DeskClockFragment
                 Stopwatches.getShareTitle(context.getApplicationContext()));
         shareIntent.putExtra(Intent.EXTRA_TEXT, Stopwatches.buildShareResults(
                 getActivity().getApplicationContext(), mTimeText.getTimeString(),
-                getLapShareTimes(mLapsAdapter.getLapTimes())));
+                getLapShareTimes(mLapsAdapter.getLapTimes()), mLapsAdapter.mStats));
 
         final Intent launchIntent = Intent.createChooser(shareIntent,
                 context.getString(org.omnirom.deskclock.R.string.sw_share_button));
@@ -660,10 +752,6 @@ public class StopwatchFragment extends DeskClockFragment
         return output;
     }
 
-    private boolean reachedMaxLaps() {
-        return mLapsAdapter.getCount() >= Stopwatches.MAX_LAPS;
-    }
-
     /***
      * Handle action when user presses the lap button
      * @param time - in hundredth of a second
@@ -671,54 +759,31 @@ public class StopwatchFragment extends DeskClockFragment
     private void addLapTime(long time) {
         // The total elapsed time
         final long curTime = time - mStartTime + mAccumulatedTime;
-        int size = mLapsAdapter.getCount();
+        int size = mLapsAdapter.getLapCount();
+        // Keep the new lap in view if the list shows the newest laps
+        boolean scrolledToTop = mLapsLayoutManager.findFirstVisibleItemPosition() <= 0;
+        // Finish the active lap, or add the first lap, and create a new active lap
+        final long lapTime = mLapsAdapter.addLap(curTime);
         if (size == 0) {
-            // Create and add the first lap
-            Lap firstLap = new Lap(curTime, curTime, 0);
-            mLapsAdapter.addLap(firstLap);
-            // Create the first active lap
-            mLapsAdapter.addLap(new Lap(0, curTime, 0));
-            // Update the interval on the clock and check the lap and total time formatting
+            // Update the interval on the clock
             mTime.setIntervalTime(curTime);
-            mLapsAdapter.updateTimeFormats(firstLap);
         } else {
-            // Finish active lap
-            final long lapTime = curTime - mLapsAdapter.getItem(1).mTotalTime;
-            final long lapDiff = lapTime - mLapsAdapter.getItem(1).mLapTime;
-
-            mLapsAdapter.getItem(0).mLapTime = lapTime;
-            mLapsAdapter.getItem(0).mTotalTime = curTime;
-            mLapsAdapter.getItem(0).mTimeDiff = lapDiff;
-            // Create a new active lap
-            mLapsAdapter.addLap(new Lap(0, curTime, 0));
-            // Update marker on clock and check that formatting for the lap number
+            // Update marker on clock
             mTime.setMarkerTime(lapTime);
-            mLapsAdapter.updateLapFormat();
         }
-        // Repaint the laps list
-        mLapsAdapter.notifyDataSetChanged();
+        if (scrolledToTop) {
+            mLapsList.scrollToPosition(0);
+        }
 
         // Start lap animation starting from the second lap
         mTime.stopIntervalAnimation();
-        if (!reachedMaxLaps()) {
-            mTime.startIntervalAnimation();
-        }
+        mTime.startIntervalAnimation();
     }
 
     private void updateCurrentLap(long totalTime) {
         // There are either 0, 2 or more Laps in the list See {@link #addLapTime}
-        if (mLapsAdapter.getCount() > 0) {
-            Lap curLap = mLapsAdapter.getItem(0);
-            curLap.mLapTime = totalTime - mLapsAdapter.getItem(1).mTotalTime;
-            curLap.mTotalTime = totalTime;
-            // If this lap has caused a change in the format for total and/or lap time, all of
-            // the rows need a fresh print. The simplest way to refresh all of the rows is
-            // calling notifyDataSetChanged.
-            if (mLapsAdapter.updateTimeFormats(curLap)) {
-                mLapsAdapter.notifyDataSetChanged();
-            } else {
-                curLap.updateView();
-            }
+        if (mLapsAdapter.getLapCount() > 0) {
+            mLapsAdapter.updateRunningLap(totalTime);
         }
     }
 
@@ -727,9 +792,9 @@ public class StopwatchFragment extends DeskClockFragment
      */
     private void showLaps() {
         if (DEBUG) LogUtils.v(String.format("StopwatchFragment.showLaps: count=%d",
-                mLapsAdapter.getCount()));
+                mLapsAdapter.getLapCount()));
 
-        boolean lapsVisible = mLapsAdapter.getCount() > 0;
+        boolean lapsVisible = mLapsAdapter.getLapCount() > 0;
 
         // Layout change animations will start upon the first add/hide view. Temporarily disable
         // the layout transition animation for the spacers, make the changes, then re-enable
@@ -768,25 +833,63 @@ public class StopwatchFragment extends DeskClockFragment
     }
 
     private void startUpdateThread() {
-        mTime.post(mTimeUpdateThread);
+        final Choreographer choreographer = Choreographer.getInstance();
+        choreographer.removeFrameCallback(mTimeUpdate);
+        mShownTime = -1;
+        choreographer.postFrameCallback(mTimeUpdate);
     }
 
     private void stopUpdateThread() {
-        mTime.removeCallbacks(mTimeUpdateThread);
+        Choreographer.getInstance().removeFrameCallback(mTimeUpdate);
+    }
+
+    /**
+     * Show hundredths while the stopwatch tab is in a focused window, otherwise only seconds.
+     */
+    private void updatePrecision() {
+        final DeskClock activity = (DeskClock) getActivity();
+        final View v = getView();
+        boolean highPrecision = activity != null && activity.isStopwatchTab()
+                && v != null && v.hasWindowFocus();
+        if (highPrecision != mHighPrecision) {
+            mHighPrecision = highPrecision;
+            if (mState == Stopwatches.STOPWATCH_RUNNING) {
+                startUpdateThread();
+            }
+        }
     }
 
-    Runnable mTimeUpdateThread = new Runnable() {
+    private final ViewTreeObserver.OnWindowFocusChangeListener mWindowFocusListener =
+            new ViewTreeObserver.OnWindowFocusChangeListener() {
         @Override
-        public void run() {
+        public void onWindowFocusChanged(boolean hasFocus) {
+            updatePrecision();
+        }
+    };
+
+    // Updates the time in sync with the display frames while the stopwatch runs. The views
+    // are only changed when the shown hundredths or, at low precision, seconds change, and
+    // at low precision nothing is done until the next second.
+    private final Choreographer.FrameCallback mTimeUpdate = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
             long curTime = Utils.getTimeNow();
             long totalTime = mAccumulatedTime + (curTime - mStartTime);
-            if (mTime != null) {
-                mTimeText.setTime(totalTime, true, true);
+            long precision = mHighPrecision ? HIGH_PRECISION_MILLIS : LOW_PRECISION_MILLIS;
+            long shownTime = totalTime / precision;
+            if (shownTime != mShownTime) {
+                mShownTime = shownTime;
+                mTimeText.setTime(totalTime, mHighPrecision, true);
+                if (mLapsAdapter.getLapCount() > 0) {
+                    updateCurrentLap(totalTime);
+                }
             }
-            if (mLapsAdapter.getCount() > 0) {
-                updateCurrentLap(totalTime);
+            if (mHighPrecision) {
+                Choreographer.getInstance().postFrameCallback(mTimeUpdate);
+            } else {
+                Choreographer.getInstance().postFrameCallbackDelayed(mTimeUpdate,
+                        precision - totalTime % precision);
             }
-            mTime.postDelayed(mTimeUpdateThread, STOPWATCH_REFRESH_INTERVAL_MILLIS);
         }
     };
 
@@ -795,16 +898,7 @@ public class StopwatchFragment extends DeskClockFragment
         editor.putLong (Stopwatches.PREF_START_TIME, mStartTime);
         editor.putLong (Stopwatches.PREF_ACCUM_TIME, mAccumulatedTime);
         editor.putInt (Stopwatches.PREF_STATE, mState);
-        if (mLapsAdapter != null) {
-            long [] laps = mLapsAdapter.getLapTimes();
-            if (laps != null) {
-                editor.putInt (Stopwatches.PREF_LAP_NUM, laps.length);
-                for (int i = 0; i < laps.length; i++) {
-                    String key = Stopwatches.PREF_LAP_TIME + Integer.toString(laps.length - i);
-                    editor.putLong (key, laps[i]);
-                }
-            }
-        }
+        // The laps are appended to the lap log by the service
         if (mState == Stopwatches.STOPWATCH_RUNNING) {
             editor.putLong(Stopwatches.NOTIF_CLOCK_BASE, mStartTime-mAccumulatedTime);
             editor.putLong(Stopwatches.NOTIF_CLOCK_ELAPSED, -1);
@@ -826,20 +920,18 @@ public class StopwatchFragment extends DeskClockFragment
         mStartTime = prefs.getLong(Stopwatches.PREF_START_TIME, 0);
         mAccumulatedTime = prefs.getLong(Stopwatches.PREF_ACCUM_TIME, 0);
         mState = prefs.getInt(Stopwatches.PREF_STATE, Stopwatches.STOPWATCH_RESET);
-        int numLaps = prefs.getInt(Stopwatches.PREF_LAP_NUM, Stopwatches.STOPWATCH_RESET);
-        if (mLapsAdapter != null) {
-            long[] oldLaps = mLapsAdapter.getLapTimes();
-            if (oldLaps == null || oldLaps.length < numLaps) {
-                long[] laps = new long[numLaps];
-                long prevLapElapsedTime = 0;
-                for (int lap_i = 0; lap_i < numLaps; lap_i++) {
-                    String key = Stopwatches.PREF_LAP_TIME + Integer.toString(lap_i + 1);
-                    long lap = prefs.getLong(key, 0);
-                    laps[numLaps - lap_i - 1] = lap - prevLapElapsedTime;
-                    prevLapElapsedTime = lap;
-                }
-                mLapsAdapter.setLapTimes(laps);
+        LapLog lapLog = LapLog.getInstance(getActivity());
+        int numLaps = lapLog.getLapCount();
+        if (mLapsAdapter != null && mLapsAdapter.getLapCount() < numLaps) {
+            // The running lap starts at the end of the last completed lap
+            long[] totals = lapLog.readTotalTimes();
+            long[] laps = new long[numLaps];
+            long prevLapElapsedTime = 0;
+            for (int lap_i = 0; lap_i < totals.length; lap_i++) {
+                laps[numLaps - lap_i - 1] = totals[lap_i] - prevLapElapsedTime;
+                prevLapElapsedTime = totals[lap_i];
             }
+            mLapsAdapter.setLapTimes(laps);
         }
         if (prefs.getBoolean(Stopwatches.PREF_UPDATE_CIRCLE, true)) {
             if (mState == Stopwatches.STOPWATCH_STOPPED) {
@@ -855,12 +947,9 @@ public class StopwatchFragment extends DeskClockFragment
     @Override
     public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
         if (prefs.equals(PreferenceManager.getDefaultSharedPreferences(getActivity()))) {
-            if (! (key.equals(Stopwatches.PREF_LAP_NUM) ||
-                    key.startsWith(Stopwatches.PREF_LAP_TIME))) {
-                readFromSharedPref(prefs);
-                if (prefs.getBoolean(Stopwatches.PREF_UPDATE_CIRCLE, true)) {
-                    mTime.readFromSharedPref(prefs, "sw");
-                }
+            readFromSharedPref(prefs);
+            if (prefs.getBoolean(Stopwatches.PREF_UPDATE_CIRCLE, true)) {
+                mTime.readFromSharedPref(prefs, "sw");
             }
         }
     }
@@ -962,7 +1051,7 @@ public class StopwatchFragment extends DeskClockFragment
                 if (leftVisible) {
                     mLeftButton.setImageResource(org.omnirom.deskclock.R.drawable.ic_lap);
                     mLeftButton.setContentDescription(getString(org.omnirom.deskclock.R.string.sw_lap_button));
-                    mLeftButton.setEnabled(!reachedMaxLaps());
+                    mLeftButton.setEnabled(true);
                 }
                 rightVisible = false;
                 break;
@@ -18,6 +18,8 @@ import org.omnirom.deskclock.CircleTimerView;
 import org.omnirom.deskclock.DeskClock;
 import org.omnirom.deskclock.Utils;
 
+import java.util.ArrayList;
+
 /**
  * TODO: Insert description here. (generated by sblitz)
  */
@@ -33,6 +35,9 @@ public class StopwatchService extends Service {
     // Make this a large number to avoid the alarm ID's which seem to be 1, 2, ...
     // Must also be different than TimerReceiver.IN_USE_NOTIFICATION_ID
     private static final int NOTIFICATION_ID = Integer.MAX_VALUE - 1;
+    // The notifications of the named stopwatches use ids below the summary id
+    private static final int SUMMARY_NOTIFICATION_ID = Integer.MAX_VALUE - 3;
+    private static final String NOTIFICATION_GROUP = "stopwatches";
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -54,12 +59,23 @@ public class StopwatchService extends Service {
             return Service.START_NOT_STICKY;
         }
 
+        String actionType = intent.getAction();
+        int stopwatchId = intent.getIntExtra(
+                Stopwatches.EXTRA_STOPWATCH_ID, Stopwatches.MAIN_STOPWATCH_ID);
+        if (actionType.equals(Stopwatches.ADD_STOPWATCH)
+                || stopwatchId != Stopwatches.MAIN_STOPWATCH_ID) {
+            handleNamedStopwatch(intent, stopwatchId);
+            // Named stopwatches are persisted by the store, the service is only needed
+            // to handle their actions
+            stopIfIdle();
+            return START_NOT_STICKY;
+        }
+
         if (mStartTime == 0 || mElapsedTime == 0 || mNumLaps == 0) {
             // May not have the most recent values.
             readFromSharedPrefs();
         }
 
-        String actionType = intent.getAction();
         long actionTime = intent.getLongExtra(Stopwatches.MESSAGE_TIME, Utils.getTimeNow());
         boolean showNotif = intent.getBooleanExtra(Stopwatches.SHOW_NOTIF, true);
         boolean updateCircle = showNotif; // Don't save updates to the cirle if we're in the app.
@@ -72,7 +88,6 @@ public class StopwatchService extends Service {
                 saveNotification(mStartTime - mElapsedTime, true, mNumLaps);
             }
         } else if (actionType.equals(Stopwatches.LAP_STOPWATCH)) {
-            mNumLaps++;
             long lapTimeElapsed = actionTime - mStartTime + mElapsedTime;
             writeSharedPrefsLap(lapTimeElapsed, updateCircle);
             if (showNotif) {
@@ -101,15 +116,7 @@ public class StopwatchService extends Service {
             stopSelf();
         } else if (actionType.equals(Stopwatches.SHARE_STOPWATCH)) {
             closeNotificationShade();
-            Intent shareIntent = new Intent(android.content.Intent.ACTION_SEND);
-            shareIntent.setType("text/plain");
-            shareIntent.putExtra(
-                    Intent.EXTRA_SUBJECT, Stopwatches.getShareTitle(getApplicationContext()));
-            shareIntent.putExtra(Intent.EXTRA_TEXT, Stopwatches.buildShareResults(
-                    getApplicationContext(), mElapsedTime, readLapsFromPrefs()));
-            Intent chooserIntent = Intent.createChooser(shareIntent, null);
-            chooserIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            getApplication().startActivity(chooserIntent);
+            shareResults(mElapsedTime, readLaps());
         } else if (actionType.equals(Stopwatches.SHOW_NOTIF)) {
             // SHOW_NOTIF sent from the DeskClock.onPause
             // If a notification is not displayed, this service's work is over
@@ -119,6 +126,7 @@ public class StopwatchService extends Service {
         } else if (actionType.equals(Stopwatches.KILL_NOTIF)) {
             mNotificationManager.cancel(NOTIFICATION_ID);
         }
+        updateSummaryNotification();
 
         // We want this service to continue running until it is explicitly
         // stopped, so return sticky.
@@ -358,6 +366,7 @@ public class StopwatchService extends Service {
                     .setPriority(Notification.PRIORITY_MAX)
                     .setLocalOnly(true)
                     .setStyle(new Notification.DecoratedCustomViewStyle())
+                    .setGroup(NOTIFICATION_GROUP)
                     .setContentIntent(pendingIntent)
                     .setColor(context.getResources().getColor(org.omnirom.deskclock.R.color.primary))
                     .build();
@@ -365,6 +374,236 @@ public class StopwatchService extends Service {
         }
     }
 
+    /**
+     * Handle an action for a stopwatch of the {@link StopwatchStore}. Only the record and laps
+     * of that stopwatch are written.
+     */
+    private void handleNamedStopwatch(Intent intent, int stopwatchId) {
+        final StopwatchStore store = StopwatchStore.getInstance(this);
+        final String actionType = intent.getAction();
+        final long actionTime = intent.getLongExtra(Stopwatches.MESSAGE_TIME, Utils.getTimeNow());
+        Stopwatch stopwatch;
+        if (actionType.equals(Stopwatches.ADD_STOPWATCH)) {
+            stopwatch = store.add(intent.getStringExtra(Stopwatches.EXTRA_STOPWATCH_NAME));
+            stopwatch.start(actionTime);
+            store.update(stopwatch);
+        } else {
+            stopwatch = store.get(stopwatchId);
+            if (stopwatch == null) {
+                // Action of a stopwatch that was removed meanwhile
+                mNotificationManager.cancel(getNotificationId(stopwatchId));
+                updateSummaryNotification();
+                return;
+            }
+            final LapLog lapLog = LapLog.getInstance(this, stopwatchId);
+            if (actionType.equals(Stopwatches.START_STOPWATCH)) {
+                stopwatch.start(actionTime);
+                store.update(stopwatch);
+            } else if (actionType.equals(Stopwatches.LAP_STOPWATCH)) {
+                if (stopwatch.isRunning()) {
+                    lapLog.append(stopwatch.getElapsedTime(actionTime));
+                }
+            } else if (actionType.equals(Stopwatches.STOP_STOPWATCH)) {
+                stopwatch.stop(actionTime);
+                store.update(stopwatch);
+            } else if (actionType.equals(Stopwatches.RESET_STOPWATCH)) {
+                store.remove(stopwatchId);
+                stopwatch = null;
+            } else if (actionType.equals(Stopwatches.SHARE_STOPWATCH)) {
+                closeNotificationShade();
+                final long elapsedTime = stopwatch.getElapsedTime(actionTime);
+                shareResults(elapsedTime, readLaps(lapLog, elapsedTime));
+            }
+        }
+        if (stopwatch != null) {
+            setNamedNotification(stopwatch);
+        } else {
+            mNotificationManager.cancel(getNotificationId(stopwatchId));
+        }
+        updateSummaryNotification();
+    }
+
+    private static int getNotificationId(int stopwatchId) {
+        return SUMMARY_NOTIFICATION_ID - stopwatchId;
+    }
+
+    private PendingIntent getNamedStopwatchIntent(Context context, String action,
+            int stopwatchId) {
+        Intent intent = new Intent(context, StopwatchService.class);
+        intent.setAction(action);
+        intent.putExtra(Stopwatches.EXTRA_STOPWATCH_ID, stopwatchId);
+        // The request code keeps the intents of the stopwatches apart
+        return PendingIntent.getService(context, stopwatchId, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private PendingIntent getLaunchIntent(Context context) {
+        Intent intent = new Intent(context, DeskClock.class);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        intent.putExtra(DeskClock.SELECT_TAB_INTENT_EXTRA, DeskClock.STOPWATCH_TAB_INDEX);
+        // add category to distinguish between stopwatch intents and timer intents
+        intent.addCategory("stopwatch");
+        return PendingIntent.getActivity(context, 0, intent,
+                PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private String getStopwatchName(Context context, Stopwatch stopwatch) {
+        if (stopwatch.mName.length() == 0) {
+            return context.getString(org.omnirom.deskclock.R.string.sw_named_default,
+                    stopwatch.mId);
+        }
+        return stopwatch.mName;
+    }
+
+    /**
+     * Show the notification of a named stopwatch with its own actions.
+     */
+    private void setNamedNotification(Stopwatch stopwatch) {
+        Context context = getApplicationContext();
+        Resources resources = context.getResources();
+        long elapsedTime = stopwatch.getElapsedTime(Utils.getTimeNow());
+        Notification.Builder builder = new Notification.Builder(context)
+                .setContentTitle(getStopwatchName(context, stopwatch))
+                .setSmallIcon(org.omnirom.deskclock.R.drawable.ic_notify_stopwatch)
+                .setPriority(Notification.PRIORITY_MAX)
+                .setLocalOnly(true)
+                .setGroup(NOTIFICATION_GROUP)
+                .setContentIntent(getLaunchIntent(context))
+                .setColor(resources.getColor(org.omnirom.deskclock.R.color.primary));
+
+        if (stopwatch.isRunning()) {
+            // The chronometer counts from the wall clock time the stopwatch would have been
+            // started at without pauses
+            builder.setOngoing(true)
+                    .setUsesChronometer(true)
+                    .setShowWhen(true)
+                    .setWhen(System.currentTimeMillis() - elapsedTime);
+            int numLaps = LapLog.getInstance(context, stopwatch.mId).getLapCount();
+            if (numLaps > 0) {
+                builder.setContentText(context.getString(
+                        org.omnirom.deskclock.R.string.sw_notification_lap_number, numLaps));
+            }
+            builder.addAction(org.omnirom.deskclock.R.drawable.ic_notify_lap_black,
+                    resources.getString(org.omnirom.deskclock.R.string.sw_lap_button),
+                    getNamedStopwatchIntent(context, Stopwatches.LAP_STOPWATCH,
+                            stopwatch.mId));
+            builder.addAction(org.omnirom.deskclock.R.drawable.ic_notify_pause_black,
+                    resources.getString(org.omnirom.deskclock.R.string.sw_pause_button),
+                    getNamedStopwatchIntent(context, Stopwatches.STOP_STOPWATCH,
+                            stopwatch.mId));
+        } else {
+            builder.setShowWhen(false)
+                    .setContentText(Stopwatches.getTimeText(
+                            context, elapsedTime, Stopwatches.NO_LAP_NUMBER))
+                    .setSubText(context.getString(org.omnirom.deskclock.R.string.swn_stopped))
+                    .setDeleteIntent(getNamedStopwatchIntent(context,
+                            Stopwatches.RESET_STOPWATCH, stopwatch.mId));
+            builder.addAction(org.omnirom.deskclock.R.drawable.ic_notify_reset_black,
+                    resources.getString(org.omnirom.deskclock.R.string.sw_reset_button),
+                    getNamedStopwatchIntent(context, Stopwatches.RESET_STOPWATCH,
+                            stopwatch.mId));
+            builder.addAction(org.omnirom.deskclock.R.drawable.ic_notify_start_black,
+                    resources.getString(org.omnirom.deskclock.R.string.sw_start_button),
+                    getNamedStopwatchIntent(context, Stopwatches.START_STOPWATCH,
+                            stopwatch.mId));
+        }
+        builder.addAction(org.omnirom.deskclock.R.drawable.ic_share,
+                resources.getString(org.omnirom.deskclock.R.string.sw_share_button),
+                getNamedStopwatchIntent(context, Stopwatches.SHARE_STOPWATCH, stopwatch.mId));
+        mNotificationManager.notify(getNotificationId(stopwatch.mId), builder.build());
+    }
+
+    /**
+     * Stop the service once no named stopwatch is left and the stopwatch of the stopwatch
+     * tab is reset, nothing is shown that its actions could be needed for.
+     */
+    private void stopIfIdle() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        if (StopwatchStore.getInstance(this).getStopwatches().isEmpty()
+                && prefs.getInt(Stopwatches.PREF_STATE, Stopwatches.STOPWATCH_RESET)
+                == Stopwatches.STOPWATCH_RESET) {
+            stopSelf();
+        }
+    }
+
+    /**
+     * Show the summary of the stopwatch notifications that lists the stopwatches and their
+     * state, or remove it if there are no named stopwatches. The lines do not show times,
+     * inbox lines are not updated while the stopwatches run.
+     */
+    private void updateSummaryNotification() {
+        ArrayList<Stopwatch> stopwatches = StopwatchStore.getInstance(this).getStopwatches();
+        if (stopwatches.isEmpty()) {
+            mNotificationManager.cancel(SUMMARY_NOTIFICATION_ID);
+            return;
+        }
+        Context context = getApplicationContext();
+        long now = Utils.getTimeNow();
+        Notification.InboxStyle style = new Notification.InboxStyle();
+        String running = context.getString(org.omnirom.deskclock.R.string.sw_notification_running);
+        String stopped = context.getString(org.omnirom.deskclock.R.string.swn_stopped);
+        int numRunning = 0;
+        long longestElapsedTime = 0;
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int mainState = prefs.getInt(Stopwatches.PREF_STATE, Stopwatches.STOPWATCH_RESET);
+        if (mainState != Stopwatches.STOPWATCH_RESET) {
+            boolean mainRunning = mainState == Stopwatches.STOPWATCH_RUNNING;
+            style.addLine(context.getString(org.omnirom.deskclock.R.string.sw_notification_summary_line,
+                    context.getString(org.omnirom.deskclock.R.string.menu_stopwatch),
+                    mainRunning ? running : stopped));
+            if (mainRunning) {
+                numRunning++;
+                longestElapsedTime = prefs.getLong(Stopwatches.PREF_ACCUM_TIME, 0)
+                        + now - prefs.getLong(Stopwatches.PREF_START_TIME, now);
+            }
+        }
+        for (Stopwatch stopwatch : stopwatches) {
+            style.addLine(context.getString(org.omnirom.deskclock.R.string.sw_notification_summary_line,
+                    getStopwatchName(context, stopwatch),
+                    stopwatch.isRunning() ? running : stopped));
+            if (stopwatch.isRunning()) {
+                numRunning++;
+                longestElapsedTime = Math.max(longestElapsedTime, stopwatch.getElapsedTime(now));
+            }
+        }
+
+        Notification.Builder builder = new Notification.Builder(context)
+                .setContentTitle(context.getResources().getQuantityString(
+                        org.omnirom.deskclock.R.plurals.sw_notification_summary,
+                        numRunning, numRunning))
+                .setStyle(style)
+                .setSmallIcon(org.omnirom.deskclock.R.drawable.ic_notify_stopwatch)
+                .setPriority(Notification.PRIORITY_MAX)
+                .setLocalOnly(true)
+                .setGroup(NOTIFICATION_GROUP)
+                .setGroupSummary(true)
+                .setContentIntent(getLaunchIntent(context))
+                .setColor(context.getResources().getColor(org.omnirom.deskclock.R.color.primary));
+        if (numRunning > 0) {
+            // Counts the time of the longest running stopwatch
+            builder.setOngoing(true)
+                    .setUsesChronometer(true)
+                    .setShowWhen(true)
+                    .setWhen(System.currentTimeMillis() - longestElapsedTime);
+        } else {
+            builder.setShowWhen(false);
+        }
+        mNotificationManager.notify(SUMMARY_NOTIFICATION_ID, builder.build());
+    }
+
+    private void shareResults(long elapsedTime, long[] laps) {
+        Intent shareIntent = new Intent(android.content.Intent.ACTION_SEND);
+        shareIntent.setType("text/plain");
+        shareIntent.putExtra(
+                Intent.EXTRA_SUBJECT, Stopwatches.getShareTitle(getApplicationContext()));
+        shareIntent.putExtra(Intent.EXTRA_TEXT, Stopwatches.buildShareResults(
+                getApplicationContext(), elapsedTime, laps));
+        Intent chooserIntent = Intent.createChooser(shareIntent, null);
+        chooserIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        getApplication().startActivity(chooserIntent);
+    }
+
     /**
      * Save the notification to be shown when the app is closed.
      **/
@@ -394,7 +633,7 @@ public class StopwatchService extends Service {
         long clockBaseTime = prefs.getLong(Stopwatches.NOTIF_CLOCK_BASE, -1);
         long clockElapsedTime = prefs.getLong(Stopwatches.NOTIF_CLOCK_ELAPSED, -1);
         boolean clockRunning = prefs.getBoolean(Stopwatches.NOTIF_CLOCK_RUNNING, false);
-        int numLaps = prefs.getInt(Stopwatches.PREF_LAP_NUM, -1);
+        int numLaps = LapLog.getInstance(this).getLapCount();
         if (clockBaseTime == -1) {
             if (clockElapsedTime == -1) {
                 return false;
@@ -430,24 +669,34 @@ public class StopwatchService extends Service {
                 getApplicationContext());
         mStartTime = prefs.getLong(Stopwatches.PREF_START_TIME, 0);
         mElapsedTime = prefs.getLong(Stopwatches.PREF_ACCUM_TIME, 0);
-        mNumLaps = prefs.getInt(Stopwatches.PREF_LAP_NUM, Stopwatches.STOPWATCH_RESET);
+        mNumLaps = LapLog.getInstance(this).getLapCount();
     }
 
-    private long[] readLapsFromPrefs() {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(
-                getApplicationContext());
-        int numLaps = prefs.getInt(Stopwatches.PREF_LAP_NUM, Stopwatches.STOPWATCH_RESET);
+    /**
+     * @return the lap times, the running lap first
+     */
+    private long[] readLaps() {
+        return readLaps(LapLog.getInstance(this), mElapsedTime);
+    }
+
+    /**
+     * @param elapsedTime time at which the running lap ends
+     * @return the lap times of a stopwatch, the running lap first
+     */
+    private static long[] readLaps(LapLog lapLog, long elapsedTime) {
+        long[] totals = lapLog.readTotalTimes();
+        if (totals.length == 0) {
+            return new long[0];
+        }
+        int numLaps = totals.length + 1;
         long[] laps = new long[numLaps];
         long prevLapElapsedTime = 0;
-        for (int lap_i = 0; lap_i < numLaps; lap_i++) {
-            String key = Stopwatches.PREF_LAP_TIME + Integer.toString(lap_i + 1);
-            long lap = prefs.getLong(key, 0);
-            if (lap == prevLapElapsedTime && lap_i == numLaps - 1) {
-                lap = mElapsedTime;
-            }
-            laps[numLaps - lap_i - 1] = lap - prevLapElapsedTime;
-            prevLapElapsedTime = lap;
+        for (int lap_i = 0; lap_i < totals.length; lap_i++) {
+            laps[numLaps - lap_i - 1] = totals[lap_i] - prevLapElapsedTime;
+            prevLapElapsedTime = totals[lap_i];
         }
+        // The running lap ends at the stopped time
+        laps[0] = elapsedTime - prevLapElapsedTime;
         return laps;
     }
 
@@ -461,15 +710,9 @@ public class StopwatchService extends Service {
             mStartTime = startTime;
         }
         if (lapTimeElapsed != null) {
-            int numLaps = prefs.getInt(Stopwatches.PREF_LAP_NUM, 0);
-            if (numLaps == 0) {
-                mNumLaps++;
-                numLaps++;
-            }
-            editor.putLong(Stopwatches.PREF_LAP_TIME + Integer.toString(numLaps), lapTimeElapsed);
-            numLaps++;
-            editor.putLong(Stopwatches.PREF_LAP_TIME + Integer.toString(numLaps), lapTimeElapsed);
-            editor.putInt(Stopwatches.PREF_LAP_NUM, numLaps);
+            LapLog lapLog = LapLog.getInstance(this);
+            lapLog.append(lapTimeElapsed);
+            mNumLaps = lapLog.getLapCount();
         }
         if (elapsedTime != null) {
             editor.putLong(Stopwatches.PREF_ACCUM_TIME, elapsedTime);
@@ -514,7 +757,7 @@ public class StopwatchService extends Service {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(
                     getApplicationContext());
             SharedPreferences.Editor editor = prefs.edit();
-            long laps[] = readLapsFromPrefs();
+            long laps[] = readLaps();
             int numLaps = laps.length;
             long lapTime = laps[1];
             if (numLaps == 2) { // Have only hit lap once.
@@ -523,12 +766,8 @@ public class StopwatchService extends Service {
                 editor.putLong(Stopwatches.KEY + CircleTimerView.PREF_CTV_MARKER_TIME, lapTime);
             }
             editor.putLong(Stopwatches.KEY + CircleTimerView.PREF_CTV_ACCUM_TIME, 0);
-            if (numLaps < Stopwatches.MAX_LAPS) {
-                editor.putLong(Stopwatches.KEY + CircleTimerView.PREF_CTV_INTERVAL_START, time);
-                editor.putBoolean(Stopwatches.KEY + CircleTimerView.PREF_CTV_PAUSED, false);
-            } else {
-                editor.putLong(Stopwatches.KEY + CircleTimerView.PREF_CTV_INTERVAL_START, -1);
-            }
+            editor.putLong(Stopwatches.KEY + CircleTimerView.PREF_CTV_INTERVAL_START, time);
+            editor.putBoolean(Stopwatches.KEY + CircleTimerView.PREF_CTV_PAUSED, false);
             editor.apply();
         }
     }
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock.stopwatch;
+
+import android.content.Context;
+import android.util.AtomicFile;
+
+import org.omnirom.deskclock.AsyncHandler;
+import org.omnirom.deskclock.LogUtils;
+import org.omnirom.deskclock.Utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+/**
+ * Collection of the named stopwatches that run besides the stopwatch of the stopwatch tab.
+ *
+ * Every stopwatch is stored in a record file of its own that only holds its state, start
+ * time, accumulated time and name, so starting, stopping or renaming one stopwatch rewrites
+ * a few bytes of that stopwatch only. Laps are appended to the {@link LapLog} of the
+ * stopwatch. The stopwatch of the stopwatch tab keeps its state in the shared preferences
+ * and uses the id {@link Stopwatches#MAIN_STOPWATCH_ID}.
+ *
+ * Callers get copies of the stopwatches. Changes have to be written with {@link #update}.
+ * The stopwatches in memory change at once, their record files are written and deleted in
+ * order on the bulk background lane, so actions on the main thread do not wait for a sync.
+ */
+public final class StopwatchStore {
+    private static final String STOPWATCH_DIR = "stopwatches";
+
+    private static StopwatchStore sInstance;
+
+    private final Context mContext;
+    private final File mDir;
+    // All named stopwatches ordered by id
+    private final TreeMap<Integer, Stopwatch> mStopwatches = new TreeMap<Integer, Stopwatch>();
+
+    private StopwatchStore(Context context) {
+        mContext = context.getApplicationContext();
+        mDir = new File(mContext.getFilesDir(), STOPWATCH_DIR);
+        load();
+    }
+
+    public static synchronized StopwatchStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new StopwatchStore(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return copies of all named stopwatches ordered by id
+     */
+    public synchronized ArrayList<Stopwatch> getStopwatches() {
+        final ArrayList<Stopwatch> stopwatches = new ArrayList<Stopwatch>(mStopwatches.size());
+        for (Stopwatch stopwatch : mStopwatches.values()) {
+            stopwatches.add(stopwatch.copy());
+        }
+        return stopwatches;
+    }
+
+    /**
+     * @return a copy of the stopwatch or null if there is none with the id
+     */
+    public synchronized Stopwatch get(int id) {
+        final Stopwatch stopwatch = mStopwatches.get(id);
+        return stopwatch != null ? stopwatch.copy() : null;
+    }
+
+    /**
+     * Add a stopwatch that was not started yet.
+     *
+     * @return a copy of the new stopwatch
+     */
+    public synchronized Stopwatch add(String name) {
+        final int id = mStopwatches.isEmpty()
+                ? Stopwatches.MAIN_STOPWATCH_ID + 1 : mStopwatches.lastKey() + 1;
+        final Stopwatch stopwatch = new Stopwatch(id, name);
+        // Laps of a removed stopwatch with the same id must not show up
+        LapLog.getInstance(mContext, id).clear();
+        mStopwatches.put(id, stopwatch);
+        postWrite(stopwatch.copy());
+        return stopwatch.copy();
+    }
+
+    /**
+     * Store the changed state of a stopwatch.
+     */
+    public synchronized void update(Stopwatch stopwatch) {
+        if (!mStopwatches.containsKey(stopwatch.mId)) {
+            LogUtils.e("Update of removed stopwatch " + stopwatch.mId);
+            return;
+        }
+        final Stopwatch copy = stopwatch.copy();
+        mStopwatches.put(copy.mId, copy);
+        postWrite(copy.copy());
+    }
+
+    /**
+     * Remove a stopwatch and its laps.
+     */
+    public synchronized void remove(int id) {
+        if (mStopwatches.remove(id) == null) {
+            return;
+        }
+        final AtomicFile file = new AtomicFile(getFile(id));
+        AsyncHandler.post(AsyncHandler.LANE_BULK, new Runnable() {
+            @Override
+            public void run() {
+                file.delete();
+            }
+        });
+        LapLog.getInstance(mContext, id).clear();
+    }
+
+    /**
+     * Remove all stopwatches, their times are no longer valid after a reboot.
+     */
+    public synchronized void removeAll() {
+        for (Integer id : new ArrayList<Integer>(mStopwatches.keySet())) {
+            remove(id);
+        }
+    }
+
+    private File getFile(int id) {
+        return new File(mDir, Integer.toString(id));
+    }
+
+    private void load() {
+        final String[] names = mDir.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            final int id;
+            try {
+                id = Integer.parseInt(name);
+            } catch (NumberFormatException e) {
+                // Backup or temporary file of AtomicFile
+                continue;
+            }
+            final Stopwatch stopwatch = read(id);
+            if (stopwatch != null) {
+                mStopwatches.put(id, stopwatch);
+            }
+        }
+    }
+
+    private Stopwatch read(int id) {
+        DataInputStream in = null;
+        try {
+            final FileInputStream stream = new AtomicFile(getFile(id)).openRead();
+            in = new DataInputStream(stream);
+            final int state = in.readByte();
+            final long startTime = in.readLong();
+            final long accumulatedTime = in.readLong();
+            final Stopwatch stopwatch = new Stopwatch(id, in.readUTF());
+            stopwatch.mState = state;
+            stopwatch.mStartTime = startTime;
+            stopwatch.mAccumulatedTime = accumulatedTime;
+            return stopwatch;
+        } catch (IOException e) {
+            LogUtils.e("Failed to read stopwatch " + id, e);
+            return null;
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    private void postWrite(final Stopwatch stopwatch) {
+        AsyncHandler.post(AsyncHandler.LANE_BULK, new Runnable() {
+            @Override
+            public void run() {
+                write(stopwatch);
+            }
+        });
+    }
+
+    private void write(Stopwatch stopwatch) {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            LogUtils.e("Failed to create " + mDir);
+            return;
+        }
+        final AtomicFile file = new AtomicFile(getFile(stopwatch.mId));
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(stream);
+            out.writeByte(stopwatch.mState);
+            out.writeLong(stopwatch.mStartTime);
+            out.writeLong(stopwatch.mAccumulatedTime);
+            out.writeUTF(stopwatch.mName);
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            LogUtils.e("Failed to write stopwatch " + stopwatch.mId, e);
+            file.failWrite(stream);
+        }
+    }
+}
@@ -32,14 +32,16 @@ public class Stopwatches {
     public static final String RESET_STOPWATCH = "reset_stopwatch";
     public static final String SHARE_STOPWATCH = "share_stopwatch";
     public static final String RESET_AND_LAUNCH_STOPWATCH = "reset_and_launch_stopwatch";
+    public static final String ADD_STOPWATCH = "add_stopwatch";
     public static final String MESSAGE_TIME = "message_time";
     public static final String SHOW_NOTIF = "show_notification";
     public static final String KILL_NOTIF = "kill_notification";
+    // Id of the stopwatch an action is for, the stopwatch of the stopwatch tab if missing
+    public static final String EXTRA_STOPWATCH_ID = "stopwatch_id";
+    public static final String EXTRA_STOPWATCH_NAME = "stopwatch_name";
     public static final String PREF_START_TIME  = "sw_start_time";
     public static final String PREF_ACCUM_TIME = "sw_accum_time";
     public static final String PREF_STATE = "sw_state";
-    public static final String PREF_LAP_NUM = "sw_lap_num";
-    public static final String PREF_LAP_TIME = "sw_lap_time_";
     public static final String PREF_UPDATE_CIRCLE = "sw_update_circle";
     public static final String NOTIF_CLOCK_BASE = "notif_clock_base";
     public static final String NOTIF_CLOCK_ELAPSED = "notif_clock_elapsed";
@@ -50,7 +52,9 @@ public class Stopwatches {
     public static final int STOPWATCH_RUNNING = 1;
     public static final int STOPWATCH_STOPPED = 2;
 
-    public static final int MAX_LAPS = 99;
+    // Id of the stopwatch of the stopwatch tab, the named stopwatches use larger ids
+    public static final int MAIN_STOPWATCH_ID = 0;
+
     public static final int NO_LAP_NUMBER = -1;
 
     /**
@@ -71,6 +75,19 @@ public class Stopwatches {
      * @return formatted text
      */
     public static String buildShareResults(Context context, String time, long[] laps) {
+        return buildShareResults(context, time, laps, getCompletedLapStats(laps));
+    }
+
+    /**
+     * Create a multi-line text with the stopwatch lap data and statistics
+     * @param context context with resources
+     * @param time total elapsed time
+     * @param laps array of times
+     * @param stats statistics of the completed laps
+     * @return formatted text
+     */
+    static String buildShareResults(Context context, String time, long[] laps,
+            LapStats stats) {
         StringBuilder b = new StringBuilder (context.getString(org.omnirom.deskclock.R.string.sw_share_main, time));
         b.append("\n");
 
@@ -85,6 +102,13 @@ public class Stopwatches {
             b.append(getTimeText(context, laps[lapsNum-i], i));
             b.append("\n");
         }
+        String statsText = getLapStatsText(context, stats);
+        if (statsText != null) {
+            b.append(context.getString(org.omnirom.deskclock.R.string.sw_share_lap_stats));
+            b.append("\n");
+            b.append(statsText);
+            b.append("\n");
+        }
         return b.toString();
     }
 
@@ -99,6 +123,41 @@ public class Stopwatches {
         return buildShareResults(context, getTimeText(context, time, NO_LAP_NUMBER), laps);
     }
 
+    /**
+     * Create the text with the statistics of the completed laps
+     * @param context context with resources
+     * @param stats statistics of the completed laps
+     * @return formatted text or null if there are less than two completed laps
+     */
+    static String getLapStatsText(Context context, LapStats stats) {
+        if (stats == null || stats.getCount() < 2) {
+            return null;
+        }
+        return context.getString(org.omnirom.deskclock.R.string.sw_lap_stats,
+                getTimeText(context, stats.getBest(), NO_LAP_NUMBER),
+                stats.getBestIndex() + 1,
+                getTimeText(context, stats.getWorst(), NO_LAP_NUMBER),
+                stats.getWorstIndex() + 1,
+                getTimeText(context, stats.getMean(), NO_LAP_NUMBER),
+                getTimeText(context, stats.getStandardDeviation(), NO_LAP_NUMBER),
+                getTimeText(context, stats.getMedian(), NO_LAP_NUMBER),
+                getTimeText(context, stats.getPercentile90(), NO_LAP_NUMBER));
+    }
+
+    /**
+     * @param laps array of times, the running lap first
+     * @return statistics of the completed laps
+     */
+    private static LapStats getCompletedLapStats(long[] laps) {
+        LapStats stats = new LapStats();
+        if (laps != null) {
+            for (int i = laps.length - 1; i > 0; i--) {
+                stats.add(laps[i]);
+            }
+        }
+        return stats;
+    }
+
     /***
      * Format the string of the time running on the stopwatch up to hundred of a second accuracy
      * @param context context with resources
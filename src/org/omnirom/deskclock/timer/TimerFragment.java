@@ -174,9 +174,9 @@ public class TimerFragment extends DeskClockFragment implements OnSharedPreferen
         activity.registerPageChangedListener(this);
 
         if (mAdapter == null) {
-            mAdapter = new TimerFragmentAdapter(getChildFragmentManager(), mPrefs);
+            mAdapter = new TimerFragmentAdapter(getChildFragmentManager(), context);
         }
-        mAdapter.populateTimersFromPref();
+        mAdapter.populateTimersFromDatabase();
 
         // xxx
         mViewPager.setAdapter(mAdapter);
@@ -244,7 +244,7 @@ public class TimerFragment extends DeskClockFragment implements OnSharedPreferen
         }
         mPrefs.unregisterOnSharedPreferenceChangeListener(this);
         if (mAdapter != null) {
-            mAdapter.saveTimersToSharedPrefs();
+            mAdapter.saveTimersToDatabase();
         }
         stopClockTicks();
     }
@@ -253,7 +253,7 @@ public class TimerFragment extends DeskClockFragment implements OnSharedPreferen
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
         if (mAdapter != null) {
-            mAdapter.saveTimersToSharedPrefs();
+            mAdapter.saveTimersToDatabase();
         }
         if (mSetupView != null) {
             outState.putBoolean(KEY_SETUP_SELECTED, mSetupView.getVisibility() == View.VISIBLE);
@@ -320,7 +320,7 @@ public class TimerFragment extends DeskClockFragment implements OnSharedPreferen
                 goToSetUpView();
             }
         } else {
-            t.writeToSharedPref(mPrefs);
+            t.writeToDatabase(getActivity());
         }
         final Intent i = new Intent();
         i.setAction(action);
@@ -622,7 +622,7 @@ public class TimerFragment extends DeskClockFragment implements OnSharedPreferen
                 SharedPreferences.Editor editor = mPrefs.edit();
                 editor.putBoolean(key, false);
                 editor.apply();
-                mAdapter.populateTimersFromPref();
+                mAdapter.populateTimersFromDatabase();
                 mViewPager.setAdapter(mAdapter);
                 if (mViewState != null) {
                     final int currPage = mViewState.getInt(CURR_PAGE);
@@ -18,7 +18,7 @@ package org.omnirom.deskclock.timer;
 
 import android.app.Fragment;
 import android.app.FragmentManager;
-import android.content.SharedPreferences;
+import android.content.Context;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -27,11 +27,11 @@ import java.util.Comparator;
 public class TimerFragmentAdapter extends FragmentStatePagerAdapter2 {
 
     private final ArrayList<TimerObj> mTimerList = new ArrayList<TimerObj>();
-    private final SharedPreferences mSharedPrefs;
+    private final Context mContext;
 
-    public TimerFragmentAdapter(FragmentManager fm, SharedPreferences sharedPreferences) {
+    public TimerFragmentAdapter(FragmentManager fm, Context context) {
         super(fm);
-        mSharedPrefs = sharedPreferences;
+        mContext = context.getApplicationContext();
     }
 
     @Override
@@ -60,13 +60,13 @@ public class TimerFragmentAdapter extends FragmentStatePagerAdapter2 {
         return mTimerList.get(position);
     }
 
-    public void saveTimersToSharedPrefs() {
-        TimerObj.putTimersInSharedPrefs(mSharedPrefs, mTimerList);
+    public void saveTimersToDatabase() {
+        TimerObj.putTimersInDatabase(mContext, mTimerList);
     }
 
-    public void populateTimersFromPref() {
+    public void populateTimersFromDatabase() {
         mTimerList.clear();
-        TimerObj.getTimersFromSharedPrefs(mSharedPrefs, mTimerList);
+        TimerObj.getTimers(mContext, mTimerList);
         Collections.sort(mTimerList, new Comparator<TimerObj>() {
             @Override
             public int compare(TimerObj o1, TimerObj o2) {
@@ -84,7 +84,7 @@ public class TimerFragmentAdapter extends FragmentStatePagerAdapter2 {
                 if (timer.mView != null) {
                     timer.mView.stop();
                 }
-                timer.deleteFromSharedPref(mSharedPrefs);
+                timer.deleteFromDatabase(mContext);
                 mTimerList.remove(i);
                 break;
             }
@@ -33,6 +33,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -163,7 +164,7 @@ public class TimerFullScreenFragment extends DeskClockFragment
                     if (t.mView != null) {
                         ((TimerListItem) t.mView).stop();
                     }
-                    t.deleteFromSharedPref(mmPrefs);
+                    t.deleteFromDatabase(mContext);
                     mTimers.remove(i);
                     if (mTimers.size() == 1 && mColumnCount > 1) {
                         // If we're going from two timers to one (in the same row), we don't want to
@@ -285,16 +286,16 @@ public class TimerFullScreenFragment extends DeskClockFragment
         }
 
         public void onSaveInstanceState(Bundle outState) {
-            TimerObj.putTimersInSharedPrefs(mmPrefs, mTimers);
+            TimerObj.putTimersInDatabase(mContext, mTimers);
         }
 
         public void onRestoreInstanceState(Bundle outState) {
-            TimerObj.getTimersFromSharedPrefs(mmPrefs, mTimers);
+            TimerObj.getTimers(mContext, mTimers);
             sort();
         }
 
         public void saveGlobalState() {
-            TimerObj.putTimersInSharedPrefs(mmPrefs, mTimers);
+            TimerObj.putTimersInDatabase(mContext, mTimers);
         }
 
         public void sort() {
@@ -357,7 +358,7 @@ public class TimerFullScreenFragment extends DeskClockFragment
         @Override
         public void onRestoreInstanceState(Bundle outState) {
             // This adapter loads a subset
-            TimerObj.getTimersFromSharedPrefs(mmPrefs, mTimers, TimerObj.STATE_TIMESUP);
+            TimerObj.getTimers(mContext, mTimers, TimerObj.STATE_TIMESUP);
 
             if (getCount() == 0) {
                 mOnEmptyListListener.onEmptyList();
@@ -372,24 +373,34 @@ public class TimerFullScreenFragment extends DeskClockFragment
         }
     }
 
-    private final Runnable mClockTick = new Runnable() {
+    // Updates the timers when their display changes and sleeps in between. The text only
+    // changes once a second and stopped or expired timers blink every half second, so
+    // nothing is done between those changes and nothing at all if no timer is in use.
+    private final Choreographer.FrameCallback mClockTick = new Choreographer.FrameCallback() {
         boolean mVisible = true;
         final static int TIME_PERIOD_MS = 1000;
         final static int SPLIT = TIME_PERIOD_MS / 2;
 
         @Override
-        public void run() {
+        public void doFrame(long frameTimeNanos) {
+            final long now = Utils.getTimeNow();
             // Setup for blinking
-            boolean visible = Utils.getTimeNow() % TIME_PERIOD_MS < SPLIT;
+            boolean visible = now % TIME_PERIOD_MS < SPLIT;
             boolean toggle = mVisible != visible;
             mVisible = visible;
+            long nextChange = Long.MAX_VALUE;
             for (int i = 0; i < mAdapter.getCount(); i++) {
                 TimerObj t = mAdapter.getItem(i);
                 if (t.mState == TimerObj.STATE_RUNNING || t.mState == TimerObj.STATE_TIMESUP) {
                     long timeLeft = t.updateTimeLeft(false);
                     if (t.mView != null) {
-                        ((TimerListItem) (t.mView)).setTime(timeLeft, false);
+                        ((TimerListItem) (t.mView)).setTime(timeLeft, true);
                     }
+                    // The shown seconds change when the time left crosses a full second
+                    long untilNextSecond = ((timeLeft % TIME_PERIOD_MS) + TIME_PERIOD_MS)
+                            % TIME_PERIOD_MS;
+                    nextChange = Math.min(nextChange,
+                            untilNextSecond == 0 ? TIME_PERIOD_MS : untilNextSecond);
                 }
                 if (t.mTimeLeft <= 0 && t.mState != TimerObj.STATE_DONE
                         && t.mState != TimerObj.STATE_RESTART) {
@@ -399,18 +410,17 @@ public class TimerFullScreenFragment extends DeskClockFragment
                     }
                 }
 
-                // The blinking
-                if (toggle && t.mView != null) {
-                    /*if (t.mState == TimerObj.STATE_TIMESUP) {
-                        ((TimerListItem) (t.mView)).setCircleBlink(mVisible);
-                    }*/
-                    if (t.mState == TimerObj.STATE_STOPPED ||
-                            t.mState == TimerObj.STATE_TIMESUP) {
+                if (t.mState == TimerObj.STATE_STOPPED || t.mState == TimerObj.STATE_TIMESUP) {
+                    // The blinking
+                    if (toggle && t.mView != null) {
                         ((TimerListItem) (t.mView)).setTextBlink(mVisible);
                     }
+                    nextChange = Math.min(nextChange, SPLIT - now % SPLIT);
                 }
             }
-            mTimersList.postDelayed(mClockTick, 20);
+            if (nextChange != Long.MAX_VALUE) {
+                Choreographer.getInstance().postFrameCallbackDelayed(mClockTick, nextChange);
+            }
         }
     };
 
@@ -861,24 +871,34 @@ public class TimerFullScreenFragment extends DeskClockFragment
 
     // Starts the ticks that animate the timers.
     private void startClockTicks() {
-        mTimersList.postDelayed(mClockTick, 20);
         mTicking = true;
+        refreshClockTicks();
     }
 
     // Stops the ticks that animate the timers.
     private void stopClockTicks() {
         if (mTicking) {
-            mTimersList.removeCallbacks(mClockTick);
+            Choreographer.getInstance().removeFrameCallback(mClockTick);
             mTicking = false;
         }
     }
 
+    // Updates the timers on the next frame after their state changed, so the ticks
+    // continue or stop as needed.
+    private void refreshClockTicks() {
+        if (mTicking) {
+            final Choreographer choreographer = Choreographer.getInstance();
+            choreographer.removeFrameCallback(mClockTick);
+            choreographer.postFrameCallback(mClockTick);
+        }
+    }
+
     private void updateTimersState(TimerObj t, String action) {
         if (Timers.DELETE_TIMER.equals(action)) {
             LogUtils.e("~~ update timer state");
-            t.deleteFromSharedPref(mPrefs);
+            t.deleteFromDatabase(getActivity());
         } else {
-            t.writeToSharedPref(mPrefs);
+            t.writeToDatabase(getActivity());
         }
         Intent i = new Intent();
         i.setAction(action);
@@ -886,6 +906,7 @@ public class TimerFullScreenFragment extends DeskClockFragment
         // Make sure the receiver is getting the intent ASAP.
         i.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
         getActivity().sendBroadcast(i);
+        refreshClockTicks();
     }
 
     private void cancelTimerNotification(int timerId) {
@@ -934,6 +955,7 @@ public class TimerFullScreenFragment extends DeskClockFragment
                 mAdapter = createAdapter(getActivity(), mPrefs);
                 mAdapter.onRestoreInstanceState(null);
                 mTimersList.setAdapter(mAdapter);
+                refreshClockTicks();
             }
         }
     }
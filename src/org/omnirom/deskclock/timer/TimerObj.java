@@ -16,27 +16,36 @@
 
 package org.omnirom.deskclock.timer;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
-import android.util.Log;
 
+import org.omnirom.deskclock.AsyncHandler;
+import org.omnirom.deskclock.LogUtils;
 import org.omnirom.deskclock.Utils;
+import org.omnirom.deskclock.provider.ClockContract;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.List;
 
-public class TimerObj implements Parcelable {
+public class TimerObj implements Parcelable, ClockContract.TimersColumns {
 
     public static final String KEY_NEXT_TIMER_ID = "next_timer_id";
 
-    private static final String TAG = "TimerObj";
     // Max timer length is 9 hours + 99 minutes + 9 seconds
     public static final long MAX_TIMER_LENGTH = (9 * 3600 + 99 * 60  + 99) * 1000;
     public static final long MINUTE_IN_MILLIS = 60 * 1000;
@@ -50,6 +59,7 @@ public class TimerObj implements Parcelable {
     public int mState;
     public String mLabel;
     public boolean mDeleteAfterUse;
+    public TimerSequence mSequence;  // null for a single countdown
 
     public static final int STATE_RUNNING = 1;
     public static final int STATE_STOPPED = 2;
@@ -58,16 +68,46 @@ public class TimerObj implements Parcelable {
     public static final int STATE_RESTART = 5;
     public static final int STATE_DELETED = 6;
 
-    private static final String PREF_TIMER_ID = "timer_id_";
-    private static final String PREF_START_TIME  = "timer_start_time_";
-    private static final String PREF_TIME_LEFT = "timer_time_left_";
-    private static final String PREF_ORIGINAL_TIME = "timer_original_timet_";
-    private static final String PREF_SETUP_TIME = "timer_setup_timet_";
-    private static final String PREF_STATE = "timer_state_";
-    private static final String PREF_LABEL = "timer_label_";
-    private static final String PREF_DELETE_AFTER_USE = "delete_after_use_";
+    private static final String[] QUERY_COLUMNS = {
+            _ID,
+            START_TIME,
+            TIME_LEFT,
+            ORIGINAL_LENGTH,
+            SETUP_LENGTH,
+            STATE,
+            LABEL,
+            DELETE_AFTER_USE,
+            SEQUENCE
+    };
+
+    private static final int ID_INDEX = 0;
+    private static final int START_TIME_INDEX = 1;
+    private static final int TIME_LEFT_INDEX = 2;
+    private static final int ORIGINAL_LENGTH_INDEX = 3;
+    private static final int SETUP_LENGTH_INDEX = 4;
+    private static final int STATE_INDEX = 5;
+    private static final int LABEL_INDEX = 6;
+    private static final int DELETE_AFTER_USE_INDEX = 7;
+    private static final int SEQUENCE_INDEX = 8;
+
+    /**
+     * A write or delete of a timer that was not persisted yet.
+     */
+    private static final class PendingWrite {
+        final int mTimerId;
+        // Null for a delete
+        final TimerObj mTimer;
+
+        PendingWrite(int timerId, TimerObj timer) {
+            mTimerId = timerId;
+            mTimer = timer;
+        }
+    }
 
-    private static final String PREF_TIMERS_LIST = "timers_list";
+    // Latest unpersisted change of each timer by id, guarded by the class. Reads overlay
+    // them on the database so they see a change as soon as it was made.
+    private static final HashMap<Integer, PendingWrite> sPendingWrites =
+            new HashMap<Integer, PendingWrite>();
 
     public static final Parcelable.Creator<TimerObj> CREATOR = new Parcelable.Creator<TimerObj>() {
         @Override
@@ -81,68 +121,138 @@ public class TimerObj implements Parcelable {
         }
     };
 
-    public void writeToSharedPref(SharedPreferences prefs) {
-        final SharedPreferences.Editor editor = prefs.edit();
-        final String id = Integer.toString(mTimerId);
-        editor.putInt(PREF_TIMER_ID + id, mTimerId);
-        editor.putLong(PREF_START_TIME + id, mStartTime);
-        editor.putLong (PREF_TIME_LEFT + id, mTimeLeft);
-        editor.putLong (PREF_ORIGINAL_TIME + id, mOriginalLength);
-        editor.putLong (PREF_SETUP_TIME + id, mSetupLength);
-        editor.putInt(PREF_STATE + id, mState);
-        final Set <String> timersList = prefs.getStringSet(PREF_TIMERS_LIST, new HashSet<String>());
-        timersList.add(id);
-        editor.putStringSet(PREF_TIMERS_LIST, timersList);
-        editor.putString(PREF_LABEL + id, mLabel);
-        editor.putBoolean(PREF_DELETE_AFTER_USE + id, mDeleteAfterUse);
-        editor.apply();
-    }
-
-    public void readFromSharedPref(SharedPreferences prefs) {
-        String id = Integer.toString(mTimerId);
-        String key = PREF_START_TIME + id;
-        mStartTime = prefs.getLong(key, 0);
-        key = PREF_TIME_LEFT + id;
-        mTimeLeft = prefs.getLong(key, 0);
-        key = PREF_ORIGINAL_TIME + id;
-        mOriginalLength = prefs.getLong(key, 0);
-        key = PREF_SETUP_TIME + id;
-        mSetupLength = prefs.getLong(key, 0);
-        key = PREF_STATE + id;
-        mState = prefs.getInt(key, 0);
-        key = PREF_LABEL + id;
-        mLabel = prefs.getString(key, "");
-        key = PREF_DELETE_AFTER_USE + id;
-        mDeleteAfterUse = prefs.getBoolean(key, false);
-    }
-
-    public void deleteFromSharedPref(SharedPreferences prefs) {
-        SharedPreferences.Editor editor = prefs.edit();
-        String key = PREF_TIMER_ID + Integer.toString(mTimerId);
-        String id = Integer.toString(mTimerId);
-        editor.remove (key);
-        key = PREF_START_TIME + id;
-        editor.remove (key);
-        key = PREF_TIME_LEFT + id;
-        editor.remove (key);
-        key = PREF_ORIGINAL_TIME + id;
-        editor.remove (key);
-        key = PREF_SETUP_TIME + id;
-        editor.remove (key);
-        key = PREF_STATE + id;
-        editor.remove (key);
-        Set <String> timersList = prefs.getStringSet(PREF_TIMERS_LIST, new HashSet<String>());
-        timersList.remove(id);
-        editor.putStringSet(PREF_TIMERS_LIST, timersList);
-        key = PREF_LABEL + id;
-        editor.remove(key);
-        key = PREF_DELETE_AFTER_USE + id;
-        editor.remove(key);
-        if (timersList.isEmpty()) {
-            editor.remove(KEY_NEXT_TIMER_ID);
+    public static ContentValues createContentValues(TimerObj timer) {
+        ContentValues values = new ContentValues(QUERY_COLUMNS.length);
+        values.put(_ID, timer.mTimerId);
+        values.put(START_TIME, timer.mStartTime);
+        values.put(TIME_LEFT, timer.mTimeLeft);
+        values.put(ORIGINAL_LENGTH, timer.mOriginalLength);
+        values.put(SETUP_LENGTH, timer.mSetupLength);
+        values.put(STATE, timer.mState);
+        values.put(LABEL, timer.mLabel != null ? timer.mLabel : "");
+        values.put(DELETE_AFTER_USE, timer.mDeleteAfterUse ? 1 : 0);
+        values.put(SEQUENCE, timer.mSequence != null
+                ? timer.mSequence.toPersistentString() : null);
+        return values;
+    }
+
+    public static Uri getUri(int timerId) {
+        return ContentUris.withAppendedId(CONTENT_URI, timerId);
+    }
+
+    /**
+     * Write the timer, only its own row is touched. The registry and later reads see the
+     * change at once, the row is written on the high priority lane so callers on the UI
+     * thread do not wait for the provider.
+     */
+    public void writeToDatabase(Context context) {
+        final ContentResolver cr = context.getApplicationContext().getContentResolver();
+        final PendingWrite write = addPendingWrite(mTimerId, copy());
+        TimerRegistry.onTimerWritten(this);
+        AsyncHandler.post(AsyncHandler.LANE_HIGH, new Runnable() {
+            @Override
+            public void run() {
+                final ContentValues values = createContentValues(write.mTimer);
+                if (cr.update(getUri(write.mTimerId), values, null, null) == 0) {
+                    cr.insert(CONTENT_URI, values);
+                }
+                removePendingWrite(write);
+            }
+        });
+    }
+
+    /**
+     * Delete the timer like {@link #writeToDatabase} writes it. Ids are never handed out
+     * again, even once all timers are deleted, so a new timer can not replace the row of a
+     * timer whose id was taken before the delete was persisted.
+     */
+    public void deleteFromDatabase(Context context) {
+        final ContentResolver cr = context.getApplicationContext().getContentResolver();
+        final PendingWrite delete = addPendingWrite(mTimerId, null);
+        TimerRegistry.onTimerDeleted(mTimerId);
+        AsyncHandler.post(AsyncHandler.LANE_HIGH, new Runnable() {
+            @Override
+            public void run() {
+                cr.delete(getUri(delete.mTimerId), null, null);
+                removePendingWrite(delete);
+            }
+        });
+    }
+
+    private static synchronized PendingWrite addPendingWrite(int timerId, TimerObj timer) {
+        final PendingWrite write = new PendingWrite(timerId, timer);
+        sPendingWrites.put(timerId, write);
+        return write;
+    }
+
+    /**
+     * Forget a change once it was persisted, unless the timer changed again since.
+     */
+    private static synchronized void removePendingWrite(PendingWrite write) {
+        if (sPendingWrites.get(write.mTimerId) == write) {
+            sPendingWrites.remove(write.mTimerId);
         }
-        editor.commit();
-        //dumpTimersFromSharedPrefs(prefs);
+    }
+
+    /**
+     * Replace the timers read from the database by their unpersisted changes.
+     */
+    private static synchronized void applyPendingWrites(List<TimerObj> timers) {
+        if (sPendingWrites.isEmpty()) {
+            return;
+        }
+        for (Iterator<TimerObj> it = timers.iterator(); it.hasNext(); ) {
+            if (sPendingWrites.containsKey(it.next().mTimerId)) {
+                it.remove();
+            }
+        }
+        for (PendingWrite write : sPendingWrites.values()) {
+            if (write.mTimer != null) {
+                timers.add(write.mTimer.copy());
+            }
+        }
+        Collections.sort(timers, new Comparator<TimerObj>() {
+            @Override
+            public int compare(TimerObj o1, TimerObj o2) {
+                return o1.mTimerId < o2.mTimerId ? -1 : (o1.mTimerId == o2.mTimerId ? 0 : 1);
+            }
+        });
+    }
+
+    private TimerObj(Cursor c) {
+        mTimerId = c.getInt(ID_INDEX);
+        mStartTime = c.getLong(START_TIME_INDEX);
+        mTimeLeft = c.getLong(TIME_LEFT_INDEX);
+        mOriginalLength = c.getLong(ORIGINAL_LENGTH_INDEX);
+        mSetupLength = c.getLong(SETUP_LENGTH_INDEX);
+        mState = c.getInt(STATE_INDEX);
+        mLabel = c.getString(LABEL_INDEX);
+        mDeleteAfterUse = c.getInt(DELETE_AFTER_USE_INDEX) == 1;
+        mSequence = TimerSequence.fromPersistentString(c.getString(SEQUENCE_INDEX));
+    }
+
+    /**
+     * @return a copy of the persisted state, without the view
+     */
+    TimerObj copy() {
+        final TimerObj timer = new TimerObj(mSetupLength, mTimerId);
+        timer.set(this);
+        return timer;
+    }
+
+    /**
+     * Take over the persisted state of another timer.
+     */
+    void set(TimerObj other) {
+        mTimerId = other.mTimerId;
+        mStartTime = other.mStartTime;
+        mTimeLeft = other.mTimeLeft;
+        mOriginalLength = other.mOriginalLength;
+        mSetupLength = other.mSetupLength;
+        mState = other.mState;
+        mLabel = other.mLabel;
+        mDeleteAfterUse = other.mDeleteAfterUse;
+        mSequence = other.mSequence;
     }
 
     @Override
@@ -159,6 +269,7 @@ public class TimerObj implements Parcelable {
         dest.writeLong(mSetupLength);
         dest.writeInt(mState);
         dest.writeString(mLabel);
+        dest.writeString(mSequence != null ? mSequence.toPersistentString() : null);
     }
 
     public TimerObj(Parcel p) {
@@ -169,10 +280,7 @@ public class TimerObj implements Parcelable {
         mSetupLength = p.readLong();
         mState = p.readInt();
         mLabel = p.readString();
-    }
-
-    private TimerObj() {
-        this(0 /* timerLength */, 0 /* timerId */);
+        mSequence = TimerSequence.fromPersistentString(p.readString());
     }
 
     public TimerObj(long timerLength, int timerId) {
@@ -188,6 +296,14 @@ public class TimerObj implements Parcelable {
         mLabel = label != null ? label : "";
     }
 
+    /**
+     * Create a sequence timer that runs through all rounds of a sequence.
+     */
+    public TimerObj(TimerSequence sequence, String label, Context context) {
+        this(sequence.getTotalLength(), label, context);
+        mSequence = sequence;
+    }
+
     private void init (long length, int timerId) {
         /* TODO: mTimerId must avoid StopwatchService.NOTIFICATION_ID,
          * TimerReceiver.IN_USE_NOTIFICATION_ID, and alarm ID's (which seem to be 1, 2, ..)
@@ -245,75 +361,118 @@ public class TimerObj implements Parcelable {
         return mStartTime + mOriginalLength;
     }
 
+    /**
+     * @return true if this is a sequence timer that is still in one of its rounds. The
+     * extra time added after times up is not part of the sequence.
+     */
+    private boolean isInSequence(long now) {
+        return mSequence != null && mState == STATE_RUNNING
+                && mOriginalLength >= mSequence.getTotalLength()
+                && mSequence.getRound(now - mStartTime) >= 0;
+    }
 
-    public static void getTimersFromSharedPrefs(
-            SharedPreferences prefs, ArrayList<TimerObj> timers) {
-        Object[] timerStrings =
-                prefs.getStringSet(PREF_TIMERS_LIST, new HashSet<String>()).toArray();
-        if (timerStrings.length > 0) {
-            for (int i = 0; i < timerStrings.length; i++) {
-                TimerObj t = new TimerObj();
-                t.mTimerId = Integer.parseInt((String)timerStrings[i]);
-                t.readFromSharedPref(prefs);
-                timers.add(t);
-            }
-            Collections.sort(timers, new Comparator<TimerObj>() {
-                @Override
-                public int compare(TimerObj timerObj1, TimerObj timerObj2) {
-                   return timerObj1.mTimerId - timerObj2.mTimerId;
-                }
-            });
+    /**
+     * @return the current segment of a running sequence timer or null
+     */
+    public TimerSequence.Segment getCurrentSegment() {
+        final long now = Utils.getTimeNow();
+        return isInSequence(now) ? mSequence.getSegment(now - mStartTime) : null;
+    }
+
+    /**
+     * @return the time the receiver has to wake up next for this timer, the end of the
+     * current segment for sequence timers and the times up time otherwise
+     */
+    public long getNextWakeupTime() {
+        final long now = Utils.getTimeNow();
+        if (isInSequence(now)) {
+            return Math.min(mStartTime + mSequence.getSegmentEnd(now - mStartTime),
+                    getTimesupTime());
         }
+        return getTimesupTime();
     }
 
-    public static void getTimersFromSharedPrefs(
-            SharedPreferences prefs, ArrayList<TimerObj> timers, int match) {
-        Object[] timerStrings = prefs.getStringSet(PREF_TIMERS_LIST, new HashSet<String>())
-                .toArray();
-        if (timerStrings.length > 0) {
-            for (int i = 0; i < timerStrings.length; i++) {
-                TimerObj t = new TimerObj();
-                t.mTimerId = Integer.parseInt((String) timerStrings[i]);
-                t.readFromSharedPref(prefs);
-                if (t.mState == match) {
-                    timers.add(t);
-                }
+
+    /**
+     * Add copies of all timers ordered by id. They are taken from the {@link TimerRegistry},
+     * which only reads the database once per process.
+     */
+    public static void getTimers(Context context, ArrayList<TimerObj> timers) {
+        timers.addAll(TimerRegistry.getTimers(context));
+    }
+
+    /**
+     * Add copies of all timers in a state ordered by id.
+     */
+    public static void getTimers(Context context, ArrayList<TimerObj> timers, int match) {
+        for (TimerObj timer : TimerRegistry.getTimers(context)) {
+            if (timer.mState == match) {
+                timers.add(timer);
             }
         }
     }
 
-    public static void putTimersInSharedPrefs(
-            SharedPreferences prefs, ArrayList<TimerObj> timers) {
-        if (timers.size() > 0) {
-            for (int i = 0; i < timers.size(); i++) {
-                timers.get(i).writeToSharedPref(prefs);
+    /**
+     * Read all timers ordered by id, used to load the {@link TimerRegistry}.
+     */
+    static void getTimersFromDatabase(Context context, ArrayList<TimerObj> timers) {
+        final int start = timers.size();
+        Cursor cursor = context.getContentResolver().query(CONTENT_URI, QUERY_COLUMNS,
+                null, null, _ID + " ASC");
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    timers.add(new TimerObj(cursor));
+                }
+            } finally {
+                cursor.close();
             }
         }
+        applyPendingWrites(timers.subList(start, timers.size()));
     }
 
-    public static void dumpTimersFromSharedPrefs(
-            SharedPreferences prefs) {
-        Object[] timerStrings =
-                prefs.getStringSet(PREF_TIMERS_LIST, new HashSet<String>()).toArray();
-        Log.v(TAG,"--------------------- timers list in shared prefs");
-        if (timerStrings.length > 0) {
-            for (int i = 0; i < timerStrings.length; i++) {
-                int id = Integer.parseInt((String)timerStrings[i]);
-                Log.v(TAG,"---------------------timer  " + (i + 1) + ": id - " + id);
-            }
+    /**
+     * Write all timers in one transaction on the high priority lane. Like
+     * {@link #writeToDatabase} the change is visible at once.
+     */
+    public static void putTimersInDatabase(Context context, ArrayList<TimerObj> timers) {
+        if (timers.size() == 0) {
+            return;
+        }
+        final ContentResolver cr = context.getApplicationContext().getContentResolver();
+        final ArrayList<PendingWrite> writes = new ArrayList<PendingWrite>(timers.size());
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(timers.size());
+        for (TimerObj timer : timers) {
+            final PendingWrite write = addPendingWrite(timer.mTimerId, timer.copy());
+            writes.add(write);
+            operations.add(ContentProviderOperation.newInsert(CONTENT_URI)
+                    .withValues(createContentValues(write.mTimer))
+                    .build());
+            TimerRegistry.onTimerWritten(timer);
         }
+        AsyncHandler.post(AsyncHandler.LANE_HIGH, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cr.applyBatch(ClockContract.AUTHORITY, operations);
+                } catch (RemoteException | OperationApplicationException e) {
+                    LogUtils.e("Failed to write timers", e);
+                }
+                for (PendingWrite write : writes) {
+                    removePendingWrite(write);
+                }
+            }
+        });
     }
 
-    public static void resetTimersInSharedPrefs(SharedPreferences prefs) {
-        ArrayList<TimerObj> timers = new  ArrayList<TimerObj>();
-        getTimersFromSharedPrefs(prefs, timers);
-        Iterator<TimerObj> i = timers.iterator();
-        while(i.hasNext()) {
-            TimerObj t = i.next();
+    public static void resetTimersInDatabase(Context context) {
+        ArrayList<TimerObj> timers = new ArrayList<TimerObj>();
+        getTimers(context, timers);
+        for (TimerObj t : timers) {
             t.mState = TimerObj.STATE_RESTART;
-            t.mTimeLeft = t. mOriginalLength = t.mSetupLength;
-            t.writeToSharedPref(prefs);
+            t.mTimeLeft = t.mOriginalLength = t.mSetupLength;
         }
+        putTimersInDatabase(context, timers);
     }
-
 }
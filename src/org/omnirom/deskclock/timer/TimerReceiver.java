@@ -24,12 +24,17 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.media.Ringtone;
+import android.media.RingtoneManager;
+import android.os.PowerManager;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 import android.view.View;
 import android.widget.RemoteViews;
 
+import org.omnirom.deskclock.AlarmAlertWakeLock;
+import org.omnirom.deskclock.AsyncHandler;
 import org.omnirom.deskclock.DeskClock;
 import org.omnirom.deskclock.TimerRingService;
 import org.omnirom.deskclock.Utils;
@@ -45,10 +50,32 @@ public class TimerReceiver extends BroadcastReceiver {
     private static final int IN_USE_NOTIFICATION_ID = Integer.MAX_VALUE - 2;
     private static final int RESET_ALL_TIMERS_BROADCAST_ID = Integer.MAX_VALUE - 3;
 
+    // What the in-use notification currently shows, null if it is not shown. Only a cache
+    // to skip reposting the same notification: it is lost with the process, which costs
+    // a single repost, and cleared wherever the notification is canceled. All cancels of
+    // the ongoing notification go through this receiver.
+    private static String sInUseNotificationKey;
+    // Sound played when a segment of a sequence timer ends, created on first use
+    private static Ringtone sSegmentCue;
+
     ArrayList<TimerObj> mTimers;
 
     @Override
     public void onReceive(final Context context, final Intent intent) {
+        final PendingResult result = goAsync();
+        final PowerManager.WakeLock wl = AlarmAlertWakeLock.createPartialWakeLock(context);
+        wl.acquire();
+        AsyncHandler.post(AsyncHandler.LANE_HIGH, new Runnable() {
+            @Override
+            public void run() {
+                handleIntent(context, intent);
+                result.finish();
+                wl.release();
+            }
+        });
+    }
+
+    private void handleIntent(Context context, Intent intent) {
         if (Timers.LOGGING) {
             Log.v(TAG, "Received intent " + intent.toString());
         }
@@ -59,12 +86,9 @@ public class TimerReceiver extends BroadcastReceiver {
             return;
         }
 
-        // Get the updated timers data.
-        if (mTimers == null) {
-            mTimers = new ArrayList<TimerObj>();
-        }
+        // Get the timers data, only read from the database once per process.
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        TimerObj.getTimersFromSharedPrefs(prefs, mTimers);
+        mTimers = TimerRegistry.getTimers(context);
 
         // These actions do not provide a timer ID, but do use the timers data
         if (Timers.NOTIF_IN_USE_SHOW.equals(actionType)) {
@@ -91,30 +115,46 @@ public class TimerReceiver extends BroadcastReceiver {
         TimerObj t = Timers.findTimer(mTimers, timerId);
 
         if (Timers.TIMES_UP.equals(actionType)) {
-            // Find the timer (if it doesn't exists, it was probably deleted).
-            if (t == null) {
-                Log.d(TAG, " timer not found in list - do nothing");
-                return;
+            // One wakeup serves every timer that is due by now, not only the one in the
+            // intent, so timers expiring or ending a segment together are not delayed
+            final long now = Utils.getTimeNow();
+            boolean segmentEnded = false;
+            boolean timesUp = false;
+            for (int dueId : TimerRegistry.drainDue(context, now)) {
+                final TimerObj due = Timers.findTimer(mTimers, dueId);
+                if (due == null) {
+                    continue;
+                }
+                if (due.getTimesupTime() > now) {
+                    // A segment of a sequence timer ended, the timer keeps running
+                    Log.d(TAG, "segment ended for timer " + dueId);
+                    segmentEnded = true;
+                    continue;
+                }
+                due.mState = TimerObj.STATE_TIMESUP;
+                due.writeToDatabase(context);
+                cancelTimesUpNotification(context, due);
+                showTimesUpNotification(context, due);
+                timesUp = true;
             }
 
-            t.mState = TimerObj.STATE_TIMESUP;
-            t.writeToSharedPref(prefs);
-            // Play ringtone by using TimerRingService service with a default alarm.
-            Log.d(TAG, "playing ringtone");
-            Intent si = new Intent();
-            si.setClass(context, TimerRingService.class);
-            context.startService(si);
+            if (timesUp) {
+                // Play ringtone by using TimerRingService service with a default alarm.
+                Log.d(TAG, "playing ringtone");
+                Intent si = new Intent();
+                si.setClass(context, TimerRingService.class);
+                context.startService(si);
+            } else if (segmentEnded) {
+                playSegmentCue(context);
+            }
 
             // Update the in-use notification
-            if (getNextRunningTimer(mTimers, false, Utils.getTimeNow()) == null) {
+            if (TimerRegistry.getNextWakeup(context) == null) {
                 // Found no running timers.
                 cancelInUseNotification(context);
             } else {
                 showInUseNotification(context);
             }
-
-            cancelTimesUpNotification(context, t);
-            showTimesUpNotification(context, t);
         } else if (Timers.TIMER_RESET.equals(actionType)
                 || Timers.DELETE_TIMER.equals(actionType)
                 || Timers.TIMER_DONE.equals(actionType)) {
@@ -133,7 +173,7 @@ public class TimerReceiver extends BroadcastReceiver {
             // Update timer state
             t.mState = t.getDeleteAfterUse() ? TimerObj.STATE_DELETED : TimerObj.STATE_RESTART;
             t.mTimeLeft = t.mOriginalLength = t.mSetupLength;
-            t.writeToSharedPref(prefs);
+            t.writeToDatabase(context);
 
             // Flag to tell DeskClock to re-sync with the database
             prefs.edit().putBoolean(Timers.FROM_NOTIFICATION, true).apply();
@@ -142,7 +182,7 @@ public class TimerReceiver extends BroadcastReceiver {
 
             // Done with timer - delete from data base
             if (t.getDeleteAfterUse()) {
-                t.deleteFromSharedPref(prefs);
+                t.deleteFromDatabase(context);
             }
 
             // Stop Ringtone if no timers are in times-up status
@@ -161,7 +201,7 @@ public class TimerReceiver extends BroadcastReceiver {
             t.mState = TimerObj.STATE_RUNNING;
             t.mStartTime = Utils.getTimeNow();
             t.mTimeLeft = t.mOriginalLength = TimerObj.MINUTE_IN_MILLIS;
-            t.writeToSharedPref(prefs);
+            t.writeToDatabase(context);
 
             // Flag to tell DeskClock to re-sync with the database
             prefs.edit().putBoolean(Timers.FROM_NOTIFICATION, true).apply();
@@ -194,7 +234,7 @@ public class TimerReceiver extends BroadcastReceiver {
                 return;
             }
             t.mState = TimerObj.STATE_DELETED;
-            t.deleteFromSharedPref(prefs);
+            t.deleteFromDatabase(context);
             clearInUseNotification(context);
         } else if (Timers.NOTIF_TOGGLE_STATE.equals(actionType)) {
             if (t == null) {
@@ -208,7 +248,7 @@ public class TimerReceiver extends BroadcastReceiver {
                 t.mStartTime = Utils.getTimeNow() - (t.mOriginalLength - t.mTimeLeft);
             }
 
-            t.writeToSharedPref(prefs);
+            t.writeToDatabase(context);
             updateUseNotification(context, t);
         } else if (Timers.NOTIF_RESET_TIMER.equals(actionType)) {
             if (t == null) {
@@ -217,7 +257,7 @@ public class TimerReceiver extends BroadcastReceiver {
             }
             t.mState = TimerObj.STATE_RESTART;
             t.mTimeLeft = t.mOriginalLength = t.mSetupLength;
-            t.writeToSharedPref(prefs);
+            t.writeToDatabase(context);
             clearInUseNotification(context);
         } else if (Timers.NOTIF_RESET_ALL_TIMER.equals(actionType)) {
             resetAllTimers(context, mTimers);
@@ -237,12 +277,13 @@ public class TimerReceiver extends BroadcastReceiver {
         }
     }
 
-    // Scan all timers and find the one that will expire next.
-    // Tell AlarmManager to send a "Time's up" message to this receiver when this timer expires.
+    // Find the timer that will expire or end a sequence segment next.
+    // Tell AlarmManager to send a "Time's up" message to this receiver at that time.
     // If no timer exists, clear "time's up" message.
     private void updateNextTimesup(Context context) {
-        TimerObj t = getNextRunningTimer(mTimers, false, Utils.getTimeNow());
-        long nextTimesup = (t == null) ? -1 : t.getTimesupTime();
+        TimerObj t = TimerRegistry.getNextWakeup(context);
+        // The heap key, due timers were re-keyed when their wakeup was handled
+        long nextTimesup = TimerRegistry.getNextWakeupTime(context);
         int timerId = (t == null) ? -1 : t.mTimerId;
 
         Intent intent = new Intent();
@@ -278,21 +319,18 @@ public class TimerReceiver extends BroadcastReceiver {
         }
 
         String title, contentText;
-        Long nextBroadcastTime = null;
+        long countdownTime = -1;
         long now = Utils.getTimeNow();
         if (timersInUse.size() == 1) {
             TimerObj timer = timersInUse.get(0);
             boolean timerIsTicking = timer.isTicking();
-            String label = timer.getLabelOrDefault(context);
+            String label = getSequenceLabel(context, timer);
             title = timerIsTicking ? label : context.getString(org.omnirom.deskclock.R.string.timer_stopped);
             long timeLeft = timerIsTicking ? timer.getTimesupTime() - now : timer.mTimeLeft;
             contentText = buildTimeRemaining(context, timeLeft);
-            if (timerIsTicking && timeLeft > TimerObj.MINUTE_IN_MILLIS) {
-                nextBroadcastTime = getBroadcastTime(now, timeLeft);
-            }
-            showCollapsedNotificationWithNext(context, timer, title, contentText, nextBroadcastTime);
+            showCollapsedNotification(context, timer, title, contentText, countdownTime);
         } else {
-            TimerObj timer = getNextRunningTimer(timersInUse, false, now);
+            TimerObj timer = getNextRunningTimer(timersInUse);
             if (timer == null) {
                 // No running timers.
                 title = String.format(
@@ -300,25 +338,41 @@ public class TimerReceiver extends BroadcastReceiver {
                 contentText = context.getString(org.omnirom.deskclock.R.string.all_timers_stopped_notif);
             } else {
                 // We have at least one timer running and other timers stopped.
+                // The header counts down to the next timer, so the text never goes stale.
                 title = String.format(
                         context.getString(org.omnirom.deskclock.R.string.timers_in_use), numTimersInUse);
-                long completionTime = timer.getTimesupTime();
-                long timeLeft = completionTime - now;
-                contentText = String.format(context.getString(org.omnirom.deskclock.R.string.next_timer_notif),
-                        buildTimeRemaining(context, timeLeft));
-                if (timeLeft <= TimerObj.MINUTE_IN_MILLIS) {
-                    TimerObj timerWithUpdate = getNextRunningTimer(timersInUse, true, now);
-                    if (timerWithUpdate != null) {
-                        completionTime = timerWithUpdate.getTimesupTime();
-                        timeLeft = completionTime - now;
-                        nextBroadcastTime = getBroadcastTime(now, timeLeft);
-                    }
-                } else {
-                    nextBroadcastTime = getBroadcastTime(now, timeLeft);
-                }
+                contentText = getSequenceLabel(context, timer);
+                countdownTime = timer.getTimesupTime();
+            }
+            showCollapsedNotification(context, null, title, contentText, countdownTime);
+        }
+    }
+
+    // Label of a timer, with the current segment and round for sequence timers
+    private String getSequenceLabel(Context context, TimerObj timer) {
+        String label = timer.getLabelOrDefault(context);
+        TimerSequence.Segment segment = timer.getCurrentSegment();
+        if (segment == null) {
+            return label;
+        }
+        int round = timer.mSequence.getRound(Utils.getTimeNow() - timer.mStartTime);
+        return context.getString(org.omnirom.deskclock.R.string.timer_sequence_notif, label,
+                segment.mName, round + 1, timer.mSequence.getRepeatCount());
+    }
+
+    // One cue is kept for the process and restarted at every segment boundary
+    private static synchronized void playSegmentCue(Context context) {
+        if (sSegmentCue == null) {
+            sSegmentCue = RingtoneManager.getRingtone(context.getApplicationContext(),
+                    RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION));
+            if (sSegmentCue == null) {
+                return;
             }
-            showCollapsedNotificationWithNext(context, null, title, contentText, nextBroadcastTime);
         }
+        if (sSegmentCue.isPlaying()) {
+            sSegmentCue.stop();
+        }
+        sSegmentCue.play();
     }
 
     private void updateUseNotification(final Context context, TimerObj timer) {
@@ -330,18 +384,14 @@ public class TimerReceiver extends BroadcastReceiver {
         }
 
         String title, contentText;
-        Long nextBroadcastTime = null;
         long now = Utils.getTimeNow();
 
         boolean timerIsTicking = timer.isTicking();
-        String label = timer.getLabelOrDefault(context);
+        String label = getSequenceLabel(context, timer);
         title = timerIsTicking ? label : context.getString(org.omnirom.deskclock.R.string.timer_stopped);
         long timeLeft = timerIsTicking ? timer.getTimesupTime() - now : timer.mTimeLeft;
         contentText = buildTimeRemaining(context, timeLeft);
-        if (timerIsTicking && timeLeft > TimerObj.MINUTE_IN_MILLIS) {
-            nextBroadcastTime = getBroadcastTime(now, timeLeft);
-        }
-        showCollapsedNotificationWithNext(context, timer, title, contentText, nextBroadcastTime);
+        showCollapsedNotification(context, timer, title, contentText, -1);
     }
 
     private void clearInUseNotification(final Context context) {
@@ -349,16 +399,24 @@ public class TimerReceiver extends BroadcastReceiver {
                 (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
 
         notificationManager.cancel(IN_USE_NOTIFICATION_ID);
+        sInUseNotificationKey = null;
     }
 
-    private long getBroadcastTime(long now, long timeUntilBroadcast) {
-        long seconds = timeUntilBroadcast / 1000;
-        seconds = seconds - ((seconds / 60) * 60);
-        return now + (seconds * 1000);
-    }
+    /**
+     * Post the in-use notification unless it already shows the same timers. The remaining
+     * time is rendered by a count down chronometer, so the notification does not need to
+     * be refreshed while the timers run.
+     *
+     * @param countdownTime elapsed realtime the header counts down to or -1
+     */
+    private void showCollapsedNotification(
+            final Context context, TimerObj timer, String title, String text, long countdownTime) {
+        String key = getInUseNotificationKey(title, countdownTime);
+        if (key.equals(sInUseNotificationKey)) {
+            return;
+        }
+        sInUseNotificationKey = key;
 
-    private void showCollapsedNotificationWithNext(
-            final Context context, TimerObj timer, String title, String text, Long nextBroadcastTime) {
         Intent activityIntent = new Intent(context, DeskClock.class);
         activityIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
         activityIntent.putExtra(DeskClock.SELECT_TAB_INTENT_EXTRA, DeskClock.TIMER_TAB_INDEX);
@@ -366,22 +424,22 @@ public class TimerReceiver extends BroadcastReceiver {
                 PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_UPDATE_CURRENT);
         if (Utils.isNougatOrLater()) {
             showCollapsedNotificationNew(context, timer, title, text, Notification.PRIORITY_HIGH,
-                    pendingActivityIntent, IN_USE_NOTIFICATION_ID, false);
+                    pendingActivityIntent, IN_USE_NOTIFICATION_ID, false, countdownTime);
         } else {
             showCollapsedNotificationOld(context, timer, title, text, Notification.PRIORITY_HIGH,
                     pendingActivityIntent, IN_USE_NOTIFICATION_ID, false);
         }
+    }
 
-        if (nextBroadcastTime == null) {
-            return;
+    // Identifies what the in-use notification shows: the state and end of all timers in use
+    private String getInUseNotificationKey(String title, long countdownTime) {
+        StringBuilder key = new StringBuilder(title).append('|').append(countdownTime);
+        for (TimerObj t : Timers.timersInUse(mTimers)) {
+            key.append('|').append(t.mTimerId)
+                    .append(':').append(t.mState)
+                    .append(':').append(t.isTicking() ? t.getTimesupTime() : t.mTimeLeft);
         }
-        Intent nextBroadcast = new Intent();
-        nextBroadcast.setAction(Timers.NOTIF_IN_USE_SHOW);
-        PendingIntent pendingNextBroadcast =
-                PendingIntent.getBroadcast(context, 0, nextBroadcast, 0);
-        AlarmManager alarmManager =
-                (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        alarmManager.setExact(AlarmManager.ELAPSED_REALTIME, nextBroadcastTime, pendingNextBroadcast);
+        return key.toString();
     }
 
     private static void showCollapsedNotificationOld(final Context context, TimerObj timer, String title, String text,
@@ -507,7 +565,8 @@ public class TimerReceiver extends BroadcastReceiver {
     }
 
     private static void showCollapsedNotificationNew(final Context context, TimerObj timer, String title, String text,
-                                                     int priority, PendingIntent pendingIntent, int notificationId, boolean showTicker) {
+                                                     int priority, PendingIntent pendingIntent, int notificationId, boolean showTicker,
+                                                     long countdownTime) {
         if (Utils.isNougatOrLater()) {
             Notification.Builder builder = new Notification.Builder(context)
                     .setAutoCancel(false)
@@ -545,6 +604,8 @@ public class TimerReceiver extends BroadcastReceiver {
                 remoteViewsCollapsed.setChronometerCountDown(org.omnirom.deskclock.R.id.notif_chronometer, true);
                 remoteViewsCollapsed.setTextColor(org.omnirom.deskclock.R.id.notif_chronometer,
                         context.getResources().getColor(org.omnirom.deskclock.R.color.black_87p));
+                remoteViewsCollapsed.setTextViewText(org.omnirom.deskclock.R.id.notif_title, title);
+                remoteViewsCollapsed.setViewVisibility(org.omnirom.deskclock.R.id.notif_title, View.VISIBLE);
 
                 RemoteViews remoteViewsExpanded = new RemoteViews(context.getPackageName(),
                         org.omnirom.deskclock.R.layout.custom_notif_nougat);
@@ -554,6 +615,8 @@ public class TimerReceiver extends BroadcastReceiver {
                 remoteViewsExpanded.setChronometerCountDown(org.omnirom.deskclock.R.id.notif_chronometer, true);
                 remoteViewsExpanded.setTextColor(org.omnirom.deskclock.R.id.notif_chronometer,
                         context.getResources().getColor(org.omnirom.deskclock.R.color.black_87p));
+                remoteViewsExpanded.setTextViewText(org.omnirom.deskclock.R.id.notif_title, title);
+                remoteViewsExpanded.setViewVisibility(org.omnirom.deskclock.R.id.notif_title, View.VISIBLE);
 
                 // delete notification button will delete timer
                 PendingIntent deleteNotificationIntent = PendingIntent.getBroadcast(context, timer.mTimerId,
@@ -603,6 +666,12 @@ public class TimerReceiver extends BroadcastReceiver {
 
                 notification = builder.build();
             } else {
+                if (countdownTime >= 0) {
+                    builder.setUsesChronometer(true)
+                            .setChronometerCountDown(true)
+                            .setShowWhen(true)
+                            .setWhen(System.currentTimeMillis() + countdownTime - Utils.getTimeNow());
+                }
                 // show single button to reset all timers
                 PendingIntent resetAllTimerIntent = PendingIntent.getBroadcast(context, RESET_ALL_TIMERS_BROADCAST_ID,
                         new Intent(Timers.NOTIF_RESET_ALL_TIMER)
@@ -653,8 +722,7 @@ public class TimerReceiver extends BroadcastReceiver {
         return String.format(formats[index], hourSeq, minSeq);
     }
 
-    private TimerObj getNextRunningTimer(
-            ArrayList<TimerObj> timers, boolean requireNextUpdate, long now) {
+    private TimerObj getNextRunningTimer(ArrayList<TimerObj> timers) {
         long nextTimesup = Long.MAX_VALUE;
         boolean nextTimerFound = false;
         Iterator<TimerObj> i = timers.iterator();
@@ -663,8 +731,7 @@ public class TimerReceiver extends BroadcastReceiver {
             TimerObj tmp = i.next();
             if (tmp.mState == TimerObj.STATE_RUNNING) {
                 long timesupTime = tmp.getTimesupTime();
-                long timeLeft = timesupTime - now;
-                if (timesupTime < nextTimesup && (!requireNextUpdate || timeLeft > 60)) {
+                if (timesupTime < nextTimesup) {
                     nextTimesup = timesupTime;
                     nextTimerFound = true;
                     t = tmp;
@@ -682,6 +749,7 @@ public class TimerReceiver extends BroadcastReceiver {
         NotificationManager notificationManager =
                 (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
         notificationManager.cancel(IN_USE_NOTIFICATION_ID);
+        sInUseNotificationKey = null;
     }
 
     private void showTimesUpNotification(final Context context) {
@@ -778,13 +846,12 @@ public class TimerReceiver extends BroadcastReceiver {
     }
 
     private void resetAllTimers(final Context context, ArrayList<TimerObj> timers) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         Iterator<TimerObj> i = timers.iterator();
         while (i.hasNext()) {
             TimerObj t = i.next();
             t.mState = TimerObj.STATE_RESTART;
             t.mTimeLeft = t.mOriginalLength = t.mSetupLength;
-            t.writeToSharedPref(prefs);
         }
+        TimerObj.putTimersInDatabase(context, timers);
     }
 }
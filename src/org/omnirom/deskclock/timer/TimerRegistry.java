@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock.timer;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * In memory copy of the timers table, so {@link TimerReceiver} does not have to read all
+ * timers from the database for every broadcast.
+ *
+ * The registry is loaded once per process. It is kept in sync by {@link TimerObj}, which
+ * reports every timer written to or deleted from the database. Running timers are also
+ * kept in a min-heap ordered by their next wakeup time, so the next timer to expire or
+ * to reach a segment boundary is found without scanning all timers.
+ *
+ * Callers get copies of the timers. Changes have to be written with
+ * {@link TimerObj#writeToDatabase}, which updates the registry as well.
+ */
+final class TimerRegistry {
+    /**
+     * A running timer in the heap.
+     */
+    private static final class HeapEntry {
+        final TimerObj mTimer;
+        long mWakeupTime;
+        int mIndex;
+
+        HeapEntry(TimerObj timer) {
+            mTimer = timer;
+            mWakeupTime = timer.getNextWakeupTime();
+        }
+    }
+
+    // All timers ordered by id, null until loaded. Guarded by the class.
+    private static TreeMap<Integer, TimerObj> sTimers;
+    private static final ArrayList<HeapEntry> sHeap = new ArrayList<HeapEntry>();
+    private static final HashMap<Integer, HeapEntry> sHeapEntries =
+            new HashMap<Integer, HeapEntry>();
+
+    private TimerRegistry() {}
+
+    /**
+     * @return copies of all timers ordered by id
+     */
+    static synchronized ArrayList<TimerObj> getTimers(Context context) {
+        ensureLoaded(context);
+        final ArrayList<TimerObj> timers = new ArrayList<TimerObj>(sTimers.size());
+        for (TimerObj timer : sTimers.values()) {
+            timers.add(timer.copy());
+        }
+        return timers;
+    }
+
+    /**
+     * @return a copy of the running timer that needs the next wakeup or null if none is
+     * running
+     */
+    static synchronized TimerObj getNextWakeup(Context context) {
+        ensureLoaded(context);
+        return sHeap.isEmpty() ? null : sHeap.get(0).mTimer.copy();
+    }
+
+    /**
+     * @return the time of the next wakeup or -1 if no timer is running
+     */
+    static synchronized long getNextWakeupTime(Context context) {
+        ensureLoaded(context);
+        return sHeap.isEmpty() ? -1 : sHeap.get(0).mWakeupTime;
+    }
+
+    /**
+     * Remove all running timers whose wakeup is due at now from the heap. Timers that
+     * passed a segment boundary are put back with the end of their next segment, expired
+     * timers stay out until they are written again.
+     *
+     * @return the ids of the due timers in wakeup order
+     */
+    static synchronized ArrayList<Integer> drainDue(Context context, long now) {
+        ensureLoaded(context);
+        final ArrayList<HeapEntry> due = new ArrayList<HeapEntry>();
+        while (!sHeap.isEmpty() && sHeap.get(0).mWakeupTime <= now) {
+            final HeapEntry entry = sHeap.get(0);
+            removeAt(0);
+            sHeapEntries.remove(entry.mTimer.mTimerId);
+            due.add(entry);
+        }
+        final ArrayList<Integer> timerIds = new ArrayList<Integer>(due.size());
+        for (HeapEntry entry : due) {
+            timerIds.add(entry.mTimer.mTimerId);
+            if (entry.mTimer.getNextWakeupTime() > now) {
+                updateHeap(entry.mTimer);
+            }
+        }
+        return timerIds;
+    }
+
+    /**
+     * Called when a timer was written to the database.
+     */
+    static synchronized void onTimerWritten(TimerObj timer) {
+        if (sTimers == null) {
+            // Read from the database once needed
+            return;
+        }
+        TimerObj registered = sTimers.get(timer.mTimerId);
+        if (registered == null) {
+            registered = timer.copy();
+            sTimers.put(registered.mTimerId, registered);
+        } else {
+            registered.set(timer);
+        }
+        updateHeap(registered);
+    }
+
+    /**
+     * Called when a timer was deleted from the database.
+     */
+    static synchronized void onTimerDeleted(int timerId) {
+        if (sTimers == null) {
+            return;
+        }
+        sTimers.remove(timerId);
+        final HeapEntry entry = sHeapEntries.remove(timerId);
+        if (entry != null) {
+            removeAt(entry.mIndex);
+        }
+    }
+
+    private static void ensureLoaded(Context context) {
+        if (sTimers != null) {
+            return;
+        }
+        final ArrayList<TimerObj> timers = new ArrayList<TimerObj>();
+        TimerObj.getTimersFromDatabase(context, timers);
+        sTimers = new TreeMap<Integer, TimerObj>();
+        sHeap.clear();
+        sHeapEntries.clear();
+        for (TimerObj timer : timers) {
+            sTimers.put(timer.mTimerId, timer);
+            updateHeap(timer);
+        }
+    }
+
+    /**
+     * Add, move or remove the heap entry of a timer after it changed.
+     */
+    private static void updateHeap(TimerObj timer) {
+        HeapEntry entry = sHeapEntries.get(timer.mTimerId);
+        if (timer.mState != TimerObj.STATE_RUNNING) {
+            if (entry != null) {
+                sHeapEntries.remove(timer.mTimerId);
+                removeAt(entry.mIndex);
+            }
+            return;
+        }
+        if (entry == null) {
+            entry = new HeapEntry(timer);
+            entry.mIndex = sHeap.size();
+            sHeap.add(entry);
+            sHeapEntries.put(timer.mTimerId, entry);
+            siftUp(entry.mIndex);
+        } else {
+            entry.mWakeupTime = timer.getNextWakeupTime();
+            siftDown(siftUp(entry.mIndex));
+        }
+    }
+
+    private static void removeAt(int index) {
+        final int last = sHeap.size() - 1;
+        if (index != last) {
+            swap(index, last);
+        }
+        sHeap.remove(last);
+        if (index < last) {
+            siftDown(siftUp(index));
+        }
+    }
+
+    /**
+     * @return the new index of the entry
+     */
+    private static int siftUp(int index) {
+        while (index > 0) {
+            final int parent = (index - 1) / 2;
+            if (sHeap.get(parent).mWakeupTime <= sHeap.get(index).mWakeupTime) {
+                break;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+        return index;
+    }
+
+    private static void siftDown(int index) {
+        final int size = sHeap.size();
+        while (true) {
+            final int left = 2 * index + 1;
+            if (left >= size) {
+                break;
+            }
+            int child = left;
+            if (left + 1 < size
+                    && sHeap.get(left + 1).mWakeupTime < sHeap.get(left).mWakeupTime) {
+                child = left + 1;
+            }
+            if (sHeap.get(index).mWakeupTime <= sHeap.get(child).mWakeupTime) {
+                break;
+            }
+            swap(index, child);
+            index = child;
+        }
+    }
+
+    private static void swap(int i, int j) {
+        final HeapEntry a = sHeap.get(i);
+        final HeapEntry b = sHeap.get(j);
+        sHeap.set(i, b);
+        sHeap.set(j, a);
+        a.mIndex = j;
+        b.mIndex = i;
+    }
+}
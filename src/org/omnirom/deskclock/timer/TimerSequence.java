@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock.timer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.omnirom.deskclock.LogUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ordered list of named segments that is repeated a number of times, for example the work
+ * and rest phases of interval training.
+ *
+ * A sequence runs as a single {@link TimerObj} whose length is the length of all rounds.
+ * The current segment and the next segment boundary are calculated from the time elapsed
+ * since the timer was started, so no timer is created per segment or round.
+ * Instances are immutable.
+ */
+public final class TimerSequence {
+    private static final String KEY_REPEAT_COUNT = "repeat";
+    private static final String KEY_SEGMENTS = "segments";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_LENGTH = "length";
+
+    /**
+     * A named phase of a round.
+     */
+    public static final class Segment {
+        public final String mName;
+        public final long mLength;
+
+        public Segment(String name, long length) {
+            mName = name != null ? name : "";
+            mLength = length;
+        }
+    }
+
+    private final List<Segment> mSegments;
+    private final int mRepeatCount;
+    // End of each segment relative to the start of a round
+    private final long[] mSegmentEnds;
+    private final long mRoundLength;
+
+    /**
+     * @param segments segments of a round, each at least one millisecond long
+     * @param repeatCount number of rounds, at least one
+     */
+    public TimerSequence(List<Segment> segments, int repeatCount) {
+        if (segments.isEmpty() || repeatCount < 1) {
+            throw new IllegalArgumentException("Empty timer sequence");
+        }
+        mSegments = Collections.unmodifiableList(new ArrayList<Segment>(segments));
+        mRepeatCount = repeatCount;
+        mSegmentEnds = new long[segments.size()];
+        long end = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            final long length = segments.get(i).mLength;
+            if (length <= 0) {
+                throw new IllegalArgumentException("Invalid segment length " + length);
+            }
+            end += length;
+            mSegmentEnds[i] = end;
+        }
+        mRoundLength = end;
+    }
+
+    public List<Segment> getSegments() {
+        return mSegments;
+    }
+
+    public int getRepeatCount() {
+        return mRepeatCount;
+    }
+
+    /**
+     * @return the length of all rounds
+     */
+    public long getTotalLength() {
+        return mRoundLength * mRepeatCount;
+    }
+
+    /**
+     * @return the zero based round at an elapsed time, or -1 if the sequence is over
+     */
+    public int getRound(long elapsed) {
+        if (elapsed < 0 || elapsed >= getTotalLength()) {
+            return -1;
+        }
+        return (int) (elapsed / mRoundLength);
+    }
+
+    /**
+     * @return the segment at an elapsed time, or null if the sequence is over
+     */
+    public Segment getSegment(long elapsed) {
+        if (getRound(elapsed) < 0) {
+            return null;
+        }
+        return mSegments.get(getSegmentIndex(elapsed % mRoundLength));
+    }
+
+    /**
+     * @return the elapsed time at which the segment at an elapsed time ends, or -1 if the
+     * sequence is over
+     */
+    public long getSegmentEnd(long elapsed) {
+        final int round = getRound(elapsed);
+        if (round < 0) {
+            return -1;
+        }
+        return round * mRoundLength + mSegmentEnds[getSegmentIndex(elapsed % mRoundLength)];
+    }
+
+    private int getSegmentIndex(long offset) {
+        // First segment that ends after the offset
+        final int index = Arrays.binarySearch(mSegmentEnds, offset);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * @return the sequence as stored in the timers table
+     */
+    public String toPersistentString() {
+        try {
+            final JSONArray segments = new JSONArray();
+            for (Segment segment : mSegments) {
+                segments.put(new JSONObject()
+                        .put(KEY_NAME, segment.mName)
+                        .put(KEY_LENGTH, segment.mLength));
+            }
+            return new JSONObject()
+                    .put(KEY_REPEAT_COUNT, mRepeatCount)
+                    .put(KEY_SEGMENTS, segments)
+                    .toString();
+        } catch (JSONException e) {
+            // Only thrown for invalid numbers
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the sequence stored in the timers table or null if there is none
+     */
+    public static TimerSequence fromPersistentString(String value) {
+        if (value == null || value.length() == 0) {
+            return null;
+        }
+        try {
+            final JSONObject object = new JSONObject(value);
+            final JSONArray array = object.getJSONArray(KEY_SEGMENTS);
+            final List<Segment> segments = new ArrayList<Segment>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                final JSONObject segment = array.getJSONObject(i);
+                segments.add(new Segment(segment.optString(KEY_NAME),
+                        segment.getLong(KEY_LENGTH)));
+            }
+            return new TimerSequence(segments, object.getInt(KEY_REPEAT_COUNT));
+        } catch (JSONException | IllegalArgumentException e) {
+            LogUtils.e("Invalid timer sequence " + value, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.provider.AlarmClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.omnirom.deskclock.timer.TimerObj;
+import org.omnirom.deskclock.timer.TimerSequence;
+import org.omnirom.deskclock.timer.Timers;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+@RunWith(AndroidJUnit4.class)
+public class HandleApiCallsTest {
+    private static final long TIMEOUT = 5000;
+
+    @Test
+    public void sequenceFromExtras() {
+        final Intent intent = new Intent(AlarmClock.ACTION_SET_TIMER)
+                .putExtra(HandleApiCalls.EXTRA_TIMER_SEGMENT_LENGTHS, new int[] { 30, 10 })
+                .putExtra(HandleApiCalls.EXTRA_TIMER_SEGMENT_NAMES, new String[] { "Work" })
+                .putExtra(HandleApiCalls.EXTRA_TIMER_REPEAT_COUNT, 3);
+        final TimerSequence sequence = HandleApiCalls.getTimerSequence(intent);
+
+        assertNotNull(sequence);
+        assertEquals(3, sequence.getRepeatCount());
+        assertEquals(2, sequence.getSegments().size());
+        assertEquals("Work", sequence.getSegments().get(0).mName);
+        assertEquals(30000, sequence.getSegments().get(0).mLength);
+        // Missing names are empty
+        assertEquals("", sequence.getSegments().get(1).mName);
+        assertEquals(120000, sequence.getTotalLength());
+    }
+
+    @Test
+    public void sequenceRejectsInvalidExtras() {
+        assertNull(HandleApiCalls.getTimerSequence(new Intent(AlarmClock.ACTION_SET_TIMER)
+                .putExtra(AlarmClock.EXTRA_LENGTH, 60)));
+        assertNull(HandleApiCalls.getTimerSequence(new Intent(AlarmClock.ACTION_SET_TIMER)
+                .putExtra(HandleApiCalls.EXTRA_TIMER_SEGMENT_LENGTHS, new int[0])));
+        assertNull(HandleApiCalls.getTimerSequence(new Intent(AlarmClock.ACTION_SET_TIMER)
+                .putExtra(HandleApiCalls.EXTRA_TIMER_SEGMENT_LENGTHS, new int[] { 30, 0 })));
+        assertNull(HandleApiCalls.getTimerSequence(new Intent(AlarmClock.ACTION_SET_TIMER)
+                .putExtra(HandleApiCalls.EXTRA_TIMER_SEGMENT_LENGTHS, new int[] { 30 })
+                .putExtra(HandleApiCalls.EXTRA_TIMER_REPEAT_COUNT, 0)));
+    }
+
+    @Test
+    public void setTimerCreatesRunningSequenceTimer() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final String label = "Sequence test " + SystemClock.elapsedRealtime();
+        context.startActivity(new Intent(AlarmClock.ACTION_SET_TIMER)
+                .setClass(context, HandleApiCalls.class)
+                .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK)
+                .putExtra(AlarmClock.EXTRA_MESSAGE, label)
+                .putExtra(AlarmClock.EXTRA_SKIP_UI, true)
+                .putExtra(HandleApiCalls.EXTRA_TIMER_SEGMENT_LENGTHS, new int[] { 40, 20 })
+                .putExtra(HandleApiCalls.EXTRA_TIMER_SEGMENT_NAMES,
+                        new String[] { "Work", "Rest" })
+                .putExtra(HandleApiCalls.EXTRA_TIMER_REPEAT_COUNT, 4));
+
+        final TimerObj timer = waitForTimer(context, label);
+        try {
+            assertNotNull("No timer was created", timer);
+            assertEquals(TimerObj.STATE_RUNNING, timer.mState);
+            assertEquals(4 * 60 * 1000, timer.mSetupLength);
+            assertNotNull(timer.mSequence);
+            assertEquals(4, timer.mSequence.getRepeatCount());
+            assertNotNull(timer.getCurrentSegment());
+            assertEquals("Work", timer.getCurrentSegment().mName);
+            // The first wakeup is the end of the first segment, not the end of the timer
+            assertEquals(timer.mStartTime + 40 * 1000, timer.getNextWakeupTime());
+        } finally {
+            if (timer != null) {
+                timer.deleteFromDatabase(context);
+                context.sendBroadcast(new Intent(Timers.DELETE_TIMER)
+                        .putExtra(Timers.TIMER_INTENT_EXTRA, timer.mTimerId));
+            }
+        }
+    }
+
+    private static TimerObj waitForTimer(Context context, String label) {
+        final long end = SystemClock.elapsedRealtime() + TIMEOUT;
+        while (SystemClock.elapsedRealtime() < end) {
+            final ArrayList<TimerObj> timers = new ArrayList<TimerObj>();
+            TimerObj.getTimers(context, timers);
+            for (TimerObj timer : timers) {
+                if (label.equals(timer.mLabel)) {
+                    return timer;
+                }
+            }
+            SystemClock.sleep(100);
+        }
+        return null;
+    }
+}
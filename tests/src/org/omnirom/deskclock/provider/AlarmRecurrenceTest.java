@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock.provider;
+
+import org.junit.Test;
+
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Trigger times around DST transitions. Expected instants are UTC.
+ */
+public class AlarmRecurrenceTest {
+    private static final long MINUTE_MILLIS = 60 * 1000L;
+    private static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    // DaysOfWeek bits, monday is bit 0
+    private static final int MONDAY = 1 << 0;
+    private static final int SATURDAY = 1 << 5;
+    private static final int SUNDAY = 1 << 6;
+    private static final int NO_DAYS = 0;
+
+    // 2016-03-27 02:00 CET -> 03:00 CEST, 2016-10-30 03:00 CEST -> 02:00 CET
+    private static final TimeZone BERLIN = TimeZone.getTimeZone("Europe/Berlin");
+    // 2016-10-16 00:00 BRT -> 01:00 BRST, midnight does not exist
+    private static final TimeZone SAO_PAULO = TimeZone.getTimeZone("America/Sao_Paulo");
+
+    @Test
+    public void nonexistentTimeIsShiftedByTheGap() {
+        // 02:30 does not exist on 2016-03-27 and fires at 03:30 CEST
+        assertEquals(utc(2016, 3, 27, 1, 30), AlarmRecurrence.nextTriggerTime(
+                utc(2016, 3, 26, 23, 0), BERLIN, 2, 30, NO_DAYS));
+        // Times before and after the gap are not moved
+        assertEquals(utc(2016, 3, 27, 0, 59), AlarmRecurrence.nextTriggerTime(
+                utc(2016, 3, 26, 23, 0), BERLIN, 1, 59, NO_DAYS));
+        assertEquals(utc(2016, 3, 27, 1, 0), AlarmRecurrence.nextTriggerTime(
+                utc(2016, 3, 26, 23, 0), BERLIN, 3, 0, NO_DAYS));
+        // The day after the gap uses the summer offset
+        assertEquals(utc(2016, 3, 28, 0, 30), AlarmRecurrence.nextTriggerTime(
+                utc(2016, 3, 27, 1, 30), BERLIN, 2, 30, NO_DAYS));
+    }
+
+    @Test
+    public void ambiguousTimeFiresAtFirstOccurrenceOnly() {
+        // 02:30 happens at 00:30 UTC in CEST and 01:30 UTC in CET, the first one is used
+        assertEquals(utc(2016, 10, 30, 0, 30), AlarmRecurrence.nextTriggerTime(
+                utc(2016, 10, 29, 22, 0), BERLIN, 2, 30, NO_DAYS));
+        // After the first occurrence the second one is skipped, it fires the next day
+        assertEquals(utc(2016, 10, 31, 1, 30), AlarmRecurrence.nextTriggerTime(
+                utc(2016, 10, 30, 0, 31), BERLIN, 2, 30, NO_DAYS));
+        // Times before and after the overlap are not ambiguous
+        assertEquals(utc(2016, 10, 29, 23, 59), AlarmRecurrence.nextTriggerTime(
+                utc(2016, 10, 29, 22, 0), BERLIN, 1, 59, NO_DAYS));
+        assertEquals(utc(2016, 10, 30, 2, 0), AlarmRecurrence.nextTriggerTime(
+                utc(2016, 10, 29, 22, 0), BERLIN, 3, 0, NO_DAYS));
+    }
+
+    @Test
+    public void repeatingAlarmOnTransitionDays() {
+        // Sunday alarm in the overlap, then the following sunday in winter time
+        assertEquals(utc(2016, 10, 30, 0, 30), AlarmRecurrence.nextTriggerTime(
+                utc(2016, 10, 28, 12, 0), BERLIN, 2, 30, SUNDAY));
+        assertEquals(utc(2016, 11, 6, 1, 30), AlarmRecurrence.nextTriggerTime(
+                utc(2016, 10, 30, 0, 30), BERLIN, 2, 30, SUNDAY));
+        // Sunday alarm in the gap, the sunday after uses the summer offset
+        assertEquals(utc(2016, 3, 27, 1, 30), AlarmRecurrence.nextTriggerTime(
+                utc(2016, 3, 25, 12, 0), BERLIN, 2, 30, SUNDAY));
+        assertEquals(utc(2016, 4, 3, 0, 30), AlarmRecurrence.nextTriggerTime(
+                utc(2016, 3, 27, 1, 30), BERLIN, 2, 30, SUNDAY));
+    }
+
+    @Test
+    public void dayOfWeekRollsOverAcrossTransition() {
+        // Saturday noon, the monday alarm is two local days later across the gap
+        assertEquals(utc(2016, 3, 27, 23, 0), AlarmRecurrence.nextTriggerTime(
+                utc(2016, 3, 26, 11, 0), BERLIN, 1, 0, MONDAY));
+        // Saturday 23:30 CEST fired, the next saturday is in winter time
+        assertEquals(utc(2016, 11, 5, 22, 30), AlarmRecurrence.nextTriggerTime(
+                utc(2016, 10, 29, 21, 30), BERLIN, 23, 30, SATURDAY));
+        // Sunday 00:30 does not exist in Sao Paulo, it fires at 01:30 BRST on that sunday
+        // and not on the saturday before the shifted midnight
+        assertEquals(utc(2016, 10, 16, 3, 30), AlarmRecurrence.nextTriggerTime(
+                utc(2016, 10, 15, 15, 0), SAO_PAULO, 0, 30, SUNDAY));
+        // Saturday 23:30 right before the gap is still on saturday
+        assertEquals(utc(2016, 10, 16, 2, 30), AlarmRecurrence.nextTriggerTime(
+                utc(2016, 10, 15, 15, 0), SAO_PAULO, 23, 30, SATURDAY));
+    }
+
+    @Test
+    public void daysUntilNextSetDay() {
+        assertEquals(-1, AlarmRecurrence.daysUntilNext(NO_DAYS, 0));
+        assertEquals(0, AlarmRecurrence.daysUntilNext(MONDAY, 0));
+        assertEquals(6, AlarmRecurrence.daysUntilNext(MONDAY, 1));
+        assertEquals(1, AlarmRecurrence.daysUntilNext(MONDAY, 6));
+        assertEquals(5, AlarmRecurrence.daysUntilNext(SATURDAY | SUNDAY, 0));
+    }
+
+    private static long utc(int year, int month, int day, int hour, int minute) {
+        return daysFromCivil(year, month, day) * DAY_MILLIS + hour * HOUR_MILLIS
+                + minute * MINUTE_MILLIS;
+    }
+
+    // Days since 1970-01-01 of a proleptic gregorian date
+    private static long daysFromCivil(int year, int month, int day) {
+        final int y = month <= 2 ? year - 1 : year;
+        final int era = Math.floorDiv(y, 400);
+        final int yearOfEra = y - era * 400;
+        final int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
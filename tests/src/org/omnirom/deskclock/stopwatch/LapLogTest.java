@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2016 The OmniROM Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.omnirom.deskclock.stopwatch;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class LapLogTest {
+    // Not used by the stopwatch store, which counts up from the main stopwatch
+    private static final int STOPWATCH_ID = 100000;
+
+    private Context mContext;
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mFile = new File(mContext.getFilesDir(), "stopwatch_laps_" + STOPWATCH_ID + ".dat");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void appendOnFreshInstanceCountsEachLapOnce() {
+        // The first call creates the instance, its size was not looked at yet
+        final LapLog lapLog = LapLog.getInstance(mContext, STOPWATCH_ID);
+        lapLog.append(1000);
+        lapLog.append(2500);
+
+        assertEquals(2, lapLog.size());
+        assertEquals(3, lapLog.getLapCount());
+        assertArrayEquals(new long[] { 1000, 2500 }, lapLog.readTotalTimes());
+
+        lapLog.clear();
+        assertEquals(0, lapLog.size());
+        assertEquals(0, lapLog.readTotalTimes().length);
+    }
+}